@@ -17,8 +17,9 @@
 package com.cyanogenmod.cmparts.activities;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.SettingsCommitQueue;
+import com.cyanogenmod.cmparts.utils.SettingsSnapshot;
 
-import android.content.ContentResolver;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
@@ -49,6 +50,8 @@ public class BacklightActivity extends PreferenceActivity implements
     private CheckBoxPreference mDecreaseEnabled;
     private ListPreference mDecreaseHysteresis;
 
+    private SettingsCommitQueue mSettingsQueue;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -57,92 +60,85 @@ public class BacklightActivity extends PreferenceActivity implements
         addPreferencesFromResource(R.xml.backlight_settings);
 
         PreferenceScreen prefSet = getPreferenceScreen();
-        ContentResolver cr = getContentResolver();
+        mSettingsQueue = SettingsCommitQueue.system(getContentResolver());
+        SettingsSnapshot settings = SettingsSnapshot.system(getContentResolver(),
+                Settings.System.LIGHT_FILTER, Settings.System.LIGHT_FILTER_RESET,
+                Settings.System.LIGHT_FILTER_WINDOW, Settings.System.LIGHT_FILTER_INTERVAL,
+                Settings.System.LIGHT_SENSOR_CUSTOM, Settings.System.LIGHT_SCREEN_DIM,
+                Settings.System.LIGHT_DECREASE, Settings.System.LIGHT_HYSTERESIS);
 
         mFilterEnabled = (CheckBoxPreference) prefSet.findPreference(FILTER_ENABLED);
-        mFilterEnabled.setChecked(Settings.System.getInt(cr,
-                Settings.System.LIGHT_FILTER, 0) != 0);
+        mFilterEnabled.setChecked(settings.getInt(Settings.System.LIGHT_FILTER, 0) != 0);
         mFilterEnabled.setOnPreferenceChangeListener(this);
         
         mFilterReset = (ListPreference) prefSet.findPreference(FILTER_RESET);
-        mFilterReset.setValue(String.valueOf(Settings.System.getInt(cr,
-                Settings.System.LIGHT_FILTER_RESET, -1)));
+        mFilterReset.setValue(String.valueOf(settings.getInt(Settings.System.LIGHT_FILTER_RESET, -1)));
         mFilterReset.setOnPreferenceChangeListener(this);
 
         mFilterWindow = (ListPreference) prefSet.findPreference(FILTER_WINDOW);
-        mFilterWindow.setValue(String.valueOf(Settings.System.getInt(cr,
-                Settings.System.LIGHT_FILTER_WINDOW, 30000)));
+        mFilterWindow.setValue(String.valueOf(settings.getInt(Settings.System.LIGHT_FILTER_WINDOW, 30000)));
         mFilterWindow.setOnPreferenceChangeListener(this);
         
         mFilterInterval = (ListPreference) prefSet.findPreference(FILTER_INTERVAL);
-        mFilterInterval.setValue(String.valueOf(Settings.System.getInt(cr,
-                Settings.System.LIGHT_FILTER_INTERVAL, 1000)));
+        mFilterInterval.setValue(String.valueOf(settings.getInt(Settings.System.LIGHT_FILTER_INTERVAL, 1000)));
         mFilterInterval.setOnPreferenceChangeListener(this);
 
         mLevelsEnabled = (CheckBoxPreference) prefSet.findPreference(LEVELS_ENABLED);
-        mLevelsEnabled.setChecked(Settings.System.getInt(cr,
-                Settings.System.LIGHT_SENSOR_CUSTOM, 0) != 0);
+        mLevelsEnabled.setChecked(settings.getInt(Settings.System.LIGHT_SENSOR_CUSTOM, 0) != 0);
         mLevelsEnabled.setOnPreferenceChangeListener(this);
 
         mScreenDim = (ListPreference) prefSet.findPreference(SCREEN_DIM);
-        mScreenDim.setValue(String.valueOf(Settings.System.getInt(cr,
-                Settings.System.LIGHT_SCREEN_DIM,
+        mScreenDim.setValue(String.valueOf(settings.getInt(Settings.System.LIGHT_SCREEN_DIM,
                 android.os.Power.BRIGHTNESS_DIM)));
         mScreenDim.setOnPreferenceChangeListener(this);
 
         mDecreaseEnabled = (CheckBoxPreference) prefSet.findPreference(DECREASE_ENABLED);
-        mDecreaseEnabled.setChecked(Settings.System.getInt(cr,
-                Settings.System.LIGHT_DECREASE, 0) != 0);
+        mDecreaseEnabled.setChecked(settings.getInt(Settings.System.LIGHT_DECREASE, 0) != 0);
         mDecreaseEnabled.setOnPreferenceChangeListener(this);
 
         mDecreaseHysteresis = (ListPreference) prefSet.findPreference(DECREASE_HYSTERESIS);
-        mDecreaseHysteresis.setValue(String.valueOf(Settings.System.getInt(cr,
-                Settings.System.LIGHT_HYSTERESIS, 50)));
+        mDecreaseHysteresis.setValue(String.valueOf(settings.getInt(Settings.System.LIGHT_HYSTERESIS, 50)));
         mDecreaseHysteresis.setOnPreferenceChangeListener(this);
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        mSettingsQueue.commit();
+    }
+
     public boolean onPreferenceChange(Preference preference, Object newValue) {
         boolean handled = false;
 
         if (preference == mFilterEnabled) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_FILTER, getBoolean(newValue) ? 1 : 0);
+            mSettingsQueue.putInt(Settings.System.LIGHT_FILTER, getBoolean(newValue) ? 1 : 0);
             handled = true;        
         } else if (preference == mFilterWindow) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_FILTER_WINDOW, getInt(newValue));            
+            mSettingsQueue.putInt(Settings.System.LIGHT_FILTER_WINDOW, getInt(newValue));            
             handled = true;
         } else if (preference == mFilterReset) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_FILTER_RESET, getInt(newValue));
+            mSettingsQueue.putInt(Settings.System.LIGHT_FILTER_RESET, getInt(newValue));
             handled = true;
         } else if (preference == mFilterInterval) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_FILTER_INTERVAL, getInt(newValue));
+            mSettingsQueue.putInt(Settings.System.LIGHT_FILTER_INTERVAL, getInt(newValue));
             handled = true;
         } else if (preference == mScreenDim) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_SCREEN_DIM, getInt(newValue));
+            mSettingsQueue.putInt(Settings.System.LIGHT_SCREEN_DIM, getInt(newValue));
             handled = true;
         } else if (preference == mLevelsEnabled) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_SENSOR_CUSTOM, getBoolean(newValue) ? 1 : 0);
+            mSettingsQueue.putInt(Settings.System.LIGHT_SENSOR_CUSTOM, getBoolean(newValue) ? 1 : 0);
             handled = true;
         } else if (preference == mDecreaseEnabled) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_DECREASE, getBoolean(newValue) ? 1 : 0);
+            mSettingsQueue.putInt(Settings.System.LIGHT_DECREASE, getBoolean(newValue) ? 1 : 0);
             handled = true;
         } else if (preference == mDecreaseHysteresis) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LIGHT_HYSTERESIS, getInt(newValue));
+            mSettingsQueue.putInt(Settings.System.LIGHT_HYSTERESIS, getInt(newValue));
             handled = true;
         }
         
         // Force the system to reload settings and reinit
         if (handled) {
-            long tag = Settings.System.getLong(getContentResolver(),
-                Settings.System.LIGHTS_CHANGED, 0) + 1;
-            Settings.System.putLong(getContentResolver(), Settings.System.LIGHTS_CHANGED, tag);
+            mSettingsQueue.bumpLightsChanged();
         }
 
         return handled;
@@ -17,23 +17,38 @@
 package com.cyanogenmod.cmparts.activities;
 
 import com.cyanogenmod.cmparts.R;
-
+import com.cyanogenmod.cmparts.intents.CPUProfileStateMachine;
+import com.cyanogenmod.cmparts.intents.CPUReceiver;
+import com.cyanogenmod.cmparts.intents.ThermalThrottle;
+import com.cyanogenmod.cmparts.services.CPUProfileService;
+import com.cyanogenmod.cmparts.utils.CPUFreqMonitor;
+import com.cyanogenmod.cmparts.utils.CPUGovernorPlatform;
+import com.cyanogenmod.cmparts.utils.CPUPolicyEngine;
+import com.cyanogenmod.cmparts.utils.CPUStatsCollector;
+import com.cyanogenmod.cmparts.utils.DeviceCapabilities;
+import com.cyanogenmod.cmparts.utils.GovernorBenchmark;
+import com.cyanogenmod.cmparts.utils.SysfsWriter;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
+import android.os.SystemClock;
+import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
+import android.preference.PreferenceCategory;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
+import android.text.format.DateUtils;
 import android.util.Log;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
-import java.io.IOException;
+import java.util.List;
 
 //
 // CPU Related Settings
@@ -44,7 +59,6 @@ public class CPUActivity extends PreferenceActivity implements
     public static final String FREQ_CUR_PREF = "pref_cpu_freq_cur";
     public static final String SCALE_CUR_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_cur_freq";
     public static final String FREQINFO_CUR_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/cpuinfo_cur_freq";
-    private static String FREQ_CUR_FILE = SCALE_CUR_FILE;
 
     public static final String GOV_PREF = "pref_cpu_gov";
     public static final String GOVERNORS_LIST_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_available_governors";
@@ -55,13 +69,23 @@ public class CPUActivity extends PreferenceActivity implements
     public static final String CD_MAX_FREQ_PREF = "pref_cardock_freq_max";
     public static final String CH_MAX_FREQ_PREF = "pref_charger_freq_max";
     public static final String BAT_MAX_FREQ_PREF = "pref_battery_freq_max";
+    public static final String THERMAL_PREF = "pref_thermal_throttle";
+    public static final String THERMAL_FREQ_PREF = "pref_thermal_freq_max";
+    public static final String THERMAL_TRIP_PREF = "pref_thermal_trip";
+    public static final String THERMAL_STATUS_PREF = "pref_thermal_status";
     public static final String FREQ_LIST_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_available_frequencies";
     public static final String FREQ_MAX_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_max_freq";
     public static final String FREQ_MIN_FILE = "/sys/devices/system/cpu/cpu0/cpufreq/scaling_min_freq";
     public static final String SOB_PREF = "pref_set_on_boot";
+    public static final String RESIDENCY_PREF = "pref_cpu_residency";
+    public static final String GOV_BENCHMARK_PREF = "pref_cpu_gov_benchmark";
 
     private static final String TAG = "CPUSettings";
 
+    private static final int DIALOG_GOV_RANKING = 1;
+
+    private static final String EXTRA_RANKING = "ranking";
+
     private String mGovernorFormat;
     private String mMinFrequencyFormat;
     private String mMaxFrequencyFormat;
@@ -69,6 +93,7 @@ public class CPUActivity extends PreferenceActivity implements
     private String mMaxCdFrequencyFormat;
     private String mMaxChFrequencyFormat;
     private String mMaxBatFrequencyFormat;
+    private String mThermalFrequencyFormat;
 
     private Preference mCurFrequencyPref;
     private ListPreference mGovernorPref;
@@ -78,40 +103,48 @@ public class CPUActivity extends PreferenceActivity implements
     private ListPreference mMaxCdFrequencyPref;
     private ListPreference mMaxChFrequencyPref;
     private ListPreference mMaxBatFrequencyPref;
+    private CheckBoxPreference mThermalPref;
+    private ListPreference mThermalFrequencyPref;
+    private ListPreference mThermalTripPref;
+    private Preference mThermalStatusPref;
+    private PreferenceCategory mResidencyCategory;
+    private Preference[] mResidencyPrefs;
+    private Preference mGovBenchmarkPref;
 
-    private class CurCPUThread extends Thread {
-        private boolean mInterrupt = false;
+    private static boolean sBenchmarkRunning;
 
-        public void interrupt() {
-            mInterrupt = true;
-        }
+    private boolean mDestroyed;
 
-        @Override
-        public void run() {
-            try {
-                while (!mInterrupt) {
-                    sleep(500);
-                    final String curFreq = readOneLine(FREQ_CUR_FILE);
-                    mCurCPUHandler.sendMessage(mCurCPUHandler.obtainMessage(0, curFreq));
-               }
-            } catch (InterruptedException e) {
-            }
-        }
-    };
+    private CPUPolicyEngine mEngine;
 
-    private CurCPUThread mCurCPUThread = new CurCPUThread();
-	
-    private Handler mCurCPUHandler = new Handler() {
-        public void handleMessage(Message msg) {
-            mCurFrequencyPref.setSummary(toMHz((String) msg.obj));
+    private CPUFreqMonitor.Listener mCurCPUListener = new CPUFreqMonitor.Listener() {
+        public void onFrequencyChanged(int khz) {
+            mCurFrequencyPref.setSummary(khz < 0 ? toMHz(null) : toMHz(String.valueOf(khz)));
         }
     };
 
+    /**
+     * Everything the screen needs from sysfs, read in one background pass.
+     */
+    private static class CPUInfo {
+        String[] governors;
+        String[] frequencies;
+        String[] frequencyNames;
+        String governor;
+        String curFrequency;
+        String minFrequency;
+        String maxFrequency;
+        boolean hasStats;
+    }
+
+    private final Handler mHandler = new Handler();
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        mEngine = CPUPolicyEngine.getInstance();
         mGovernorFormat = getString(R.string.cpu_governors_summary);
         mMinFrequencyFormat = getString(R.string.cpu_min_freq_summary);
         mMaxFrequencyFormat = getString(R.string.cpu_max_freq_summary);
@@ -119,158 +152,393 @@ public class CPUActivity extends PreferenceActivity implements
         mMaxSoFrequencyFormat = getString(R.string.screenoff_cpu_max_freq_summary);
         mMaxChFrequencyFormat = getString(R.string.charger_cpu_max_freq_summary);
         mMaxBatFrequencyFormat = getString(R.string.battery_cpu_max_freq_summary);
-
-        String[] availableGovernors = readOneLine(GOVERNORS_LIST_FILE).split(" ");
-        String[] availableFrequencies = new String[0];
-        String availableFrequenciesLine = readOneLine(FREQ_LIST_FILE);
-        if (availableFrequenciesLine != null)
-             availableFrequencies = availableFrequenciesLine.split(" ");
-        String[] frequencies;
-        String temp;
-
-        frequencies = new String[availableFrequencies.length];
-        for (int i = 0; i < frequencies.length; i++) {
-            frequencies[i] = toMHz(availableFrequencies[i]);
-        }
+        mThermalFrequencyFormat = getString(R.string.cpu_thermal_freq_summary);
 
         setTitle(R.string.cpu_title);
         addPreferencesFromResource(R.xml.cpu_settings);
 
         PreferenceScreen PrefScreen = getPreferenceScreen();
 
-        temp = readOneLine(GOVERNOR);
-
+        /* Show the screen right away, values are bound once loaded */
         mGovernorPref = (ListPreference) PrefScreen.findPreference(GOV_PREF);
-        mGovernorPref.setEntryValues(availableGovernors);
-        mGovernorPref.setEntries(availableGovernors);
-        mGovernorPref.setValue(temp);
-        mGovernorPref.setSummary(String.format(mGovernorFormat, temp));
+        mGovernorPref.setSummary(R.string.cpu_loading);
+        mGovernorPref.setEnabled(false);
         mGovernorPref.setOnPreferenceChangeListener(this);
 
-        /* Some systems might not use governors */
-        if (temp == null) {
-            PrefScreen.removePreference(mGovernorPref);
-        }
-
-        if (!fileExists(FREQ_CUR_FILE)) {
-            FREQ_CUR_FILE = FREQINFO_CUR_FILE;
-        }
-
-        temp = readOneLine(FREQ_CUR_FILE);
-
         mCurFrequencyPref = (Preference) PrefScreen.findPreference(FREQ_CUR_PREF);
-        mCurFrequencyPref.setSummary(toMHz(temp));
-
-        temp = readOneLine(FREQ_MIN_FILE);
+        mCurFrequencyPref.setSummary(R.string.cpu_loading);
 
         mMinFrequencyPref = (ListPreference) PrefScreen.findPreference(MIN_FREQ_PREF);
-        mMinFrequencyPref.setEntryValues(availableFrequencies);
-        mMinFrequencyPref.setEntries(frequencies);
-        mMinFrequencyPref.setValue(temp);
-        mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
+        mMinFrequencyPref.setSummary(R.string.cpu_loading);
         mMinFrequencyPref.setOnPreferenceChangeListener(this);
 
-        temp = prefs.getString(MAX_FREQ_PREF, null);
-
         mMaxFrequencyPref = (ListPreference) PrefScreen.findPreference(MAX_FREQ_PREF);
-        mMaxFrequencyPref.setEntryValues(availableFrequencies);
-        mMaxFrequencyPref.setEntries(frequencies);
-        mMaxFrequencyPref.setValue(temp);
-        mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
+        mMaxFrequencyPref.setSummary(R.string.cpu_loading);
         mMaxFrequencyPref.setOnPreferenceChangeListener(this);
 
-        temp = prefs.getString(CD_MAX_FREQ_PREF, null);
-
         mMaxCdFrequencyPref = (ListPreference) PrefScreen.findPreference(CD_MAX_FREQ_PREF);
-        mMaxCdFrequencyPref.setEntryValues(availableFrequencies);
-        mMaxCdFrequencyPref.setEntries(frequencies);
-        mMaxCdFrequencyPref.setValue(temp);
-        mMaxCdFrequencyPref.setSummary(String.format(mMaxCdFrequencyFormat, toMHz(temp)));
+        mMaxCdFrequencyPref.setSummary(String.format(mMaxCdFrequencyFormat,
+                toMHz(prefs.getString(CD_MAX_FREQ_PREF, null))));
         mMaxCdFrequencyPref.setOnPreferenceChangeListener(this);
-	
-        temp = prefs.getString(SO_MAX_FREQ_PREF, null);
 
         mMaxSoFrequencyPref = (ListPreference) PrefScreen.findPreference(SO_MAX_FREQ_PREF);
-        mMaxSoFrequencyPref.setEntryValues(availableFrequencies);
-        mMaxSoFrequencyPref.setEntries(frequencies);
-        mMaxSoFrequencyPref.setValue(temp);
-        mMaxSoFrequencyPref.setSummary(String.format(mMaxSoFrequencyFormat, toMHz(temp)));
+        mMaxSoFrequencyPref.setSummary(String.format(mMaxSoFrequencyFormat,
+                toMHz(prefs.getString(SO_MAX_FREQ_PREF, null))));
         mMaxSoFrequencyPref.setOnPreferenceChangeListener(this);
 
-        temp = prefs.getString(CH_MAX_FREQ_PREF, null);
-
         mMaxChFrequencyPref = (ListPreference) PrefScreen.findPreference(CH_MAX_FREQ_PREF);
-        mMaxChFrequencyPref.setEntryValues(availableFrequencies);
-        mMaxChFrequencyPref.setEntries(frequencies);
-        mMaxChFrequencyPref.setValue(temp);
-        mMaxChFrequencyPref.setSummary(String.format(mMaxChFrequencyFormat, toMHz(temp)));
+        mMaxChFrequencyPref.setSummary(String.format(mMaxChFrequencyFormat,
+                toMHz(prefs.getString(CH_MAX_FREQ_PREF, null))));
         mMaxChFrequencyPref.setOnPreferenceChangeListener(this);
 
-        temp = prefs.getString(BAT_MAX_FREQ_PREF, null);
-
         mMaxBatFrequencyPref = (ListPreference) PrefScreen.findPreference(BAT_MAX_FREQ_PREF);
-        mMaxBatFrequencyPref.setEntryValues(availableFrequencies);
-        mMaxBatFrequencyPref.setEntries(frequencies);
-        mMaxBatFrequencyPref.setValue(temp);
-        mMaxBatFrequencyPref.setSummary(String.format(mMaxBatFrequencyFormat, toMHz(temp)));
+        mMaxBatFrequencyPref.setSummary(String.format(mMaxBatFrequencyFormat,
+                toMHz(prefs.getString(BAT_MAX_FREQ_PREF, null))));
         mMaxBatFrequencyPref.setOnPreferenceChangeListener(this);
 
-        if (availableFrequenciesLine == null) {
-            mMinFrequencyPref.setEnabled(false);
-            mMaxFrequencyPref.setEnabled(false);
-            mMaxSoFrequencyPref.setEnabled(false);
-            mMaxChFrequencyPref.setEnabled(false);
-            mMaxBatFrequencyPref.setEnabled(false);
-        }
+        mThermalPref = (CheckBoxPreference) PrefScreen.findPreference(THERMAL_PREF);
 
-        mCurCPUThread.start();
+        mThermalFrequencyPref = (ListPreference) PrefScreen.findPreference(THERMAL_FREQ_PREF);
+        mThermalFrequencyPref.setSummary(String.format(mThermalFrequencyFormat,
+                toMHz(prefs.getString(THERMAL_FREQ_PREF, null))));
+        mThermalFrequencyPref.setOnPreferenceChangeListener(this);
 
+        mThermalTripPref = (ListPreference) PrefScreen.findPreference(THERMAL_TRIP_PREF);
+        mThermalTripPref.setSummary(getString(R.string.cpu_thermal_trip_summary,
+                mThermalTripPref.getEntry()));
+        mThermalTripPref.setOnPreferenceChangeListener(this);
+
+        mThermalStatusPref = PrefScreen.findPreference(THERMAL_STATUS_PREF);
+
+        setFrequencyPrefsEnabled(false);
+
+        mResidencyCategory = (PreferenceCategory) PrefScreen.findPreference(RESIDENCY_PREF);
+        String[] profiles = getResources().getStringArray(R.array.cpu_profile_entries);
+        mResidencyPrefs = new Preference[CPUProfileStateMachine.PROFILE_COUNT];
+        for (int i = 0; i < mResidencyPrefs.length; i++) {
+            mResidencyPrefs[i] = new Preference(this);
+            mResidencyPrefs[i].setTitle(profiles[i]);
+            mResidencyPrefs[i].setSummary(R.string.cpu_loading);
+            mResidencyPrefs[i].setSelectable(false);
+            mResidencyCategory.addPreference(mResidencyPrefs[i]);
+        }
+
+        mGovBenchmarkPref = PrefScreen.findPreference(GOV_BENCHMARK_PREF);
+        if (sBenchmarkRunning) {
+            mGovBenchmarkPref.setSummary(R.string.cpu_gov_benchmark_busy);
+        }
     }
 
     @Override
     public void onResume() {
-        String temp;
+        super.onResume();
+
+        CPUFreqMonitor.getInstance().addListener(mCurCPUListener);
+
+        new Thread("CPUInfo") {
+            public void run() {
+                final CPUInfo info = loadCPUInfo();
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (!mDestroyed && !isFinishing()) {
+                            bindCPUInfo(info);
+                        }
+                    }
+                });
+            }
+        }.start();
+    }
+
+    private CPUInfo loadCPUInfo() {
+        CPUInfo info = new CPUInfo();
+        info.governors = mEngine.getAvailableGovernors();
+        info.frequencies = mEngine.getAvailableFrequencies();
+        info.frequencyNames = new String[info.frequencies.length];
+        for (int i = 0; i < info.frequencies.length; i++) {
+            info.frequencyNames[i] = toMHz(info.frequencies[i]);
+        }
+        info.governor = mEngine.getGovernor();
+        info.curFrequency = mEngine.getCurFrequency();
+        info.minFrequency = mEngine.getMinFrequency();
+        info.maxFrequency = mEngine.getMaxFrequency();
+        info.hasStats = DeviceCapabilities.getInstance(this).has(DeviceCapabilities.CAP_CPUFREQ_STATS)
+                && CPUStatsCollector.getInstance(this).snapshot();
+        if (info.hasStats) {
+            CPUReceiver.scheduleStatsSampling(this);
+        }
+        return info;
+    }
+
+    private void bindCPUInfo(CPUInfo info) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        PreferenceScreen PrefScreen = getPreferenceScreen();
+        String temp;
 
-        super.onResume();
+        mGovernorPref.setEntryValues(info.governors);
+        mGovernorPref.setEntries(info.governors);
+        mGovernorPref.setValue(info.governor);
+        mGovernorPref.setSummary(String.format(mGovernorFormat, info.governor));
+        mGovernorPref.setEnabled(!sBenchmarkRunning);
 
-        temp = prefs.getString(MAX_FREQ_PREF, null);
+        /* Some systems might not use governors */
+        if (info.governor == null) {
+            PrefScreen.removePreference(mGovernorPref);
+        }
+
+        if (CPUFreqMonitor.getInstance().getLastValue() < 0) {
+            mCurFrequencyPref.setSummary(toMHz(info.curFrequency));
+        }
+
+        mMinFrequencyPref.setEntryValues(info.frequencies);
+        mMinFrequencyPref.setEntries(info.frequencyNames);
+        mMinFrequencyPref.setValue(info.minFrequency);
+        mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(info.minFrequency)));
 
+        temp = prefs.getString(MAX_FREQ_PREF, null);
         if (temp == null) {
-            temp = readOneLine(FREQ_MAX_FILE);
-            mMaxFrequencyPref.setValue(temp);
-            mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
+            temp = info.maxFrequency;
+        }
+        mMaxFrequencyPref.setEntryValues(info.frequencies);
+        mMaxFrequencyPref.setEntries(info.frequencyNames);
+        mMaxFrequencyPref.setValue(temp);
+        mMaxFrequencyPref.setSummary(String.format(mMaxFrequencyFormat, toMHz(temp)));
+
+        ListPreference[] capPrefs = new ListPreference[] {
+            mMaxCdFrequencyPref, mMaxSoFrequencyPref, mMaxChFrequencyPref, mMaxBatFrequencyPref,
+            mThermalFrequencyPref
+        };
+        for (ListPreference pref : capPrefs) {
+            pref.setEntryValues(info.frequencies);
+            pref.setEntries(info.frequencyNames);
+            pref.setValue(prefs.getString(pref.getKey(), null));
+        }
+
+        setFrequencyPrefsEnabled(info.frequencies.length > 0);
+        updateThermalStatus();
+
+        if (info.hasStats) {
+            updateResidency();
+        } else if (mResidencyCategory != null) {
+            PrefScreen.removePreference(mResidencyCategory);
+            mResidencyCategory = null;
         }
+    }
+
+    private void setFrequencyPrefsEnabled(boolean enabled) {
+        mMinFrequencyPref.setEnabled(enabled);
+        mMaxFrequencyPref.setEnabled(enabled);
+        mMaxSoFrequencyPref.setEnabled(enabled);
+        mMaxCdFrequencyPref.setEnabled(enabled);
+        mMaxChFrequencyPref.setEnabled(enabled);
+        mMaxBatFrequencyPref.setEnabled(enabled);
+        mThermalPref.setEnabled(enabled);
+    }
 
-        temp = readOneLine(FREQ_MIN_FILE);
-        mMinFrequencyPref.setValue(temp);
-        mMinFrequencyPref.setSummary(String.format(mMinFrequencyFormat, toMHz(temp)));
+    private void updateThermalStatus() {
+        ThermalThrottle throttle = CPUReceiver.getThermalThrottle(this);
+        List<ThermalThrottle.Event> events = throttle.getEvents();
+        if (events.isEmpty() && throttle.getLevel() == 0) {
+            mThermalStatusPref.setSummary(R.string.cpu_thermal_status_idle);
+            return;
+        }
+        mThermalStatusPref.setSummary(getString(R.string.cpu_thermal_status_summary,
+                formatTemperature(throttle.getTemperature()), throttle.getLevel(),
+                throttle.getThrottleCount()));
+    }
+
+    private void showThermalEvents() {
+        List<ThermalThrottle.Event> events = CPUReceiver.getThermalThrottle(this).getEvents();
+        StringBuilder message = new StringBuilder();
+        long now = SystemClock.elapsedRealtime();
+        /* Newest first */
+        for (int i = events.size() - 1; i >= 0; i--) {
+            ThermalThrottle.Event event = events.get(i);
+            if (message.length() > 0) {
+                message.append('\n');
+            }
+            message.append(getString(R.string.cpu_thermal_event,
+                    DateUtils.formatElapsedTime((now - event.time) / 1000),
+                    event.fromLevel, event.toLevel, formatTemperature(event.temperature),
+                    toMHz(event.cap)));
+        }
+        if (message.length() == 0) {
+            message.append(getString(R.string.cpu_thermal_no_events));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.cpu_thermal_status_title)
+                .setMessage(message.toString())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
 
-        temp = readOneLine(GOVERNOR);
-        mGovernorPref.setSummary(String.format(mGovernorFormat, temp));
+    private static String formatTemperature(int tenths) {
+        return tenths / 10 + "." + Math.abs(tenths % 10) + " \u00B0C";
+    }
+
+    /**
+     * Shows the residency collected so far; expects a fresh snapshot.
+     */
+    private void updateResidency() {
+        CPUStatsCollector collector = CPUStatsCollector.getInstance(this);
+
+        if (mResidencyCategory == null) {
+            return;
+        }
+
+        long[] frequencies = collector.getFrequencies();
+        for (int profile = 0; profile < mResidencyPrefs.length; profile++) {
+            long[] residency = collector.getResidency(profile);
+            long total = 0;
+            for (long time : residency) {
+                total += time;
+            }
+            if (total == 0) {
+                mResidencyPrefs[profile].setSummary(R.string.cpu_residency_empty);
+                continue;
+            }
+
+            StringBuilder summary = new StringBuilder();
+            for (int i = frequencies.length - 1; i >= 0; i--) {
+                if (residency[i] == 0) {
+                    continue;
+                }
+                summary.append(toMHz(String.valueOf(frequencies[i])))
+                        .append(": ").append(residency[i] * 100 / total).append("%\n");
+            }
+            summary.append(getString(R.string.cpu_residency_transitions,
+                    collector.getTransitions(profile)));
+            mResidencyPrefs[profile].setSummary(summary.toString());
+        }
     }
 
     @Override
-    public void onDestroy() {
+    public void onPause() {
+        super.onPause();
+        CPUFreqMonitor.getInstance().removeListener(mCurCPUListener);
+        /* Profile preferences are saved by now */
+        CPUProfileService.update(this);
+    }
+
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
         super.onDestroy();
-        mCurCPUThread.interrupt();
-        try {
-            mCurCPUThread.join();
-        } catch (InterruptedException e) {
+    }
+
+    @Override
+    public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+        if (preference == mGovBenchmarkPref) {
+            runGovernorBenchmark();
+            return true;
+        }
+        if (preference == mThermalPref) {
+            CPUReceiver.setThermalEnabled(this, mThermalPref.isChecked());
+            updateThermalStatus();
+            return true;
         }
+        if (preference == mThermalStatusPref) {
+            showThermalEvents();
+            return true;
+        }
+        return false;
     }
 
-    public boolean onPreferenceChange(Preference preference, Object newValue) {
-        String fname = "";
+    /**
+     * Runs the workload under every governor, then switches back to the
+     * governor in use before and shows the ranking.
+     */
+    private void runGovernorBenchmark() {
+        synchronized (CPUActivity.class) {
+            if (sBenchmarkRunning) {
+                return;
+            }
+            sBenchmarkRunning = true;
+        }
+        mGovernorPref.setEnabled(false);
+
+        new Thread("GovernorBenchmark") {
+            public void run() {
+                String original = mEngine.getGovernor();
+                GovernorBenchmark benchmark = new GovernorBenchmark(new CPUGovernorPlatform(mEngine));
+                final List<GovernorBenchmark.Result> results;
+                try {
+                    results = benchmark.run(mEngine.getAvailableGovernors(),
+                            new GovernorBenchmark.Listener() {
+                        public void onGovernorStarted(final String governor, final int index,
+                                final int count) {
+                            mHandler.post(new Runnable() {
+                                public void run() {
+                                    mGovBenchmarkPref.setSummary(getString(
+                                            R.string.cpu_gov_benchmark_progress,
+                                            governor, index + 1, count));
+                                }
+                            });
+                        }
+                    });
+                } finally {
+                    if (original != null) {
+                        mEngine.setGovernor(original);
+                    }
+                    synchronized (CPUActivity.class) {
+                        sBenchmarkRunning = false;
+                    }
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        /* Recreated or closed while measuring */
+                        if (mDestroyed || isFinishing()) {
+                            return;
+                        }
+                        mGovernorPref.setEnabled(true);
+                        mGovBenchmarkPref.setSummary(R.string.cpu_gov_benchmark_summary);
+                        Bundle args = new Bundle();
+                        args.putString(EXTRA_RANKING, getGovernorRanking(results));
+                        showDialog(DIALOG_GOV_RANKING, args);
+                    }
+                });
+            }
+        }.start();
+    }
 
+    @Override
+    protected Dialog onCreateDialog(int id, Bundle args) {
+        if (id == DIALOG_GOV_RANKING) {
+            return new AlertDialog.Builder(this)
+                    .setTitle(R.string.cpu_gov_benchmark_title)
+                    .setMessage(args.getString(EXTRA_RANKING))
+                    .setPositiveButton(android.R.string.ok, null)
+                    .create();
+        }
+        return super.onCreateDialog(id, args);
+    }
+
+    @Override
+    protected void onPrepareDialog(int id, Dialog dialog, Bundle args) {
+        if (id == DIALOG_GOV_RANKING) {
+            ((AlertDialog) dialog).setMessage(args.getString(EXTRA_RANKING));
+        }
+        super.onPrepareDialog(id, dialog, args);
+    }
+
+    private String getGovernorRanking(List<GovernorBenchmark.Result> results) {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < results.size(); i++) {
+            GovernorBenchmark.Result result = results.get(i);
+            if (i > 0) {
+                message.append("\n\n");
+            }
+            message.append(getString(R.string.cpu_gov_benchmark_result, i + 1, result.governor,
+                    result.burstMedian / 1000, result.burstP90 / 1000,
+                    result.sustained / 1000, result.energy));
+        }
+        return message.toString();
+    }
+
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
         if (newValue != null) {
-            if (preference == mGovernorPref) {
-                fname = GOVERNOR;
-            } else if (preference == mMinFrequencyPref) {
-                fname = FREQ_MIN_FILE;
-            } else if (preference == mMaxFrequencyPref) {
-                fname = FREQ_MAX_FILE;
-            } if (preference == mMaxCdFrequencyPref) {
+            boolean applied;
+
+            if (preference == mMaxCdFrequencyPref) {
                 mMaxCdFrequencyPref.setSummary(String.format(mMaxCdFrequencyFormat,
                         toMHz((String) newValue)));
                 return true;
@@ -286,9 +554,29 @@ public class CPUActivity extends PreferenceActivity implements
                 mMaxBatFrequencyPref.setSummary(String.format(mMaxBatFrequencyFormat,
                         toMHz((String) newValue)));
                 return true;
+            } else if (preference == mThermalFrequencyPref) {
+                mThermalFrequencyPref.setSummary(String.format(mThermalFrequencyFormat,
+                        toMHz((String) newValue)));
+                return true;
+            } else if (preference == mThermalTripPref) {
+                int index = mThermalTripPref.findIndexOfValue((String) newValue);
+                mThermalTripPref.setSummary(getString(R.string.cpu_thermal_trip_summary,
+                        mThermalTripPref.getEntries()[index]));
+                return true;
             }
 
-            if (writeOneLine(fname, (String) newValue)) {
+            if (preference == mGovernorPref) {
+                applied = mEngine.setGovernor((String) newValue);
+            } else if (preference == mMinFrequencyPref) {
+                applied = mEngine.setMinFrequency((String) newValue);
+            } else if (preference == mMaxFrequencyPref) {
+                /* Another profile may be capping right now, let the state machine decide */
+                applied = CPUReceiver.setDefaultMaxFrequency(this, (String) newValue);
+            } else {
+                return false;
+            }
+
+            if (applied) {
                 if (preference == mGovernorPref) {
                     mGovernorPref.setSummary(String.format(mGovernorFormat, (String) newValue));
                 } else if (preference == mMinFrequencyPref) {
@@ -323,20 +611,12 @@ public class CPUActivity extends PreferenceActivity implements
         return line;
     }
 
+    /**
+     * Writes and verifies a value right away. Prefer queueing through
+     * SysfsWriter.write() when the caller doesn't need the result.
+     */
     public static boolean writeOneLine(String fname, String value) {
-        try {
-            FileWriter fw = new FileWriter(fname);
-            try {
-                fw.write(value);
-            } finally {
-                fw.close();
-            }
-        } catch (IOException e) {
-            String Error = "Error writing to " + fname + ". Exception: ";
-            Log.e(TAG, Error, e);
-            return false;
-        }
-        return true;
+        return SysfsWriter.getInstance().writeSync(fname, value);
     }
 
     public static boolean fileExists(String filename) {
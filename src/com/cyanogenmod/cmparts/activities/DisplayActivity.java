@@ -17,6 +17,7 @@
 package com.cyanogenmod.cmparts.activities;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.SettingsSnapshot;
 
 import android.content.res.Resources;
 import android.content.Context;
@@ -79,6 +80,10 @@ public class DisplayActivity extends PreferenceActivity implements OnPreferenceC
         addPreferencesFromResource(R.xml.display_settings);
 
         PreferenceScreen prefSet = getPreferenceScreen();
+        SettingsSnapshot settings = SettingsSnapshot.system(getContentResolver(),
+                Settings.System.ELECTRON_BEAM_ANIMATION_ON,
+                Settings.System.ELECTRON_BEAM_ANIMATION_OFF,
+                Settings.System.ACCELEROMETER_ROTATION_MODE);
 
         Resources res = getResources();
 
@@ -94,11 +99,9 @@ public class DisplayActivity extends PreferenceActivity implements OnPreferenceC
         mElectronBeamAnimationOn = (CheckBoxPreference)prefSet.findPreference(ELECTRON_BEAM_ANIMATION_ON);
         mElectronBeamAnimationOff = (CheckBoxPreference)prefSet.findPreference(ELECTRON_BEAM_ANIMATION_OFF);
         if (res.getBoolean(com.android.internal.R.bool.config_enableScreenAnimation)) {
-            mElectronBeamAnimationOn.setChecked(Settings.System.getInt(getContentResolver(),
-                    Settings.System.ELECTRON_BEAM_ANIMATION_ON,
+            mElectronBeamAnimationOn.setChecked(settings.getInt(Settings.System.ELECTRON_BEAM_ANIMATION_ON,
                     res.getBoolean(com.android.internal.R.bool.config_enableScreenOnAnimation) ? 1 : 0) == 1);
-            mElectronBeamAnimationOff.setChecked(Settings.System.getInt(getContentResolver(),
-                    Settings.System.ELECTRON_BEAM_ANIMATION_OFF,
+            mElectronBeamAnimationOff.setChecked(settings.getInt(Settings.System.ELECTRON_BEAM_ANIMATION_OFF,
                     res.getBoolean(com.android.internal.R.bool.config_enableScreenOffAnimation) ? 1 : 0) == 1);
         } else {
             /* Hide Electron Beam controls if disabled */
@@ -117,8 +120,7 @@ public class DisplayActivity extends PreferenceActivity implements OnPreferenceC
         mRotation90Pref = (CheckBoxPreference) prefSet.findPreference(ROTATION_90_PREF);
         mRotation180Pref = (CheckBoxPreference) prefSet.findPreference(ROTATION_180_PREF);
         mRotation270Pref = (CheckBoxPreference) prefSet.findPreference(ROTATION_270_PREF);
-        int mode = Settings.System.getInt(getContentResolver(),
-                        Settings.System.ACCELEROMETER_ROTATION_MODE,
+        int mode = settings.getInt(Settings.System.ACCELEROMETER_ROTATION_MODE,
                         ROTATION_0_MODE|ROTATION_90_MODE|ROTATION_270_MODE);
         mRotation0Pref.setChecked((mode & ROTATION_0_MODE) != 0);
         mRotation90Pref.setChecked((mode & ROTATION_90_MODE) != 0);
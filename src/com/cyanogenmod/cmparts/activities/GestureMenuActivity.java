@@ -17,6 +17,7 @@
 package com.cyanogenmod.cmparts.activities;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.SettingsCommitQueue;
 
 import android.content.Context;
 import android.content.Intent;
@@ -49,6 +50,8 @@ public class GestureMenuActivity extends PreferenceActivity
     private ListPreference mGesturesSensitivity;
     private Preference mGesturesColor;
 
+    private SettingsCommitQueue mSettingsQueue;
+
     public static boolean updatePreferenceToSpecificActivityOrRemove(Context context,
             PreferenceGroup parentPreferenceGroup, String preferenceKey, int flags) {
 
@@ -82,6 +85,7 @@ public class GestureMenuActivity extends PreferenceActivity
     public void onCreate(Bundle icicle) {
         super.onCreate(icicle);
         addPreferencesFromResource(R.xml.gesture_settings);
+        mSettingsQueue = SettingsCommitQueue.system(getContentResolver());
         PreferenceScreen prefSet = getPreferenceScreen();
         mGesturesEnable = (CheckBoxPreference) prefSet.findPreference(LOCKSCREEN_GESTURES_ENABLE);
         mGesturesTrail = (CheckBoxPreference) prefSet.findPreference(LOCKSCREEN_GESTURES_TRAIL);
@@ -93,15 +97,16 @@ public class GestureMenuActivity extends PreferenceActivity
         mGesturesColor.setSummary(Integer.toHexString(getGestureColor()));
     }
 
+    /*
+     * Through the queue, which still holds values not yet written when the
+     * screen comes back quickly.
+     */
     private void updateToggles() {
-            mGesturesEnable.setChecked(Settings.System.getInt(
-                    getContentResolver(),
+            mGesturesEnable.setChecked(mSettingsQueue.getInt(
                     Settings.System.LOCKSCREEN_GESTURES_ENABLED, 0) != 0);
-            mGesturesTrail.setChecked(Settings.System.getInt(
-                    getContentResolver(),
+            mGesturesTrail.setChecked(mSettingsQueue.getInt(
                     Settings.System.LOCKSCREEN_GESTURES_TRAIL, 0) != 0);
-            mGesturesSensitivity.setValue(Integer.toString(Settings.System.getInt(
-                    getContentResolver(),
+            mGesturesSensitivity.setValue(Integer.toString(mSettingsQueue.getInt(
                     Settings.System.LOCKSCREEN_GESTURES_SENSITIVITY, 3)));
             mGesturesSensitivity.setSummary(mGesturesSensitivity.getEntry());
             mGesturesColor.setSummary(Integer.toHexString(getGestureColor()));
@@ -123,30 +128,26 @@ public class GestureMenuActivity extends PreferenceActivity
 
     public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
         if (LOCKSCREEN_GESTURES_ENABLE.equals(key)) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LOCKSCREEN_GESTURES_ENABLED,
+            mSettingsQueue.putInt(Settings.System.LOCKSCREEN_GESTURES_ENABLED,
                     mGesturesEnable.isChecked() ? 1 : 0);
         } else if (LOCKSCREEN_GESTURES_TRAIL.equals(key)) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LOCKSCREEN_GESTURES_TRAIL,
+            mSettingsQueue.putInt(Settings.System.LOCKSCREEN_GESTURES_TRAIL,
                     mGesturesTrail.isChecked() ? 1 : 0);
         } else if (LOCKSCREEN_GESTURES_SENSITIVITY.equals(key)) {
-            Settings.System.putInt(getContentResolver(),
-                    Settings.System.LOCKSCREEN_GESTURES_SENSITIVITY,
+            mSettingsQueue.putInt(Settings.System.LOCKSCREEN_GESTURES_SENSITIVITY,
                     Integer.parseInt(mGesturesSensitivity.getValue()));
             mGesturesSensitivity.setSummary(mGesturesSensitivity.getEntry());
         }
     }
 
     private int getGestureColor() {
-        return Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_GESTURES_COLOR, 0xFFFFFF00);
+        return mSettingsQueue.getInt(Settings.System.LOCKSCREEN_GESTURES_COLOR, 0xFFFFFF00);
     }
 
     ColorPickerDialog.OnColorChangedListener mGesturesColorListener =
         new ColorPickerDialog.OnColorChangedListener() {
             public void colorChanged(int color) {
-                Settings.System.putInt(getContentResolver(), Settings.System.LOCKSCREEN_GESTURES_COLOR, color);
+                mSettingsQueue.putInt(Settings.System.LOCKSCREEN_GESTURES_COLOR, color);
                 mGesturesColor.setSummary(Integer.toHexString(color));
             }
             public void colorUpdate(int color) {
@@ -158,4 +159,10 @@ public class GestureMenuActivity extends PreferenceActivity
         super.onResume();
         updateToggles();
     }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mSettingsQueue.commit();
+    }
 }
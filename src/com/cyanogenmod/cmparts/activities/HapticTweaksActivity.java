@@ -17,6 +17,7 @@
 package com.cyanogenmod.cmparts.activities;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.SettingsSnapshot;
 
 import android.content.Context;
 import android.content.Intent;
@@ -117,11 +118,14 @@ public class HapticTweaksActivity extends PreferenceActivity
     }
 
     private void updateToggles() {
-        mHapticFeedbackPref.setChecked(Settings.System.getInt(getContentResolver(),
+        SettingsSnapshot settings = SettingsSnapshot.system(getContentResolver(),
+                Settings.System.HAPTIC_FEEDBACK_ENABLED, Settings.System.HAPTIC_FEEDBACK_UP_ENABLED,
+                Settings.System.HAPTIC_FEEDBACK_ALL_ENABLED);
+        mHapticFeedbackPref.setChecked(settings.getInt(
                 Settings.System.HAPTIC_FEEDBACK_ENABLED, 0) != 0);
-        mHapticFeedbackUpPref.setChecked(Settings.System.getInt(getContentResolver(),
+        mHapticFeedbackUpPref.setChecked(settings.getInt(
                 Settings.System.HAPTIC_FEEDBACK_UP_ENABLED, 0) != 0);
-        mHapticFeedbackAllPref.setChecked(Settings.System.getInt(getContentResolver(),
+        mHapticFeedbackAllPref.setChecked(settings.getInt(
                 Settings.System.HAPTIC_FEEDBACK_ALL_ENABLED, 0) != 0);
     }
 
@@ -30,6 +30,8 @@ import android.preference.PreferenceScreen;
 import android.provider.Settings;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.SettingsCommitQueue;
+import com.cyanogenmod.cmparts.utils.SettingsSnapshot;
 import com.cyanogenmod.cmparts.utils.ShortcutPickHelper;
 
 public class InputActivity extends PreferenceActivity implements ShortcutPickHelper.OnPickListener {
@@ -84,6 +86,8 @@ public class InputActivity extends PreferenceActivity implements ShortcutPickHel
 
     private ShortcutPickHelper mPicker;
 
+    private SettingsCommitQueue mSettingsQueue;
+
     private int mKeyNumber = 1;
 
     @Override
@@ -94,29 +98,29 @@ public class InputActivity extends PreferenceActivity implements ShortcutPickHel
         addPreferencesFromResource(R.xml.input_settings);
 
         PreferenceScreen prefSet = getPreferenceScreen();
+        mSettingsQueue = SettingsCommitQueue.system(getContentResolver());
+        SettingsSnapshot settings = SettingsSnapshot.system(getContentResolver(),
+                Settings.System.VIBRATE_ON_SHUTDOWN, Settings.System.TRACKBALL_WAKE_SCREEN,
+                Settings.System.VOLUME_WAKE_SCREEN, Settings.System.VOLBTN_MUSIC_CONTROLS,
+                Settings.System.CAMBTN_MUSIC_CONTROLS);
 
         /* Vibrate on shutdown */
         mVibrateOnShutdownPref = (CheckBoxPreference) prefSet.findPreference(VIBRATE_SHUTDOWN_PREF);
-        mVibrateOnShutdownPref.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.VIBRATE_ON_SHUTDOWN, 1) == 1);
+        mVibrateOnShutdownPref.setChecked(settings.getInt(Settings.System.VIBRATE_ON_SHUTDOWN, 1) == 1);
 
         /* Trackball Wake */
         mTrackballWakePref = (CheckBoxPreference) prefSet.findPreference(TRACKBALL_WAKE_PREF);
-        mTrackballWakePref.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.TRACKBALL_WAKE_SCREEN, 1) == 1);
+        mTrackballWakePref.setChecked(settings.getInt(Settings.System.TRACKBALL_WAKE_SCREEN, 1) == 1);
 
         /* Volume Wake */
         mVolumeWakePref = (CheckBoxPreference) prefSet.findPreference(VOLUME_WAKE_PREF);
-        mVolumeWakePref.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.VOLUME_WAKE_SCREEN, 0) == 1);
+        mVolumeWakePref.setChecked(settings.getInt(Settings.System.VOLUME_WAKE_SCREEN, 0) == 1);
 
         /* Volume button music controls */
         mVolBtnMusicCtrlPref = (CheckBoxPreference) prefSet.findPreference(VOLBTN_MUSIC_CTRL_PREF);
-        mVolBtnMusicCtrlPref.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.VOLBTN_MUSIC_CONTROLS, 1) == 1);
+        mVolBtnMusicCtrlPref.setChecked(settings.getInt(Settings.System.VOLBTN_MUSIC_CONTROLS, 1) == 1);
         mCamBtnMusicCtrlPref = (CheckBoxPreference) prefSet.findPreference(CAMBTN_MUSIC_CTRL_PREF);
-        mCamBtnMusicCtrlPref.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.CAMBTN_MUSIC_CONTROLS, 0) == 1);
+        mCamBtnMusicCtrlPref.setChecked(settings.getInt(Settings.System.CAMBTN_MUSIC_CONTROLS, 0) == 1);
 
         /* Backtrack Minipad */
         mBackTrackPref = (CheckBoxPreference) prefSet.findPreference(BACKTRACK_MINIPAD_PREF);
@@ -174,6 +178,12 @@ public class InputActivity extends PreferenceActivity implements ShortcutPickHel
         setAppSummary(mUserDefinedExplorerKeyPref, Settings.System.USER_DEFINED_KEY_EXPLORER);
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        mSettingsQueue.commit();
+    }
+
     private void setAppSummary(Preference pref, String key) {
         String value = Settings.System.getString(getContentResolver(), key);
         pref.setSummary(mPicker.getFriendlyNameForUri(value));
@@ -189,27 +199,27 @@ public class InputActivity extends PreferenceActivity implements ShortcutPickHel
         boolean value;
         if (preference == mVibrateOnShutdownPref) {
             value = mVibrateOnShutdownPref.isChecked();
-            Settings.System.putInt(getContentResolver(), Settings.System.VIBRATE_ON_SHUTDOWN,
+            mSettingsQueue.putInt(Settings.System.VIBRATE_ON_SHUTDOWN,
                     value ? 1 : 0);
             return true;
         } else if (preference == mTrackballWakePref) {
             value = mTrackballWakePref.isChecked();
-            Settings.System.putInt(getContentResolver(), Settings.System.TRACKBALL_WAKE_SCREEN,
+            mSettingsQueue.putInt(Settings.System.TRACKBALL_WAKE_SCREEN,
                     value ? 1 : 0);
             return true;
         } else if (preference == mVolumeWakePref) {
             value = mVolumeWakePref.isChecked();
-            Settings.System.putInt(getContentResolver(), Settings.System.VOLUME_WAKE_SCREEN,
+            mSettingsQueue.putInt(Settings.System.VOLUME_WAKE_SCREEN,
                     value ? 1 : 0);
             return true;
         } else if (preference == mVolBtnMusicCtrlPref) {
             value = mVolBtnMusicCtrlPref.isChecked();
-            Settings.System.putInt(getContentResolver(), Settings.System.VOLBTN_MUSIC_CONTROLS,
+            mSettingsQueue.putInt(Settings.System.VOLBTN_MUSIC_CONTROLS,
                     value ? 1 : 0);
             return true;
         } else if (preference == mCamBtnMusicCtrlPref) {
             value = mCamBtnMusicCtrlPref.isChecked();
-            Settings.System.putInt(getContentResolver(), Settings.System.CAMBTN_MUSIC_CONTROLS,
+            mSettingsQueue.putInt(Settings.System.CAMBTN_MUSIC_CONTROLS,
                     value ? 1 : 0);
             return true;
         } else if (preference == mUserDefinedKey1Pref) {
@@ -270,6 +280,7 @@ public class InputActivity extends PreferenceActivity implements ShortcutPickHel
                 return;
         }
 
+        /* Written right away, onResume reads it back for the summaries */
         if (Settings.System.putString(getContentResolver(), key, uri)) {
             pref.setSummary(friendlyName);
         }
@@ -17,10 +17,10 @@
 package com.cyanogenmod.cmparts.activities;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.SettingsCommitQueue;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.ContentResolver;
 import android.content.DialogInterface;
 import android.content.res.Configuration;
 import android.hardware.Sensor;
@@ -75,9 +75,12 @@ public class LightLevelsActivity extends Activity implements OnClickListener {
 
     private Handler mHandler;
 
+    private SettingsCommitQueue mSettingsQueue;
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mSettingsQueue = SettingsCommitQueue.system(getContentResolver());
         setTitle(R.string.ll_title);
         setContentView(R.layout.lightlevels);
 
@@ -144,6 +147,7 @@ public class LightLevelsActivity extends Activity implements OnClickListener {
     public void onPause() {
         super.onPause();
         mHandler.removeCallbacks(mUpdateTask);
+        mSettingsQueue.commit();
     }
 
     @Override
@@ -271,17 +275,17 @@ public class LightLevelsActivity extends Activity implements OnClickListener {
     private void loadData(boolean defaults) {
         if (!defaults) {
             try {
-                ContentResolver cr = getContentResolver();
-                mLevels = parseIntArray(Settings.System.getString(cr,
+                /* Through the queue, a save may not be committed yet */
+                mLevels = parseIntArray(mSettingsQueue.getString(
                         Settings.System.LIGHT_SENSOR_LEVELS));
 
-                mLcdValues = parseIntArray(Settings.System.getString(cr,
+                mLcdValues = parseIntArray(mSettingsQueue.getString(
                         Settings.System.LIGHT_SENSOR_LCD_VALUES));
 
-                mBtnValues = parseIntArray(Settings.System.getString(cr,
+                mBtnValues = parseIntArray(mSettingsQueue.getString(
                         Settings.System.LIGHT_SENSOR_BUTTON_VALUES));
 
-                mKbValues = parseIntArray(Settings.System.getString(cr,
+                mKbValues = parseIntArray(mSettingsQueue.getString(
                         Settings.System.LIGHT_SENSOR_KEYBOARD_VALUES));
 
                 // Sanity check
@@ -334,17 +338,16 @@ public class LightLevelsActivity extends Activity implements OnClickListener {
             }
         }
         if (doSave) {
-            Settings.System.putString(getContentResolver(), Settings.System.LIGHT_SENSOR_LEVELS,
+            mSettingsQueue.putString(Settings.System.LIGHT_SENSOR_LEVELS,
                     intArrayToString(mLevels));
-            Settings.System.putString(getContentResolver(),
-                    Settings.System.LIGHT_SENSOR_LCD_VALUES, intArrayToString(mLcdValues));
-            Settings.System.putString(getContentResolver(),
-                    Settings.System.LIGHT_SENSOR_BUTTON_VALUES, intArrayToString(mBtnValues));
-            Settings.System.putString(getContentResolver(),
-                    Settings.System.LIGHT_SENSOR_KEYBOARD_VALUES, intArrayToString(mKbValues));
-            long tag = Settings.System.getLong(getContentResolver(),
-                    Settings.System.LIGHTS_CHANGED, 0) + 1;
-            Settings.System.putLong(getContentResolver(), Settings.System.LIGHTS_CHANGED, tag);
+            mSettingsQueue.putString(Settings.System.LIGHT_SENSOR_LCD_VALUES,
+                    intArrayToString(mLcdValues));
+            mSettingsQueue.putString(Settings.System.LIGHT_SENSOR_BUTTON_VALUES,
+                    intArrayToString(mBtnValues));
+            mSettingsQueue.putString(Settings.System.LIGHT_SENSOR_KEYBOARD_VALUES,
+                    intArrayToString(mKbValues));
+            mSettingsQueue.bumpLightsChanged();
+            mSettingsQueue.commit();
 
             mHasChanges = false;
             mSave.setEnabled(mHasChanges);
@@ -43,6 +43,7 @@ import android.provider.CmSystem.RotaryStyle;
 import android.provider.CmSystem.RinglockStyle;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.SettingsSnapshot;
 import com.cyanogenmod.cmparts.utils.ShortcutPickHelper;
 
 import java.io.File;
@@ -160,12 +161,20 @@ public class LockscreenStyleActivity extends PreferenceActivity implements
         addPreferencesFromResource(R.xml.lockscreen_style_settings);
 
         PreferenceScreen prefSet = getPreferenceScreen();
+        SettingsSnapshot settings = SettingsSnapshot.system(getContentResolver(),
+                Settings.System.LOCKSCREEN_STYLE_PREF, Settings.System.IN_CALL_STYLE_PREF,
+                Settings.System.ROTARY_STYLE_PREF, Settings.System.RINGLOCK_STYLE_PREF,
+                Settings.System.LOCKSCREEN_RING_UNLOCK_MIDDLE,
+                Settings.System.LOCKSCREEN_RING_MINIMAL,
+                Settings.System.LOCKSCREEN_ROTARY_UNLOCK_DOWN,
+                Settings.System.LOCKSCREEN_ROTARY_HIDE_ARROWS,
+                Settings.System.LOCKSCREEN_CUSTOM_APP_TOGGLE,
+                Settings.System.LOCKSCREEN_CUSTOM_ICON_STYLE);
 
         /* Lockscreen Style */
         mLockscreenStylePref = (ListPreference) prefSet.findPreference(LOCKSCREEN_STYLE_PREF);
         mLockscreenStyle = LockscreenStyle.getStyleById(
-                Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_STYLE_PREF, LockscreenStyle.getIdByStyle(LockscreenStyle.Lense)));
+                settings.getInt(Settings.System.LOCKSCREEN_STYLE_PREF, LockscreenStyle.getIdByStyle(LockscreenStyle.Lense)));
         mLockscreenStylePref.setValue(String.valueOf(LockscreenStyle.getIdByStyle(mLockscreenStyle)));
         mLockscreenStylePref.setOnPreferenceChangeListener(this);
 
@@ -179,57 +188,48 @@ public class LockscreenStyleActivity extends PreferenceActivity implements
         /* Incall Style */
         mInCallStylePref = (ListPreference) prefSet.findPreference(IN_CALL_STYLE_PREF);
         mInCallStyle = InCallStyle.getStyleById(
-                Settings.System.getInt(getContentResolver(),
-                Settings.System.IN_CALL_STYLE_PREF, InCallStyle.getIdByStyle(InCallStyle.Ring)));
+                settings.getInt(Settings.System.IN_CALL_STYLE_PREF, InCallStyle.getIdByStyle(InCallStyle.Ring)));
         mInCallStylePref.setValue(String.valueOf(InCallStyle.getIdByStyle(mInCallStyle)));
         mInCallStylePref.setOnPreferenceChangeListener(this);
 
         /* Rotary Style */
         mRotaryStylePref = (ListPreference) prefSet.findPreference(ROTARY_STYLE_PREF);
         mRotaryStyle = RotaryStyle.getStyleById(
-                Settings.System.getInt(getContentResolver(),
-                Settings.System.ROTARY_STYLE_PREF, RotaryStyle.getIdByStyle(RotaryStyle.Normal)));
+                settings.getInt(Settings.System.ROTARY_STYLE_PREF, RotaryStyle.getIdByStyle(RotaryStyle.Normal)));
         mRotaryStylePref.setValue(String.valueOf(RotaryStyle.getIdByStyle(mRotaryStyle)));
         mRotaryStylePref.setOnPreferenceChangeListener(this);
 
         /* Ringlock Style */
         mRinglockStylePref = (ListPreference) prefSet.findPreference(RINGLOCK_STYLE_PREF);
         mRinglockStyle = RinglockStyle.getStyleById(
-                Settings.System.getInt(getContentResolver(),
-                Settings.System.RINGLOCK_STYLE_PREF, RinglockStyle.getIdByStyle(RinglockStyle.Bubble)));
+                settings.getInt(Settings.System.RINGLOCK_STYLE_PREF, RinglockStyle.getIdByStyle(RinglockStyle.Bubble)));
         mRinglockStylePref.setValue(String.valueOf(RinglockStyle.getIdByStyle(mRinglockStyle)));
         mRinglockStylePref.setOnPreferenceChangeListener(this);
 
         mRingUnlockMiddleToggle = (CheckBoxPreference) prefSet
                 .findPreference(LOCKSCREEN_RING_UNLOCK_MIDDLE_TOGGLE);
-        mRingUnlockMiddleToggle.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_RING_UNLOCK_MIDDLE, 0) == 1);
+        mRingUnlockMiddleToggle.setChecked(settings.getInt(Settings.System.LOCKSCREEN_RING_UNLOCK_MIDDLE, 0) == 1);
 
         mRingMinimalToggle = (CheckBoxPreference) prefSet
                 .findPreference(LOCKSCREEN_RING_MINIMAL_TOGGLE);
-        mRingMinimalToggle.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_RING_MINIMAL, 0) == 1);
+        mRingMinimalToggle.setChecked(settings.getInt(Settings.System.LOCKSCREEN_RING_MINIMAL, 0) == 1);
 
         /* Rotary related options */
         mRotaryUnlockDownToggle = (CheckBoxPreference) prefSet
                 .findPreference(LOCKSCREEN_ROTARY_UNLOCK_DOWN_TOGGLE);
-        mRotaryUnlockDownToggle.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_ROTARY_UNLOCK_DOWN, 0) == 1);
+        mRotaryUnlockDownToggle.setChecked(settings.getInt(Settings.System.LOCKSCREEN_ROTARY_UNLOCK_DOWN, 0) == 1);
 
         mRotaryHideArrowsToggle = (CheckBoxPreference) prefSet
                 .findPreference(LOCKSCREEN_ROTARY_HIDE_ARROWS_TOGGLE);
-        mRotaryHideArrowsToggle.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_ROTARY_HIDE_ARROWS, 0) == 1);
+        mRotaryHideArrowsToggle.setChecked(settings.getInt(Settings.System.LOCKSCREEN_ROTARY_HIDE_ARROWS, 0) == 1);
 
         mCustomAppTogglePref = (CheckBoxPreference) prefSet
                 .findPreference(LOCKSCREEN_CUSTOM_APP_TOGGLE);
-        mCustomAppTogglePref.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_CUSTOM_APP_TOGGLE, 0) == 1);
+        mCustomAppTogglePref.setChecked(settings.getInt(Settings.System.LOCKSCREEN_CUSTOM_APP_TOGGLE, 0) == 1);
 
         mCustomIconStyle = (CheckBoxPreference) prefSet
                 .findPreference(LOCKSCREEN_CUSTOM_ICON_STYLE);
-        mCustomIconStyle.setChecked(Settings.System.getInt(getContentResolver(),
-                Settings.System.LOCKSCREEN_CUSTOM_ICON_STYLE, 1) == 2);
+        mCustomIconStyle.setChecked(settings.getInt(Settings.System.LOCKSCREEN_CUSTOM_ICON_STYLE, 1) == 2);
 
         mCustomAppActivityPref = prefSet
                 .findPreference(LOCKSCREEN_CUSTOM_APP_ACTIVITY);
@@ -18,10 +18,23 @@ package com.cyanogenmod.cmparts.activities;
 
 import com.cyanogenmod.cmparts.R;
 import com.cyanogenmod.cmparts.activities.CPUActivity;
+import com.cyanogenmod.cmparts.intents.LowMemoryReceiver;
+import com.cyanogenmod.cmparts.utils.BlockDeviceManager;
+import com.cyanogenmod.cmparts.utils.DeviceCapabilities;
+import com.cyanogenmod.cmparts.utils.KSMSampler;
+import com.cyanogenmod.cmparts.utils.PerformancePreset;
+import com.cyanogenmod.cmparts.utils.PresetEngine;
+import com.cyanogenmod.cmparts.utils.RestorePipeline;
+import com.cyanogenmod.cmparts.utils.SysfsWriter;
+import com.cyanogenmod.cmparts.utils.ZramManager;
 
 import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.SystemProperties;
 import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
@@ -30,24 +43,34 @@ import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
+import android.text.format.DateFormat;
+import android.util.Log;
+import android.widget.Toast;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Performance Settings
  */
 public class PerformanceSettingsActivity extends PreferenceActivity implements Preference.OnPreferenceChangeListener {
 
-    private static final String COMPCACHE_PREF = "pref_compcache_size";
+    private static final String TAG = "PerformanceSettings";
+
+    public static final String COMPCACHE_PREF = "pref_compcache_size";
 
     private static final String COMPCACHE_PERSIST_PROP = "persist.service.compcache";
 
     private static final String COMPCACHE_DEFAULT = SystemProperties.get("ro.compcache.default");
 
+    private static final String COMPCACHE_STATS_PREF = "pref_compcache_stats";
+
     private static final String GENERAL_CATEGORY = "general_category";
 
     private static final String JIT_PREF = "pref_jit_mode";
@@ -144,11 +167,24 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
 
     public static final String KSM_SCAN_PREF_DEFAULT = "128";
 
+    private static final String KSM_AUTOTUNE_PREF = "pref_ksm_autotune";
+
+    private static final String KSM_STATS_PREF = "pref_ksm_stats";
+
+    private static final long STATS_SAMPLE_INTERVAL = 10000;
+
+    private static final String BOOT_REPORT_PREF = "pref_boot_report";
+
+    private static final String PRESET_PREF = "pref_performance_preset";
+
+    public static final File PRESET_DIR =
+            new File(Environment.getExternalStorageDirectory(), "cmparts/presets");
+
     private static final String IOSCHED_PREF = "pref_iosched";
 
     private static final String IOSCHED_PROP = "iosched";
 
-    private static final String IOSCHED_PERSIST_PROP = "persist.sys.ioscheduler";
+    public static final String IOSCHED_PERSIST_PROP = "persist.sys.ioscheduler";
 
     private static final String IOSCHED_DEFAULT = "sio";
 
@@ -162,6 +198,8 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
 
     private ListPreference mCompcachePref;
 
+    private Preference mCompcacheStatsPref;
+
     private CheckBoxPreference mJitPref;
 
     private CheckBoxPreference mUseDitheringPref;
@@ -188,13 +226,40 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
 
     private ListPreference mKSMScanPref;
 
+    private CheckBoxPreference mKSMAutoTunePref;
+
+    private Preference mKSMStatsPref;
+
+    private KSMSampler mKSMSampler;
+
+    /* Copied from the KSM preferences on the UI thread for mSampleKSM */
+    private volatile boolean mKSMAutoTune;
+    private volatile int mKSMSleepBound;
+    private volatile int mKSMScanBound;
+    private volatile int mKSMSleepLongest;
+    private volatile int mKSMScanFewest;
+
+    private HandlerThread mStatsThread;
+
+    private Handler mStatsHandler;
+
+    private final Handler mHandler = new Handler();
+
     private ListPreference mIoSchedPref;
 
     private ListPreference mLowMemKillPref;
 
+    private CheckBoxPreference mLowMemKillAdaptivePref;
+
+    private Preference mBootReportPref;
+
+    private Preference mPresetPref;
+
+    private PresetEngine mPresetEngine;
+
     private AlertDialog alertDialog;
 
-    private int swapAvailable = -1;
+    private DeviceCapabilities mCapabilities;
 
 
     @Override
@@ -205,11 +270,12 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         addPreferencesFromResource(R.xml.performance_settings);
 
         PreferenceScreen prefSet = getPreferenceScreen();
-        
+        mCapabilities = DeviceCapabilities.getInstance(this);
+
         PreferenceCategory generalCategory = (PreferenceCategory)prefSet.findPreference(GENERAL_CATEGORY);
 
         mCompcachePref = (ListPreference) prefSet.findPreference(COMPCACHE_PREF);
-        if (isSwapAvailable()) {
+        if (mCapabilities.has(DeviceCapabilities.CAP_SWAP)) {
 	    if (SystemProperties.get(COMPCACHE_PERSIST_PROP) == "1")
                 SystemProperties.set(COMPCACHE_PERSIST_PROP, COMPCACHE_DEFAULT);
             mCompcachePref.setValue(SystemProperties.get(COMPCACHE_PERSIST_PROP, COMPCACHE_DEFAULT));
@@ -218,6 +284,12 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
             generalCategory.removePreference(mCompcachePref);
         }
 
+        mCompcacheStatsPref = prefSet.findPreference(COMPCACHE_STATS_PREF);
+        if (!ZramManager.getInstance().isAvailable()) {
+            prefSet.removePreference(mCompcacheStatsPref);
+            mCompcacheStatsPref = null;
+        }
+
         mJitPref = (CheckBoxPreference) prefSet.findPreference(JIT_PREF);
         String jitMode = SystemProperties.get(JIT_PERSIST_PROP,
                 SystemProperties.get(JIT_PROP, JIT_ENABLED));
@@ -246,14 +318,14 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         mHeapsizePref.setOnPreferenceChangeListener(this);
 
         mKSMPref = (CheckBoxPreference) prefSet.findPreference(KSM_PREF);
-        if (CPUActivity.fileExists(KSM_RUN_FILE)) {
+        if (mCapabilities.has(DeviceCapabilities.CAP_KSM)) {
             mKSMPref.setChecked(KSM_PREF_ENABLED.equals(CPUActivity.readOneLine(KSM_RUN_FILE)));
         } else {
             prefSet.removePreference(mKSMPref);
         }
 
         mKSMSleepPref = (ListPreference) prefSet.findPreference(KSM_SLEEP_PREF);
-        if (CPUActivity.fileExists(KSM_SLEEP_RUN_FILE)) {
+        if (mCapabilities.has(DeviceCapabilities.CAP_KSM)) {
             mKSMSleepPref.setValue(SystemProperties.get(KSM_SLEEP_PREF,
                    SystemProperties.get(KSM_SLEEP_PROP, KSM_SLEEP_PREF_DEFAULT)));
             mKSMSleepPref.setOnPreferenceChangeListener(this);
@@ -262,7 +334,7 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         } 
 
         mKSMScanPref = (ListPreference) prefSet.findPreference(KSM_SCAN_PREF);
-        if (CPUActivity.fileExists(KSM_SCAN_RUN_FILE)) {
+        if (mCapabilities.has(DeviceCapabilities.CAP_KSM)) {
             mKSMScanPref.setValue(SystemProperties.get(KSM_SCAN_PREF,
                   SystemProperties.get(KSM_SCAN_PROP, KSM_SCAN_PREF_DEFAULT)));
             mKSMScanPref.setOnPreferenceChangeListener(this);
@@ -270,6 +342,19 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
             prefSet.removePreference(mKSMScanPref);
         } 
 
+        mKSMAutoTunePref = (CheckBoxPreference) prefSet.findPreference(KSM_AUTOTUNE_PREF);
+        mKSMStatsPref = prefSet.findPreference(KSM_STATS_PREF);
+        if (mCapabilities.has(DeviceCapabilities.CAP_KSM)) {
+            mKSMSampler = new KSMSampler();
+            String[] sleeps = getResources().getStringArray(R.array.values_ksm_sleep);
+            String[] scans = getResources().getStringArray(R.array.values_ksm_scan);
+            mKSMSleepLongest = Integer.parseInt(sleeps[sleeps.length - 1]);
+            mKSMScanFewest = Integer.parseInt(scans[0]);
+        } else {
+            prefSet.removePreference(mKSMAutoTunePref);
+            prefSet.removePreference(mKSMStatsPref);
+        }
+
         mDisableBootanimPref = (CheckBoxPreference) prefSet.findPreference(DISABLE_BOOTANIMATION_PREF);
         String disableBootanimation = SystemProperties.get(DISABLE_BOOTANIMATION_PERSIST_PROP, DISABLE_BOOTANIMATION_DEFAULT);
         mDisableBootanimPref.setChecked("1".equals(disableBootanimation));
@@ -287,7 +372,7 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         mGmapsHackPref.setChecked("1".equals(gmapshack));
 
         mLowMemKillPref = (ListPreference) prefSet.findPreference(LOWMEMKILL_PREF);
-        if (CPUActivity.fileExists(LOWMEMKILL_RUN_FILE)) {
+        if (mCapabilities.has(DeviceCapabilities.CAP_LOWMEMKILLER)) {
             mLowMemKillPref.setValue(SystemProperties.get(LOWMEMKILL_PREF,
                     SystemProperties.get(LOWMEMKILL_PROP, LOWMEMKILL_PREF_DEFAULT)));
             mLowMemKillPref.setOnPreferenceChangeListener(this);
@@ -295,6 +380,12 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
             prefSet.removePreference(mLowMemKillPref);
         }
 
+        mLowMemKillAdaptivePref = (CheckBoxPreference) prefSet.findPreference(
+                LowMemoryReceiver.ADAPTIVE_PREF);
+        if (!mCapabilities.has(DeviceCapabilities.CAP_LOWMEMKILLER)) {
+            prefSet.removePreference(mLowMemKillAdaptivePref);
+        }
+
         mIoSchedPref = (ListPreference) prefSet.findPreference(IOSCHED_PREF);
         mIoSchedPref.setValue(SystemProperties.get(IOSCHED_PERSIST_PROP,
                 SystemProperties.get(IOSCHED_PROP, IOSCHED_DEFAULT)));
@@ -302,7 +393,7 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
 
         mSdReadAheadPref = (ListPreference) prefSet.findPreference(SDCARD_PREF);
 
-        if (CPUActivity.fileExists(SDCARD_RUN_FILE)) {
+        if (mCapabilities.has(DeviceCapabilities.CAP_READ_AHEAD)) {
             mSdReadAheadPref.setValue(SystemProperties.get(SDCARD_PREF,
                      SystemProperties.get(SDCARD_PROP, SDCARD_PREF_DEFAULT)));
             mSdReadAheadPref.setOnPreferenceChangeListener(this);
@@ -310,6 +401,11 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
             prefSet.removePreference(mSdReadAheadPref);
         }
 
+        mBootReportPref = prefSet.findPreference(BOOT_REPORT_PREF);
+
+        mPresetPref = prefSet.findPreference(PRESET_PREF);
+        mPresetEngine = new PresetEngine(this);
+
         // Set up the warning
         alertDialog = new AlertDialog.Builder(this).create();
         alertDialog.setTitle(R.string.performance_settings_warning_title);
@@ -324,8 +420,294 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
 
         alertDialog.show();
     }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        updateBootReportSummary();
+        updatePresetSummary();
+        if (mKSMSampler != null || mCompcacheStatsPref != null) {
+            mStatsThread = new HandlerThread("PerformanceStats");
+            mStatsThread.start();
+            mStatsHandler = new Handler(mStatsThread.getLooper());
+            if (mKSMSampler != null) {
+                copyKSMSettings();
+                mStatsHandler.post(mSampleKSM);
+            }
+            if (mCompcacheStatsPref != null) {
+                mStatsHandler.post(mSampleZram);
+            }
+        }
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        if (mStatsThread != null) {
+            mStatsHandler.removeCallbacks(mSampleKSM);
+            mStatsHandler.removeCallbacks(mSampleZram);
+            mStatsThread.quit();
+            mStatsThread = null;
+            mStatsHandler = null;
+        }
+    }
+
+    /**
+     * Samples KSM on the sampler thread while the screen is visible and,
+     * if enabled, lets it adjust sleep time and page scan. The selected
+     * sleep time and page scan are the most aggressive values it may use.
+     */
+    private final Runnable mSampleKSM = new Runnable() {
+        public void run() {
+            final boolean available = mKSMSampler.sample();
+            if (available && mKSMAutoTune) {
+                mKSMSampler.setBounds(mKSMSleepBound, mKSMSleepLongest, mKSMScanFewest,
+                        mKSMScanBound);
+                mKSMSampler.autoTune(SysfsWriter.getInstance());
+            }
+            final String summary = available ? getKSMSummary() : null;
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (summary != null) {
+                        mKSMStatsPref.setSummary(summary);
+                    } else {
+                        mKSMStatsPref.setSummary(R.string.pref_ksm_stats_unavailable);
+                    }
+                }
+            });
+
+            /* Stop once onPause quit this thread, even if a new one was started */
+            Handler handler = mStatsHandler;
+            if (handler != null && handler.getLooper() == Looper.myLooper()) {
+                handler.postDelayed(this, STATS_SAMPLE_INTERVAL);
+            }
+        }
+    };
+
+    /**
+     * Shows zram compression and swap I/O while the screen is visible.
+     */
+    private final Runnable mSampleZram = new Runnable() {
+        public void run() {
+            ZramManager zram = ZramManager.getInstance();
+            ZramManager.Stats stats = zram.getStats();
+            final String summary = getString(R.string.pref_compcache_stats_summary,
+                    stats.diskSize / (1024 * 1024), stats.origDataSize / (1024 * 1024),
+                    formatRatio(stats.getCompressionRatio()),
+                    formatRatio(stats.getEffectiveRatio()), zram.getIoRate());
+            mHandler.post(new Runnable() {
+                public void run() {
+                    mCompcacheStatsPref.setSummary(summary);
+                }
+            });
+
+            Handler handler = mStatsHandler;
+            if (handler != null && handler.getLooper() == Looper.myLooper()) {
+                handler.postDelayed(this, STATS_SAMPLE_INTERVAL);
+            }
+        }
+    };
+
+    private static String formatRatio(long ratio) {
+        return (ratio / 100) + "." + (ratio % 100 < 10 ? "0" : "") + (ratio % 100);
+    }
+
+    private String getKSMSummary() {
+        String summary = getString(R.string.pref_ksm_stats_summary,
+                mKSMSampler.getSavedBytes() / (1024 * 1024),
+                mKSMSampler.getScanRate(), mKSMSampler.getUnsharedPages());
+        int[] recommendation = mKSMSampler.getRecommendation();
+        if (recommendation == null || mKSMAutoTune) {
+            return summary;
+        }
+        return getString(R.string.pref_ksm_stats_recommendation, summary,
+                recommendation[0], recommendation[1]);
+    }
+
+    /**
+     * Copies what mSampleKSM needs from the preferences, which only the UI
+     * thread may use.
+     */
+    private void copyKSMSettings() {
+        mKSMAutoTune = mKSMAutoTunePref.isChecked();
+        mKSMSleepBound = parseInt(mKSMSleepPref.getValue(), KSM_SLEEP_PREF_DEFAULT);
+        mKSMScanBound = parseInt(mKSMScanPref.getValue(), KSM_SCAN_PREF_DEFAULT);
+    }
+
+    private static int parseInt(String value, String defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return Integer.parseInt(defaultValue);
+        }
+    }
+
+    private void updateBootReportSummary() {
+        List<RestorePipeline.Entry> report = RestorePipeline.loadReport(this);
+        if (report.isEmpty()) {
+            mBootReportPref.setSummary(R.string.pref_boot_report_none);
+            return;
+        }
+        int[] counts = new int[3];
+        long millis = 0;
+        for (RestorePipeline.Entry entry : report) {
+            counts[entry.status]++;
+            millis += entry.millis;
+        }
+        mBootReportPref.setSummary(getString(R.string.pref_boot_report_summary,
+                counts[RestorePipeline.STATUS_OK], counts[RestorePipeline.STATUS_FAILED],
+                counts[RestorePipeline.STATUS_SKIPPED], millis));
+    }
+
+    private void showBootReport() {
+        List<RestorePipeline.Entry> report = RestorePipeline.loadReport(this);
+        if (report.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        for (RestorePipeline.Entry entry : report) {
+            if (message.length() > 0) {
+                message.append('\n');
+            }
+            message.append(getString(R.string.pref_boot_report_step, entry.name,
+                    RestorePipeline.statusName(entry.status), entry.millis));
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.pref_boot_report_title)
+                .setMessage(message.toString())
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
+
+    private void updatePresetSummary() {
+        String last = mPresetEngine.getLastPreset();
+        if (last == null) {
+            mPresetPref.setSummary(R.string.pref_performance_preset_summary);
+        } else {
+            mPresetPref.setSummary(getString(R.string.pref_performance_preset_summary_last, last));
+        }
+    }
+
+    /**
+     * Lists the built-in presets, then those saved in PRESET_DIR, then the
+     * entry to save the current values there.
+     */
+    private void showPresets() {
+        final PerformancePreset[] builtIns = PerformancePreset.getBuiltIns();
+        File[] saved = PRESET_DIR.listFiles();
+        final List<File> files = new ArrayList<File>();
+        if (saved != null) {
+            Arrays.sort(saved);
+            for (File file : saved) {
+                if (file.getName().endsWith(PerformancePreset.FILE_SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+
+        String[] items = new String[builtIns.length + files.size() + 1];
+        for (int i = 0; i < builtIns.length; i++) {
+            items[i] = builtIns[i].getName();
+        }
+        for (int i = 0; i < files.size(); i++) {
+            items[builtIns.length + i] = files.get(i).getName();
+        }
+        items[items.length - 1] = getString(R.string.pref_performance_preset_export);
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.pref_performance_preset_title)
+                .setItems(items, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (which < builtIns.length) {
+                            applyPreset(builtIns[which]);
+                        } else if (which < builtIns.length + files.size()) {
+                            importPreset(files.get(which - builtIns.length));
+                        } else {
+                            exportPreset();
+                        }
+                    }
+                })
+                .show();
+    }
+
+    private void importPreset(File file) {
+        try {
+            applyPreset(PerformancePreset.load(file));
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read preset " + file, e);
+            Toast.makeText(this, getString(R.string.pref_performance_preset_import_failed,
+                    file.getName()), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /* All built-ins cover the same values, any of them works as template */
+    private void exportPreset() {
+        PerformancePreset current = mPresetEngine.capture(
+                getString(R.string.pref_performance_preset_current), PerformancePreset.balanced());
+        File file = new File(PRESET_DIR, DateFormat.format("yyyyMMdd-kkmmss",
+                System.currentTimeMillis()) + PerformancePreset.FILE_SUFFIX);
+        try {
+            current.save(file);
+            Toast.makeText(this, getString(R.string.pref_performance_preset_exported,
+                    file.getPath()), Toast.LENGTH_LONG).show();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not save preset " + file, e);
+            Toast.makeText(this, R.string.pref_performance_preset_export_failed,
+                    Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void applyPreset(final PerformancePreset preset) {
+        mPresetPref.setEnabled(false);
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                final PresetEngine.Result result = mPresetEngine.apply(preset);
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mPresetPref.setEnabled(true);
+                        onPresetApplied(result);
+                    }
+                });
+            }
+        }.start();
+    }
+
+    private void onPresetApplied(PresetEngine.Result result) {
+        String message;
+        if (result.isSuccess()) {
+            message = getString(R.string.pref_performance_preset_applied, result.name,
+                    result.changed, result.unchanged, result.skipped);
+        } else {
+            message = getString(R.string.pref_performance_preset_failed, result.name,
+                    result.failed.key);
+        }
+        Toast.makeText(this, message, Toast.LENGTH_LONG).show();
+        updatePresetSummary();
+
+        /* Show what the preset changed */
+        if (mCapabilities.has(DeviceCapabilities.CAP_KSM)) {
+            mKSMPref.setChecked(KSM_PREF_ENABLED.equals(CPUActivity.readOneLine(KSM_RUN_FILE)));
+            mKSMSleepPref.setValue(SystemProperties.get(KSM_SLEEP_PROP, KSM_SLEEP_PREF_DEFAULT));
+            mKSMScanPref.setValue(SystemProperties.get(KSM_SCAN_PROP, KSM_SCAN_PREF_DEFAULT));
+            copyKSMSettings();
+        }
+        if (mCapabilities.has(DeviceCapabilities.CAP_READ_AHEAD)) {
+            mSdReadAheadPref.setValue(SystemProperties.get(SDCARD_PROP, SDCARD_PREF_DEFAULT));
+        }
+    }
+
     @Override
     public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+        if (preference == mBootReportPref) {
+            showBootReport();
+            return true;
+        }
+        if (preference == mPresetPref) {
+            showPresets();
+            return true;
+        }
+
 	if (preference == mJitPref) {
             SystemProperties.set(JIT_PERSIST_PROP,
                     mJitPref.isChecked() ? JIT_ENABLED : JIT_DISABLED);
@@ -351,7 +733,22 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         }
 
         if (preference == mKSMPref) {
-            CPUActivity.writeOneLine(KSM_RUN_FILE, mKSMPref.isChecked() ? "1" : "0");
+            SysfsWriter.getInstance().write(KSM_RUN_FILE, mKSMPref.isChecked() ? "1" : "0");
+            return true;
+        }
+
+        if (preference == mKSMAutoTunePref) {
+            mKSMAutoTune = mKSMAutoTunePref.isChecked();
+            return true;
+        }
+
+        if (preference == mLowMemKillAdaptivePref) {
+            if (!mLowMemKillAdaptivePref.isChecked()) {
+                /* Back to the selected preset */
+                SysfsWriter.getInstance().write(LOWMEMKILL_RUN_FILE, mLowMemKillPref.getValue());
+            }
+            LowMemoryReceiver.setAdaptive(this, mLowMemKillAdaptivePref.isChecked(),
+                    mLowMemKillPref.getValue());
             return true;
         }
 
@@ -400,6 +797,17 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         if (preference == mCompcachePref) {
             if (newValue != null) {
                 SystemProperties.set(COMPCACHE_PERSIST_PROP, (String)newValue);
+                final int percent = parseInt((String)newValue, "0");
+                if (ZramManager.getInstance().isAvailable()) {
+                    /* Swapping off can take a while with a full device */
+                    new Thread("ZramResize") {
+                        @Override
+                        public void run() {
+                            ZramManager zram = ZramManager.getInstance();
+                            zram.resize(zram.getSizeForPercent(percent));
+                        }
+                    }.start();
+                }
                 return true;
 	    }
         }
@@ -407,7 +815,10 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         if (preference == mLowMemKillPref) {
             if (newValue != null) {
                 SystemProperties.set(LOWMEMKILL_PROP, (String)newValue);
-                CPUActivity.writeOneLine(LOWMEMKILL_RUN_FILE, (String)newValue);
+                SysfsWriter.getInstance().write(LOWMEMKILL_RUN_FILE, (String)newValue);
+                if (mLowMemKillAdaptivePref.isChecked()) {
+                    LowMemoryReceiver.setAdaptive(this, true, (String)newValue);
+                }
                 return true;
             }
         }
@@ -415,6 +826,7 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         if (preference == mIoSchedPref) {
             if (newValue != null) {
                 SystemProperties.set(IOSCHED_PERSIST_PROP, (String)newValue);
+                BlockDeviceManager.getInstance().setSchedulerAll((String)newValue);
                 return true;
             }
         }
@@ -422,7 +834,7 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         if (preference == mSdReadAheadPref) {
             if (newValue != null) {
                 SystemProperties.set(SDCARD_PROP, (String)newValue);
-                CPUActivity.writeOneLine(SDCARD_RUN_FILE, (String)newValue);
+                SysfsWriter.getInstance().write(SDCARD_RUN_FILE, (String)newValue);
                 return true;
             }
         }
@@ -430,7 +842,8 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         if (preference == mKSMSleepPref) {
             if (newValue != null) {
                 SystemProperties.set(KSM_SLEEP_PROP, (String)newValue);
-                CPUActivity.writeOneLine(KSM_SLEEP_RUN_FILE, (String)newValue);
+                SysfsWriter.getInstance().write(KSM_SLEEP_RUN_FILE, (String)newValue);
+                mKSMSleepBound = parseInt((String)newValue, KSM_SLEEP_PREF_DEFAULT);
                 return true;
             }
         }
@@ -438,21 +851,12 @@ public class PerformanceSettingsActivity extends PreferenceActivity implements P
         if (preference == mKSMScanPref) {
             if (newValue != null) {
                 SystemProperties.set(KSM_SCAN_PROP, (String)newValue);
-                CPUActivity.writeOneLine(KSM_SCAN_RUN_FILE, (String)newValue);
+                SysfsWriter.getInstance().write(KSM_SCAN_RUN_FILE, (String)newValue);
+                mKSMScanBound = parseInt((String)newValue, KSM_SCAN_PREF_DEFAULT);
                 return true;
             }
         }
         return false;
     }
 
-    /**
-     * Check if swap support is available on the system
-     */
-    private boolean isSwapAvailable() {
-        if (swapAvailable < 0) {
-            swapAvailable = new File("/proc/swaps").exists() ? 1 : 0;
-        }
-        return swapAvailable > 0;
-    }
-
 }
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.activities;
+
+import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.BlockDeviceManager;
+import com.cyanogenmod.cmparts.utils.StorageBenchmark;
+
+import android.app.AlertDialog;
+import android.app.Dialog;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Environment;
+import android.os.Handler;
+import android.preference.ListPreference;
+import android.preference.Preference;
+import android.preference.PreferenceActivity;
+import android.preference.PreferenceCategory;
+import android.preference.PreferenceScreen;
+import android.widget.Toast;
+
+import java.io.File;
+import java.util.Map;
+
+/**
+ * Scheduler, read-ahead and request queue size per block device, plus a
+ * storage benchmark whose results are kept per configuration so settings
+ * can be compared.
+ */
+public class StorageTuningActivity extends PreferenceActivity
+        implements Preference.OnPreferenceChangeListener {
+
+    private static final String TARGET_DATA = "data";
+
+    private static final String TARGET_SDCARD = "sdcard";
+
+    private static final int DIALOG_RESULTS = 1;
+
+    private static final String EXTRA_TARGET = "target";
+
+    private final Handler mHandler = new Handler();
+
+    private BlockDeviceManager mDevices;
+
+    private Preference mDataBenchmarkPref;
+
+    private Preference mSdBenchmarkPref;
+
+    private boolean mBenchmarkRunning;
+
+    private boolean mDestroyed;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setTitle(R.string.storage_tuning_title);
+        PreferenceScreen prefSet = getPreferenceManager().createPreferenceScreen(this);
+        setPreferenceScreen(prefSet);
+        mDevices = BlockDeviceManager.getInstance();
+
+        PreferenceCategory benchmarkCategory = new PreferenceCategory(this);
+        benchmarkCategory.setTitle(R.string.storage_benchmark_category);
+        prefSet.addPreference(benchmarkCategory);
+        mDataBenchmarkPref = new Preference(this);
+        mDataBenchmarkPref.setTitle(R.string.storage_benchmark_data_title);
+        benchmarkCategory.addPreference(mDataBenchmarkPref);
+        updateBenchmarkSummary(mDataBenchmarkPref, TARGET_DATA);
+        if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+            mSdBenchmarkPref = new Preference(this);
+            mSdBenchmarkPref.setTitle(R.string.storage_benchmark_sdcard_title);
+            benchmarkCategory.addPreference(mSdBenchmarkPref);
+            updateBenchmarkSummary(mSdBenchmarkPref, TARGET_SDCARD);
+        }
+
+        String[] readAheads = getResources().getStringArray(R.array.values_sd_readahead);
+        String[] requests = getResources().getStringArray(R.array.values_nr_requests);
+
+        for (String device : mDevices.getDevices()) {
+            PreferenceCategory category = new PreferenceCategory(this);
+            category.setTitle(device);
+            prefSet.addPreference(category);
+
+            String[] schedulers = mDevices.getAvailableSchedulers(device);
+            if (schedulers.length > 0) {
+                category.addPreference(createListPreference(device, BlockDeviceManager.SCHEDULER,
+                        R.string.pref_iosched_title, schedulers, mDevices.getScheduler(device)));
+            }
+            category.addPreference(createListPreference(device, BlockDeviceManager.READ_AHEAD_KB,
+                    R.string.storage_read_ahead_title, readAheads, mDevices.getReadAhead(device)));
+            if (mDevices.getNrRequests(device) != null) {
+                category.addPreference(createListPreference(device, BlockDeviceManager.NR_REQUESTS,
+                        R.string.storage_nr_requests_title, requests,
+                        mDevices.getNrRequests(device)));
+            }
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        mDestroyed = true;
+        super.onDestroy();
+    }
+
+    private ListPreference createListPreference(String device, String node, int title,
+            String[] values, String current) {
+        ListPreference pref = new ListPreference(this);
+        /* Values are kept by BlockDeviceManager, keyed the same way */
+        pref.setKey(device + "/" + node);
+        pref.setPersistent(false);
+        pref.setTitle(title);
+        pref.setDialogTitle(title);
+        pref.setEntries(values);
+        pref.setEntryValues(values);
+        pref.setValue(current);
+        pref.setSummary(current);
+        pref.setOnPreferenceChangeListener(this);
+        return pref;
+    }
+
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        String key = preference.getKey();
+        int slash = key.indexOf('/');
+        String device = key.substring(0, slash);
+        String node = key.substring(slash + 1);
+        if (!mDevices.apply(this, device, node, (String) newValue)) {
+            Toast.makeText(this, R.string.storage_apply_failed, Toast.LENGTH_SHORT).show();
+            return false;
+        }
+        preference.setSummary((String) newValue);
+        return true;
+    }
+
+    @Override
+    public boolean onPreferenceTreeClick(PreferenceScreen preferenceScreen, Preference preference) {
+        if (preference == mDataBenchmarkPref) {
+            runBenchmark(mDataBenchmarkPref, TARGET_DATA, getCacheDir());
+            return true;
+        }
+        if (preference == mSdBenchmarkPref) {
+            runBenchmark(mSdBenchmarkPref, TARGET_SDCARD, Environment.getExternalStorageDirectory());
+            return true;
+        }
+        return false;
+    }
+
+    private void runBenchmark(final Preference pref, final String target, final File dir) {
+        if (mBenchmarkRunning) {
+            return;
+        }
+        mBenchmarkRunning = true;
+        pref.setSummary(R.string.storage_benchmark_running);
+        final Context appCtx = getApplicationContext();
+
+        new Thread("StorageBenchmark") {
+            @Override
+            public void run() {
+                String configuration = mDevices.getConfiguration();
+                final StorageBenchmark.Result result = new StorageBenchmark().run(dir);
+                if (result != null) {
+                    StorageBenchmark.save(appCtx, target, configuration, result);
+                }
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        mBenchmarkRunning = false;
+                        /* Recreated or closed while measuring, the result is saved */
+                        if (mDestroyed || isFinishing()) {
+                            return;
+                        }
+                        updateBenchmarkSummary(pref, target);
+                        if (result == null) {
+                            Toast.makeText(StorageTuningActivity.this,
+                                    R.string.storage_benchmark_failed, Toast.LENGTH_SHORT).show();
+                        } else {
+                            Bundle args = new Bundle();
+                            args.putString(EXTRA_TARGET, target);
+                            showDialog(DIALOG_RESULTS, args);
+                        }
+                    }
+                });
+            }
+        }.start();
+    }
+
+    private void updateBenchmarkSummary(Preference pref, String target) {
+        StorageBenchmark.Result result = StorageBenchmark.load(this, target)
+                .get(mDevices.getConfiguration());
+        if (result == null) {
+            pref.setSummary(R.string.storage_benchmark_summary);
+        } else {
+            pref.setSummary(formatThroughput(result));
+        }
+    }
+
+    @Override
+    protected Dialog onCreateDialog(int id, Bundle args) {
+        if (id == DIALOG_RESULTS) {
+            return new AlertDialog.Builder(this)
+                    .setTitle(R.string.storage_benchmark_category)
+                    .setMessage(getResults(args.getString(EXTRA_TARGET)))
+                    .setPositiveButton(android.R.string.ok, null)
+                    .create();
+        }
+        return super.onCreateDialog(id, args);
+    }
+
+    @Override
+    protected void onPrepareDialog(int id, Dialog dialog, Bundle args) {
+        if (id == DIALOG_RESULTS) {
+            ((AlertDialog) dialog).setMessage(getResults(args.getString(EXTRA_TARGET)));
+        }
+        super.onPrepareDialog(id, dialog, args);
+    }
+
+    /**
+     * Lists the results of all configurations measured so far, the
+     * current one first.
+     */
+    private String getResults(String target) {
+        String current = mDevices.getConfiguration();
+        Map<String, StorageBenchmark.Result> results = StorageBenchmark.load(this, target);
+        StringBuilder message = new StringBuilder();
+        StorageBenchmark.Result result = results.remove(current);
+        if (result != null) {
+            appendResult(message, current, result);
+        }
+        for (Map.Entry<String, StorageBenchmark.Result> entry : results.entrySet()) {
+            appendResult(message, entry.getKey(), entry.getValue());
+        }
+        return message.toString();
+    }
+
+    private void appendResult(StringBuilder message, String configuration,
+            StorageBenchmark.Result result) {
+        if (message.length() > 0) {
+            message.append("\n\n");
+        }
+        message.append(configuration).append('\n');
+        message.append(formatThroughput(result)).append('\n');
+        message.append(getString(result.cacheDropped ? R.string.storage_benchmark_latency
+                : R.string.storage_benchmark_latency_cached,
+                formatLatency(result.randReadLatency), formatLatency(result.randWriteLatency),
+                formatLatency(result.syncLatency)));
+        if (!result.cacheDropped) {
+            message.append('\n').append(getString(R.string.storage_benchmark_cached));
+        }
+    }
+
+    /**
+     * Read figures are marked where the page cache wasn't dropped, they
+     * mostly show memory speed.
+     */
+    private String formatThroughput(StorageBenchmark.Result result) {
+        return getString(result.cacheDropped ? R.string.storage_benchmark_result
+                : R.string.storage_benchmark_result_cached,
+                result.seqReadKbps / 1024, result.seqWriteKbps / 1024,
+                result.randReadIops, result.randWriteIops);
+    }
+
+    /**
+     * @return percentiles in milliseconds, e.g. "0.4/1.2/8.0"
+     */
+    private static String formatLatency(long[] micros) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < micros.length; i++) {
+            if (i > 0) {
+                sb.append('/');
+            }
+            sb.append(micros[i] / 1000).append('.').append(micros[i] % 1000 / 100);
+        }
+        return sb.toString();
+    }
+}
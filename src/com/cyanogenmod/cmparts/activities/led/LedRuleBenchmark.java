@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.activities.led;
+
+import android.util.Log;
+
+/**
+ * Measures {@link LedRuleStore} on generated rule lists, in memory only:
+ * parsing, loading a value which is already parsed, encoding the whole
+ * list the way every save used to, and updating one rule in place.
+ */
+public class LedRuleBenchmark {
+
+    private static final String TAG = "LedRuleBenchmark";
+
+    public static final int[] RULE_COUNTS = new int[] { 10, 100, 1000 };
+
+    public static final int ITERATIONS = 100;
+
+    public static final int OP_PARSE = 0;
+    public static final int OP_LOAD_CACHED = 1;
+    public static final int OP_ENCODE_ALL = 2;
+    public static final int OP_UPDATE_ONE = 3;
+
+    private static final String[] OP_NAMES = new String[] {
+        "parse", "load unchanged", "encode all", "update one"
+    };
+
+    /**
+     * Runs every operation for each of RULE_COUNTS and logs the results.
+     *
+     * @return microseconds per operation, indexed by operation and rule count
+     */
+    public long[][] run() {
+        long[][] results = new long[OP_NAMES.length][RULE_COUNTS.length];
+        for (int i = 0; i < RULE_COUNTS.length; i++) {
+            int rules = RULE_COUNTS[i];
+            String value = generate(rules);
+            for (int op = 0; op < OP_NAMES.length; op++) {
+                results[op][i] = measure(op, value, rules) / 1000 / ITERATIONS;
+                Log.i(TAG, OP_NAMES[op] + ", " + rules + " rules, " + value.length()
+                        + " chars: " + results[op][i] + " us");
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return nanoseconds for ITERATIONS runs of the operation
+     */
+    public long measure(int op, String value, int rules) {
+        LedRuleStore store = new LedRuleStore();
+        store.parse(value);
+        LedRuleStore.Rule rule = store.get(packageName(rules / 2));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            switch (op) {
+                case OP_PARSE:
+                    /* A new value each time, so nothing is cached */
+                    store.parse(i % 2 == 0 ? value : value + "|");
+                    break;
+                case OP_LOAD_CACHED:
+                    store.parse(value);
+                    break;
+                case OP_ENCODE_ALL:
+                    store.encodeAll();
+                    break;
+                case OP_UPDATE_ONE:
+                    rule.color = Integer.toHexString(i);
+                    store.put(rule);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + op);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static String generate(int rules) {
+        LedRuleStore store = new LedRuleStore();
+        for (int i = 0; i < rules; i++) {
+            LedRuleStore.Rule rule = new LedRuleStore.Rule(packageName(i));
+            rule.color = "ffffff";
+            rule.blink = "2";
+            rule.forceMode = "0";
+            rule.category = i % 3 == 0 ? "category" + i % 7 : "";
+            store.put(rule);
+        }
+        return store.getEncoded();
+    }
+
+    private static String packageName(int i) {
+        return "com.example.package" + i;
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.activities.led;
+
+import android.content.ContentResolver;
+import android.provider.Settings;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * The per package LED rules kept in NOTIFICATION_PACKAGE_COLORS.
+ *
+ * The setting is parsed once into an index and parsed again only when
+ * its value changed behind our back. Rules are updated and removed one
+ * at a time by splicing that rule's segment of the encoded value, the
+ * other rules are not encoded again. commit() writes the value only if
+ * something changed, and never before the setting was loaded, as that
+ * would drop every rule not put since.
+ *
+ * The notification service parses the setting as well, so the encoding
+ * stays the one it reads, VERSION 1: rules separated by '|', each being
+ * package=color=blink=mode=category. An empty category is left out.
+ */
+public class LedRuleStore {
+
+    public static final int VERSION = 1;
+
+    private static final char RULE_DELIM = '|';
+    private static final char FIELD_DELIM = '=';
+
+    public static class Rule {
+        public final String packageName;
+        public String color;
+        public String blink;
+        public String forceMode;
+        public String category = "";
+
+        public Rule(String packageName) {
+            this.packageName = packageName;
+        }
+
+        Rule copy() {
+            Rule rule = new Rule(packageName);
+            rule.color = color;
+            rule.blink = blink;
+            rule.forceMode = forceMode;
+            rule.category = category;
+            return rule;
+        }
+
+        String encode() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(packageName).append(FIELD_DELIM).append(color)
+                    .append(FIELD_DELIM).append(blink)
+                    .append(FIELD_DELIM).append(forceMode);
+            if (!TextUtils.isEmpty(category)) {
+                builder.append(FIELD_DELIM).append(category);
+            }
+            return builder.toString();
+        }
+
+        static Rule decode(String value) {
+            if (TextUtils.isEmpty(value)) {
+                return null;
+            }
+            String[] items = value.split(String.valueOf(FIELD_DELIM));
+            if (items.length < 4) {
+                return null;
+            }
+            Rule rule = new Rule(items[0]);
+            rule.color = items[1];
+            rule.blink = items[2];
+            rule.forceMode = items[3];
+            rule.category = items.length == 4 ? "" : items[4];
+            return rule;
+        }
+    }
+
+    private static LedRuleStore sInstance;
+
+    private final LinkedHashMap<String, Rule> mRules = new LinkedHashMap<String, Rule>();
+    /* The setting value the index was parsed from, null until loaded */
+    private String mSource;
+    /* The value the index encodes to */
+    private String mEncoded = "";
+    private boolean mDirty;
+    private int mParseCount;
+
+    public static synchronized LedRuleStore getInstance() {
+        if (sInstance == null) {
+            sInstance = new LedRuleStore();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Reads the setting, parsing it only if it changed since the last load.
+     */
+    public synchronized void load(ContentResolver resolver) {
+        parse(Settings.System.getString(resolver, Settings.System.NOTIFICATION_PACKAGE_COLORS));
+    }
+
+    /**
+     * Pending changes are dropped if the value differs from the last one.
+     */
+    public synchronized void parse(String value) {
+        if (value == null) {
+            value = "";
+        }
+        if (value.equals(mSource)) {
+            return;
+        }
+
+        mRules.clear();
+        int start = 0;
+        while (start < value.length()) {
+            int end = value.indexOf(RULE_DELIM, start);
+            if (end < 0) {
+                end = value.length();
+            }
+            Rule rule = Rule.decode(value.substring(start, end));
+            if (rule != null) {
+                /* A later rule for the same package wins, as it always did */
+                mRules.remove(rule.packageName);
+                mRules.put(rule.packageName, rule);
+            }
+            start = end + 1;
+        }
+
+        /* Dropped or duplicate rules can't be spliced, start from a clean encoding */
+        mEncoded = encodeAll();
+        mSource = value;
+        mDirty = false;
+        mParseCount++;
+    }
+
+    /**
+     * @return how often the setting was actually parsed
+     */
+    public synchronized int getParseCount() {
+        return mParseCount;
+    }
+
+    public synchronized int size() {
+        return mRules.size();
+    }
+
+    /**
+     * @return a copy of the rule, changes need to go through put()
+     */
+    public synchronized Rule get(String packageName) {
+        Rule rule = mRules.get(packageName);
+        return rule != null ? rule.copy() : null;
+    }
+
+    public synchronized List<Rule> getAll() {
+        List<Rule> rules = new ArrayList<Rule>(mRules.size());
+        for (Rule rule : mRules.values()) {
+            rules.add(rule.copy());
+        }
+        return rules;
+    }
+
+    /**
+     * Adds or replaces the rule of a package.
+     *
+     * @return false if the package had this rule already
+     */
+    public synchronized boolean put(Rule rule) {
+        String segment = rule.encode();
+        Rule old = mRules.get(rule.packageName);
+        if (old != null) {
+            int start = findSegment(rule.packageName);
+            int end = segmentEnd(start);
+            if (mEncoded.regionMatches(start, segment, 0, segment.length())
+                    && end - start == segment.length()) {
+                return false;
+            }
+            mEncoded = mEncoded.substring(0, start) + segment + mEncoded.substring(end);
+        } else if (mEncoded.length() == 0) {
+            mEncoded = segment;
+        } else {
+            mEncoded = mEncoded + RULE_DELIM + segment;
+        }
+        mRules.put(rule.packageName, rule.copy());
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * @return false if the package had no rule
+     */
+    public synchronized boolean remove(String packageName) {
+        if (mRules.remove(packageName) == null) {
+            return false;
+        }
+        int start = findSegment(packageName);
+        int end = segmentEnd(start);
+        if (end < mEncoded.length()) {
+            /* Take the following delimiter along */
+            mEncoded = mEncoded.substring(0, start) + mEncoded.substring(end + 1);
+        } else {
+            mEncoded = mEncoded.substring(0, Math.max(0, start - 1));
+        }
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * Writes the setting if anything changed since it was loaded.
+     *
+     * @return false if writing failed or the setting was never loaded
+     */
+    public synchronized boolean commit(ContentResolver resolver) {
+        if (!mDirty) {
+            return true;
+        }
+        if (mSource == null) {
+            return false;
+        }
+        if (!Settings.System.putString(resolver,
+                Settings.System.NOTIFICATION_PACKAGE_COLORS, mEncoded)) {
+            return false;
+        }
+        mSource = mEncoded;
+        mDirty = false;
+        return true;
+    }
+
+    /**
+     * @return the encoded value of all rules, as commit() would write it
+     */
+    public synchronized String getEncoded() {
+        return mEncoded;
+    }
+
+    /**
+     * Encodes every rule from scratch, the way the whole list used to be
+     * written after each change.
+     */
+    public synchronized String encodeAll() {
+        StringBuilder builder = new StringBuilder();
+        for (Rule rule : mRules.values()) {
+            if (builder.length() > 0) {
+                builder.append(RULE_DELIM);
+            }
+            builder.append(rule.encode());
+        }
+        return builder.toString();
+    }
+
+    private int findSegment(String packageName) {
+        String prefix = packageName + FIELD_DELIM;
+        if (mEncoded.startsWith(prefix)) {
+            return 0;
+        }
+        int index = mEncoded.indexOf(RULE_DELIM + prefix);
+        if (index < 0) {
+            throw new IllegalStateException("No rule for " + packageName + " in the encoding");
+        }
+        return index + 1;
+    }
+
+    private int segmentEnd(int start) {
+        int end = mEncoded.indexOf(RULE_DELIM, start);
+        return end < 0 ? mEncoded.length() : end;
+    }
+}
@@ -17,9 +17,7 @@
 package com.cyanogenmod.cmparts.activities.led;
 
 import android.app.ProgressDialog;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
@@ -28,13 +26,15 @@ import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceCategory;
 import android.preference.PreferenceScreen;
-import android.provider.Settings;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
@@ -43,6 +43,7 @@ import java.util.TreeMap;
 import java.util.TreeSet;
 
 import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.utils.NotificationTracker;
 
 public class NotificationActivity extends PreferenceActivity {
     public Handler mHandler = new Handler();
@@ -56,59 +57,13 @@ public class NotificationActivity extends PreferenceActivity {
     private Preference mCategoryListPref;
     private Preference mAdvancedPref;
 
-    private static class PackageSettings {
-        public String title;
-        public String packageName;
-        public String color;
-        public String blink;
-        public String forceMode;
-        public String category;
-
-        private PackageSettings() {
-        }
-
-        public String toString() {
-            StringBuilder builder = new StringBuilder();
-            builder.append(packageName);
-            builder.append("=");
-            builder.append(color);
-            builder.append("=");
-            builder.append(blink);
-            builder.append("=");
-            builder.append(forceMode);
-            builder.append("=");
-            builder.append(category);
-            return builder.toString();
-        }
-        public static PackageSettings fromString(String value) {
-            if (TextUtils.isEmpty(value)) {
-                return null;
-            }
-            String[] items = value.split("=");
-            if (items.length < 4) {
-                return null;
-            }
-            PackageSettings item = new PackageSettings();
-            item.packageName = items[0];
-            item.color = items[1];
-            item.blink = items[2];
-            item.forceMode = items[3];
-
-            if (items.length == 4) {
-                item.category = "";
-            } else {
-                item.category = items[4];
-            }
-
-            return item;
-        }
-    };
-
-    private Map<String, PackageSettings> mPackages;
+    private final LedRuleStore mStore = LedRuleStore.getInstance();
+    private NotificationTracker mTracker;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mTracker = NotificationTracker.getInstance(this);
         addPreferencesFromResource(R.xml.led_settings);
         initApplicationList();
 
@@ -133,7 +88,7 @@ public class NotificationActivity extends PreferenceActivity {
                 pkg = PackageSettingsActivity.CATEGORY_PACKAGE_PREFIX + pkg;
             }
 
-            PackageSettings settings = mPackages.get(pkg);
+            LedRuleStore.Rule settings = mStore.get(pkg);
             Intent intent = new Intent(this, PackageSettingsActivity.class);
 
             intent.putExtra(PackageSettingsActivity.EXTRA_PACKAGE, pkg);
@@ -154,16 +109,19 @@ public class NotificationActivity extends PreferenceActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (resultCode == RESULT_OK) {
+            /*
+             * After a restart the result may arrive before initApplicationList()
+             * parsed the rules, changes to an empty index would drop the others
+             */
+            parsePackageList();
             if (requestCode == REQ_APPLICATION) {
                 String pkg = data.getStringExtra(PackageSettingsActivity.EXTRA_PACKAGE);
                 if (TextUtils.equals(data.getAction(), Intent.ACTION_DELETE)) {
-                    mPackages.remove(pkg);
+                    mStore.remove(pkg);
                 } else {
-                    PackageSettings settings = mPackages.get(pkg);
+                    LedRuleStore.Rule settings = mStore.get(pkg);
                     if (settings == null) {
-                        settings = new PackageSettings();
-                        settings.packageName = pkg;
-                        mPackages.put(pkg, settings);
+                        settings = new LedRuleStore.Rule(pkg);
                     }
                     if (data.hasExtra(PackageSettingsActivity.EXTRA_COLOR)) {
                         settings.color = data.getStringExtra(PackageSettingsActivity.EXTRA_COLOR);
@@ -177,26 +135,24 @@ public class NotificationActivity extends PreferenceActivity {
                     if (data.hasExtra(PackageSettingsActivity.EXTRA_CATEGORY)) {
                         settings.category = data.getStringExtra(PackageSettingsActivity.EXTRA_CATEGORY);
                     }
+                    mStore.put(settings);
                 }
                 savePackageList();
             } else if (requestCode == REQ_CATEGORY_LIST) {
                 List<String> categories =
                         Arrays.asList(data.getStringArrayExtra(CategoryActivity.EXTRA_CATEGORIES));
-                boolean packageChanged = false;
 
                 /* make sure to clear out all references to deleted categories */
-                for (PackageSettings pkg : mPackages.values()) {
+                for (LedRuleStore.Rule pkg : mStore.getAll()) {
                     if (TextUtils.isEmpty(pkg.category)) {
                         continue;
                     }
                     if (!categories.contains(pkg.category)) {
                         pkg.category = "";
-                        packageChanged = true;
+                        mStore.put(pkg);
                     }
                 }
-                if (packageChanged) {
-                    savePackageList();
-                }
+                savePackageList();
             }
 
             initApplicationList();
@@ -227,33 +183,16 @@ public class NotificationActivity extends PreferenceActivity {
         t.start();
     }
 
+    /* Only parses the setting if it changed since the screen was last open */
     private void parsePackageList() {
-        String baseString = Settings.System.getString(getContentResolver(),
-                            Settings.System.NOTIFICATION_PACKAGE_COLORS);
-        String[] array = LedUtils.arrayFromString(baseString, '|');
-
-        mPackages = new HashMap<String, PackageSettings>();
-        if (array != null) {
-            for (String item : array) {
-                if (TextUtils.isEmpty(item)) {
-                    continue;
-                }
-                PackageSettings settings = PackageSettings.fromString(item);
-                if (settings != null) {
-                    mPackages.put(settings.packageName, settings);
-                }
-            }
-        }
+        mStore.load(getContentResolver());
     }
 
+    /* Writes nothing if no rule changed */
     private void savePackageList() {
-        List<String> settings = new ArrayList<String>();
-        for (PackageSettings setting : mPackages.values()) {
-            settings.add(setting.toString());
+        if (!mStore.commit(getContentResolver())) {
+            Log.e("NotificationActivity", "Could not save the LED rules");
         }
-        String value = LedUtils.stringFromArray(settings.toArray(new String[0]), '|');
-        Settings.System.putString(getContentResolver(),
-                                  Settings.System.NOTIFICATION_PACKAGE_COLORS, value);
     }
 
     private String knownPackage(String pkg) {
@@ -292,11 +231,10 @@ public class NotificationActivity extends PreferenceActivity {
         PackageManager packageManager = getPackageManager();
         List<PackageInfo> packs = packageManager.getInstalledPackages(0);
         List<PackageInfo> list = new ArrayList<PackageInfo>();
-        SharedPreferences pkgPrefs = getSharedPreferences("led_packages", Context.MODE_PRIVATE);
         for (PackageInfo p : packs) {
             try {
                 String pkg = p.packageName;
-                if (pkgPrefs.getString(pkg, null) != null || knownPackage(pkg) != null) {
+                if (mTracker.isSeen(pkg) || knownPackage(pkg) != null) {
                     list.add(p);
                 }
             } catch (Exception e) {
@@ -309,7 +247,7 @@ public class NotificationActivity extends PreferenceActivity {
     private Set<String> getCategoryList() {
         Set<String> categories = new TreeSet<String>();
 
-        for (PackageSettings settings : mPackages.values()) {
+        for (LedRuleStore.Rule settings : mStore.getAll()) {
             if (settings.category != null) {
                 categories.add(settings.category);
             }
@@ -320,13 +258,24 @@ public class NotificationActivity extends PreferenceActivity {
 
     private void populateApplicationList() {
         final PreferenceCategory parent = (PreferenceCategory) findPreference("applications");
-        Map<String, PackageInfo> sortedPackages = new TreeMap<String, PackageInfo>();
+        Map<String, PackageInfo> packagesByName = new TreeMap<String, PackageInfo>();
         Map<String, PreferenceScreen> categories = new HashMap<String, PreferenceScreen>();
 
         for (PackageInfo pkgInfo : getPackageList()) {
-            sortedPackages.put(getPackageName(pkgInfo), pkgInfo);
+            packagesByName.put(getPackageName(pkgInfo), pkgInfo);
         }
 
+        /* Most recently active first, the sort keeps ties in name order */
+        List<Map.Entry<String, PackageInfo>> sortedPackages =
+                new ArrayList<Map.Entry<String, PackageInfo>>(packagesByName.entrySet());
+        Collections.sort(sortedPackages, new Comparator<Map.Entry<String, PackageInfo>>() {
+            public int compare(Map.Entry<String, PackageInfo> a, Map.Entry<String, PackageInfo> b) {
+                long lastA = mTracker.getLastSeen(a.getValue().packageName);
+                long lastB = mTracker.getLastSeen(b.getValue().packageName);
+                return lastA > lastB ? -1 : (lastA < lastB ? 1 : 0);
+            }
+        });
+
         parent.removeAll();
 
         PreferenceScreen unconfGroup = getPreferenceManager().createPreferenceScreen(this);
@@ -347,14 +296,14 @@ public class NotificationActivity extends PreferenceActivity {
             createEditCategorySettings(categoryGroup);
         }
 
-        for (Map.Entry<String, PackageInfo> pkgEntry : sortedPackages.entrySet()) {
+        for (Map.Entry<String, PackageInfo> pkgEntry : sortedPackages) {
             String pkg = pkgEntry.getValue().packageName;
 
             if (TextUtils.isEmpty(pkg)) {
                 continue;
             }
 
-            PackageSettings settings = mPackages.get(pkg);
+            LedRuleStore.Rule settings = mStore.get(pkg);
             PreferenceScreen catScreen = unconfGroup;
 
             if (settings != null) {
@@ -367,6 +316,11 @@ public class NotificationActivity extends PreferenceActivity {
 
                 appName.setKey("app_" + pkg);
                 appName.setTitle(shortPackageName);
+                int count = mTracker.getCount(pkg);
+                if (count > 0) {
+                    appName.setSummary(getString(R.string.trackball_app_stats, count,
+                            DateUtils.getRelativeTimeSpanString(mTracker.getLastSeen(pkg))));
+                }
                 catScreen.addPreference(appName);
             }
         }
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.intents;
+
+import com.cyanogenmod.cmparts.activities.CPUActivity;
+import com.cyanogenmod.cmparts.activities.PerformanceSettingsActivity;
+import com.cyanogenmod.cmparts.services.CPUProfileService;
+import com.cyanogenmod.cmparts.utils.BlockDeviceManager;
+import com.cyanogenmod.cmparts.utils.CPUPolicyEngine;
+import com.cyanogenmod.cmparts.utils.DeviceCapabilities;
+import com.cyanogenmod.cmparts.utils.RestorePipeline;
+import com.cyanogenmod.cmparts.utils.SysfsWriter;
+import com.cyanogenmod.cmparts.utils.ZramManager;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.PowerManager;
+import android.os.SystemProperties;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Restores all kernel tunables on boot in one background job. Steps which
+ * depend on each other are ordered, e.g. the governor is set before the
+ * frequency limits, and the outcome of each step is kept as boot report.
+ */
+public class BootReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "BootRestore";
+
+    private static final String RESTORED_PROP = "sys.cmparts.restored";
+
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+        if (!Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            return;
+        }
+        /* Only once per boot, not again when the process is restarted */
+        if (SystemProperties.getBoolean(RESTORED_PROP, false)) {
+            return;
+        }
+        SystemProperties.set(RESTORED_PROP, "true");
+
+        final Context appCtx = ctx.getApplicationContext();
+        PowerManager pm = (PowerManager) appCtx.getSystemService(Context.POWER_SERVICE);
+        final PowerManager.WakeLock wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG);
+        wakeLock.acquire();
+
+        new Thread(TAG) {
+            @Override
+            public void run() {
+                try {
+                    if (DeviceCapabilities.getInstance(appCtx).has(
+                            DeviceCapabilities.CAP_CPUFREQ_STATS)) {
+                        CPUReceiver.scheduleStatsSampling(appCtx);
+                    }
+                    List<RestorePipeline.Entry> report = createPipeline(appCtx).run();
+                    RestorePipeline.saveReport(appCtx, report);
+                } finally {
+                    wakeLock.release();
+                }
+            }
+        }.start();
+    }
+
+    public static RestorePipeline createPipeline(final Context ctx) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        final DeviceCapabilities caps = DeviceCapabilities.getInstance(ctx);
+        final SysfsWriter writer = SysfsWriter.getInstance();
+        final CPUPolicyEngine engine = CPUPolicyEngine.getInstance();
+        final boolean restoreCPU = prefs.getBoolean(CPUActivity.SOB_PREF, false);
+
+        RestorePipeline pipeline = new RestorePipeline();
+
+        pipeline.add(new RestorePipeline.Step("cpu.governor") {
+            public int run() {
+                String governor = prefs.getString(CPUActivity.GOV_PREF, null);
+                if (!restoreCPU || governor == null
+                        || !Arrays.asList(engine.getAvailableGovernors()).contains(governor)) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                return status(engine.setGovernor(governor));
+            }
+        });
+
+        /*
+         * The max goes through the profile state machine, which caps it for
+         * the current battery and dock state and remembers what it wrote.
+         * The kernel rejects min > max, so whichever moves away from the
+         * other goes first.
+         */
+        pipeline.add(new RestorePipeline.Step("cpu.frequency", "cpu.governor") {
+            public int run() {
+                List<String> frequencies = Arrays.asList(engine.getAvailableFrequencies());
+                String minFrequency = prefs.getString(CPUActivity.MIN_FREQ_PREF, null);
+                String maxFrequency = prefs.getString(CPUActivity.MAX_FREQ_PREF, null);
+                if (minFrequency != null && !frequencies.contains(minFrequency)) {
+                    minFrequency = null;
+                }
+                if (maxFrequency != null && !frequencies.contains(maxFrequency)) {
+                    maxFrequency = null;
+                }
+                if (!restoreCPU || (minFrequency == null && maxFrequency == null)) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                boolean maxFirst = maxFrequency != null
+                        && compareFrequency(maxFrequency, engine.getMinFrequency()) < 0;
+                boolean success = true;
+                if (maxFirst) {
+                    success &= CPUReceiver.setDefaultMaxFrequency(ctx, maxFrequency);
+                }
+                if (minFrequency != null) {
+                    success &= engine.setMinFrequency(minFrequency);
+                }
+                if (!maxFirst && maxFrequency != null) {
+                    success &= CPUReceiver.setDefaultMaxFrequency(ctx, maxFrequency);
+                }
+                return status(success);
+            }
+        });
+
+        /* Caps on top of the limits just restored */
+        pipeline.add(new RestorePipeline.Step("cpu.thermal", "cpu.frequency") {
+            public int run() {
+                if (!prefs.getBoolean(CPUActivity.THERMAL_PREF, false)) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                CPUReceiver.setThermalEnabled(ctx, true);
+                return RestorePipeline.STATUS_OK;
+            }
+        });
+
+        /* Profile events only once the limits and thermal cap they act on are set */
+        pipeline.add(new RestorePipeline.Step("cpu.profiles", "cpu.frequency", "cpu.thermal") {
+            public int run() {
+                CPUProfileService.update(ctx);
+                return RestorePipeline.STATUS_OK;
+            }
+        });
+
+        pipeline.add(new RestorePipeline.Step("iosched.all") {
+            public int run() {
+                String scheduler = SystemProperties.get(
+                        PerformanceSettingsActivity.IOSCHED_PERSIST_PROP);
+                if (scheduler == null || scheduler.length() == 0) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                return status(BlockDeviceManager.getInstance().setSchedulerAll(scheduler) > 0);
+            }
+        });
+
+        pipeline.add(new RestorePipeline.Step("readahead.sdcard") {
+            public int run() {
+                return writePref(prefs, caps.has(DeviceCapabilities.CAP_READ_AHEAD),
+                        PerformanceSettingsActivity.SDCARD_PREF,
+                        PerformanceSettingsActivity.SDCARD_RUN_FILE);
+            }
+        });
+
+        /* Settings made per device win over the ones made for all */
+        pipeline.add(new RestorePipeline.Step("storage.devices", "iosched.all",
+                "readahead.sdcard") {
+            public int run() {
+                return status(BlockDeviceManager.getInstance().restore(ctx) == 0);
+            }
+        });
+
+        pipeline.add(new RestorePipeline.Step("ksm.sleep") {
+            public int run() {
+                return writePref(prefs, caps.has(DeviceCapabilities.CAP_KSM),
+                        PerformanceSettingsActivity.KSM_SLEEP_PREF,
+                        PerformanceSettingsActivity.KSM_SLEEP_RUN_FILE);
+            }
+        });
+
+        pipeline.add(new RestorePipeline.Step("ksm.scan") {
+            public int run() {
+                return writePref(prefs, caps.has(DeviceCapabilities.CAP_KSM),
+                        PerformanceSettingsActivity.KSM_SCAN_PREF,
+                        PerformanceSettingsActivity.KSM_SCAN_RUN_FILE);
+            }
+        });
+
+        /* Start merging only once the rate is set */
+        pipeline.add(new RestorePipeline.Step("ksm.run", "ksm.sleep", "ksm.scan") {
+            public int run() {
+                if (!caps.has(DeviceCapabilities.CAP_KSM)
+                        || !prefs.contains(PerformanceSettingsActivity.KSM_PREF)) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                boolean enabled = prefs.getBoolean(PerformanceSettingsActivity.KSM_PREF, false);
+                return status(writer.writeSync(PerformanceSettingsActivity.KSM_RUN_FILE,
+                        enabled ? PerformanceSettingsActivity.KSM_PREF_ENABLED
+                                : PerformanceSettingsActivity.KSM_PREF_DISABLED));
+            }
+        });
+
+        pipeline.add(new RestorePipeline.Step("lowmemkill") {
+            public int run() {
+                return writePref(prefs, caps.has(DeviceCapabilities.CAP_LOWMEMKILLER),
+                        PerformanceSettingsActivity.LOWMEMKILL_PREF,
+                        PerformanceSettingsActivity.LOWMEMKILL_RUN_FILE);
+            }
+        });
+
+        /* The tuner starts from the preset just written */
+        pipeline.add(new RestorePipeline.Step("lowmemkill.adaptive", "lowmemkill") {
+            public int run() {
+                if (!caps.has(DeviceCapabilities.CAP_LOWMEMKILLER)
+                        || !prefs.getBoolean(LowMemoryReceiver.ADAPTIVE_PREF, false)) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                LowMemoryReceiver.setAdaptive(ctx, true);
+                return RestorePipeline.STATUS_OK;
+            }
+        });
+
+        /* init sets up compcache already, only fix up a size it got wrong */
+        pipeline.add(new RestorePipeline.Step("zram") {
+            public int run() {
+                ZramManager zram = ZramManager.getInstance();
+                int percent = parseInt(prefs.getString(
+                        PerformanceSettingsActivity.COMPCACHE_PREF, null));
+                if (percent < 0 || !zram.isAvailable()) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                long size = zram.getSizeForPercent(percent);
+                if (zram.getStats().diskSize == size) {
+                    return RestorePipeline.STATUS_SKIPPED;
+                }
+                return status(zram.resize(size));
+            }
+        });
+
+        return pipeline;
+    }
+
+    /**
+     * Writes a value the user picked to its node, if the device has it.
+     */
+    private static int writePref(SharedPreferences prefs, boolean available, String key,
+            String path) {
+        String value = prefs.getString(key, null);
+        if (!available || value == null) {
+            return RestorePipeline.STATUS_SKIPPED;
+        }
+        boolean written = SysfsWriter.getInstance().writeSync(path, value);
+        if (!written) {
+            Log.e(TAG, "Could not write " + value + " to " + path);
+        }
+        return status(written);
+    }
+
+    private static int status(boolean success) {
+        return success ? RestorePipeline.STATUS_OK : RestorePipeline.STATUS_FAILED;
+    }
+
+    /**
+     * @return a negative number if a is lower than b, 0 if either is unknown
+     */
+    private static int compareFrequency(String a, String b) {
+        try {
+            long diff = Long.parseLong(a.trim()) - Long.parseLong(b.trim());
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        } catch (NullPointerException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static int parseInt(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.intents;
+
+import com.cyanogenmod.cmparts.utils.SelfCheck;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays event sequences against {@link CPUProfileStateMachine} and
+ * checks the max frequency written after each event.
+ *
+ * A scenario is a list of steps, "event expected", where expected is the
+ * frequency which must be written in response or "-" if nothing may be
+ * written. Events are named after the broadcasts CPUReceiver handles:
+ * screen_on, screen_off, power_connected, power_disconnected, battery_low,
+ * battery_okay, dock_car and undock, plus battery=charging,low for
+ * ACTION_BATTERY_CHANGED and thermal=cap (or thermal=-) for the throttle.
+ */
+public class CPUProfileReplay extends SelfCheck {
+
+    /* Max frequencies indexed by profile, thermal is set by events */
+    private static final String[] PROFILES = new String[] {
+        "1000000", "245000", "384000", "806000", "614000"
+    };
+
+    private static final String[][] SCENARIOS = new String[][] {
+        {
+            /* Priorities: car dock > charging > low battery > screen off */
+            "screen_off 245000",
+            "power_connected 806000",
+            "screen_on -",
+            "dock_car 614000",
+            "undock 806000",
+            "power_disconnected 1000000",
+            "battery_low 384000",
+            "screen_off -",
+            "battery_okay 245000",
+            "screen_on 1000000",
+        },
+        {
+            /* Battery changes only write when the profile changes */
+            "battery=false,false -",
+            "battery=true,false 806000",
+            "battery=true,false -",
+            "battery=true,true -",
+            "battery=false,true 384000",
+            "battery=false,false 1000000",
+        },
+        {
+            /* The thermal cap applies only while it is below the profile's */
+            "thermal=500000 500000",
+            "screen_off 245000",
+            "thermal=200000 200000",
+            "thermal=500000 245000",
+            "screen_on 500000",
+            "thermal=- 1000000",
+        },
+    };
+
+    public static class RecordingWriter implements CPUProfileStateMachine.Writer {
+        public final List<String> writes = new ArrayList<String>();
+        public final List<Integer> profiles = new ArrayList<Integer>();
+
+        public boolean writeMaxFrequency(String maxFrequency) {
+            writes.add(maxFrequency);
+            return true;
+        }
+
+        public void onProfileChanged(int profile) {
+            profiles.add(profile);
+        }
+    }
+
+    public CPUProfileReplay() {
+        super("CPUProfileReplay");
+    }
+
+    /**
+     * Runs all built in scenarios, each one counts as a check.
+     */
+    @Override
+    protected void runChecks() {
+        for (int i = 0; i < SCENARIOS.length; i++) {
+            String error = replay(PROFILES, SCENARIOS[i]);
+            check("scenario " + i + ": " + error, error == null);
+        }
+    }
+
+    /**
+     * Replays one scenario against a state machine configured with the
+     * given profile frequencies, starting screen on, undocked, on battery.
+     *
+     * @return null if every step wrote what it expected, else what didn't
+     */
+    public static String replay(String[] profiles, String[] steps) {
+        RecordingWriter writer = new RecordingWriter();
+        CPUProfileStateMachine stateMachine = new CPUProfileStateMachine(writer);
+        for (int profile = 0; profile < profiles.length; profile++) {
+            stateMachine.setMaxFrequency(profile, profiles[profile]);
+        }
+        stateMachine.setAppliedFrequency(profiles[CPUProfileStateMachine.PROFILE_DEFAULT]);
+
+        for (int i = 0; i < steps.length; i++) {
+            String[] step = steps[i].split(" ");
+            int before = writer.writes.size();
+            apply(stateMachine, step[0]);
+
+            String written = writer.writes.size() > before
+                    ? writer.writes.get(writer.writes.size() - 1) : "-";
+            if (writer.writes.size() > before + 1 || !written.equals(step[1])) {
+                return "step " + i + " (" + step[0] + ") wrote " + written
+                        + ", expected " + step[1];
+            }
+        }
+        return null;
+    }
+
+    private static void apply(CPUProfileStateMachine stateMachine, String event) {
+        if (event.equals("screen_on")) {
+            stateMachine.setScreenOn(true);
+        } else if (event.equals("screen_off")) {
+            stateMachine.setScreenOn(false);
+        } else if (event.equals("power_connected")) {
+            stateMachine.setCharging(true);
+        } else if (event.equals("power_disconnected")) {
+            stateMachine.setCharging(false);
+        } else if (event.equals("battery_low")) {
+            stateMachine.setBatteryLow(true);
+        } else if (event.equals("battery_okay")) {
+            stateMachine.setBatteryLow(false);
+        } else if (event.equals("dock_car")) {
+            stateMachine.setCarDocked(true);
+        } else if (event.equals("undock")) {
+            stateMachine.setCarDocked(false);
+        } else if (event.startsWith("battery=")) {
+            String[] state = event.substring("battery=".length()).split(",");
+            stateMachine.setBatteryState(Boolean.parseBoolean(state[0]),
+                    Boolean.parseBoolean(state[1]));
+        } else if (event.startsWith("thermal=")) {
+            String cap = event.substring("thermal=".length());
+            stateMachine.setThermalCap(cap.equals("-") ? null : cap);
+        } else {
+            throw new IllegalArgumentException("Unknown event " + event);
+        }
+    }
+}
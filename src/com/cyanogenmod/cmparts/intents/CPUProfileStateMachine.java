@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.intents;
+
+import android.util.Log;
+
+/**
+ * Tracks screen, dock, charger and battery state across broadcasts and
+ * resolves which max frequency profile applies.
+ *
+ * Priority is car dock > charging > low battery > screen off > default.
+ * A profile without a configured max frequency is skipped. The thermal
+ * profile overrides any of them while its cap is lower. The writer is
+ * only called when the resolved frequency differs from the last one written.
+ * This class has no Android dependencies apart from logging, so event
+ * sequences can be replayed against a recording Writer.
+ */
+public class CPUProfileStateMachine {
+
+    private static final String TAG = "CPUSettings";
+
+    public static final int PROFILE_DEFAULT = 0;
+    public static final int PROFILE_SCREEN_OFF = 1;
+    public static final int PROFILE_LOW_BATTERY = 2;
+    public static final int PROFILE_CHARGING = 3;
+    public static final int PROFILE_CAR_DOCK = 4;
+    public static final int PROFILE_THERMAL = 5;
+    public static final int PROFILE_COUNT = 6;
+
+    public interface Writer {
+        /**
+         * @return true if the kernel accepted the new max frequency
+         */
+        boolean writeMaxFrequency(String maxFrequency);
+
+        /**
+         * Called whenever the resolved profile changes, whether or not a
+         * write was necessary.
+         */
+        void onProfileChanged(int profile);
+    }
+
+    private final Writer mWriter;
+    private final String[] mMaxFrequencies = new String[PROFILE_COUNT];
+
+    private boolean mScreenOn = true;
+    private boolean mCarDocked;
+    private boolean mCharging;
+    private boolean mBatteryLow;
+
+    private int mProfile = PROFILE_DEFAULT;
+    private String mAppliedFrequency;
+    private String mHardwareMaxFrequency;
+
+    public CPUProfileStateMachine(Writer writer) {
+        mWriter = writer;
+    }
+
+    /**
+     * Sets the configured max frequency of a profile. Null disables the
+     * profile.
+     */
+    public synchronized void setMaxFrequency(int profile, String maxFrequency) {
+        mMaxFrequencies[profile] = maxFrequency;
+    }
+
+    /**
+     * Records a max frequency which was written outside of the state
+     * machine, e.g. by the boot restore.
+     */
+    public synchronized void setAppliedFrequency(String maxFrequency) {
+        mAppliedFrequency = maxFrequency;
+    }
+
+    /**
+     * Sets the frequency to restore to when no normal max frequency is
+     * saved, so the other profiles, thermal in particular, can still apply.
+     */
+    public synchronized void setHardwareMaxFrequency(String maxFrequency) {
+        mHardwareMaxFrequency = maxFrequency;
+    }
+
+    public synchronized String getAppliedFrequency() {
+        return mAppliedFrequency;
+    }
+
+    public synchronized int getProfile() {
+        return mProfile;
+    }
+
+    public synchronized boolean setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+        return update();
+    }
+
+    public synchronized boolean setCarDocked(boolean carDocked) {
+        mCarDocked = carDocked;
+        return update();
+    }
+
+    public synchronized boolean setCharging(boolean charging) {
+        mCharging = charging;
+        return update();
+    }
+
+    public synchronized boolean setBatteryLow(boolean batteryLow) {
+        mBatteryLow = batteryLow;
+        return update();
+    }
+
+    /**
+     * Updates charger and battery level state with a single resolve, as
+     * reported by ACTION_BATTERY_CHANGED.
+     */
+    public synchronized boolean setBatteryState(boolean charging, boolean batteryLow) {
+        mCharging = charging;
+        mBatteryLow = batteryLow;
+        return update();
+    }
+
+    /**
+     * Sets all state at once, e.g. from sticky broadcasts after the process
+     * was restarted, and applies the result.
+     */
+    public synchronized boolean setState(boolean screenOn, boolean carDocked,
+            boolean charging, boolean batteryLow) {
+        mScreenOn = screenOn;
+        mCarDocked = carDocked;
+        mCharging = charging;
+        mBatteryLow = batteryLow;
+        return update();
+    }
+
+    /**
+     * Sets the cap of the thermal profile. Null ends throttling.
+     */
+    public synchronized boolean setThermalCap(String maxFrequency) {
+        mMaxFrequencies[PROFILE_THERMAL] = maxFrequency;
+        return update();
+    }
+
+    public synchronized int resolveProfile() {
+        int profile = resolveStateProfile();
+        String cap = mMaxFrequencies[PROFILE_THERMAL];
+        String max = getMaxFrequency(profile);
+        if (cap != null && max != null && Long.parseLong(cap) < Long.parseLong(max)) {
+            return PROFILE_THERMAL;
+        }
+        return profile;
+    }
+
+    /**
+     * @return the max frequency a profile applies, the hardware max for
+     *         the default profile if none is saved
+     */
+    private String getMaxFrequency(int profile) {
+        if (profile == PROFILE_DEFAULT && mMaxFrequencies[PROFILE_DEFAULT] == null) {
+            return mHardwareMaxFrequency;
+        }
+        return mMaxFrequencies[profile];
+    }
+
+    private int resolveStateProfile() {
+        if (mCarDocked && mMaxFrequencies[PROFILE_CAR_DOCK] != null) {
+            return PROFILE_CAR_DOCK;
+        }
+        if (mCharging && mMaxFrequencies[PROFILE_CHARGING] != null) {
+            return PROFILE_CHARGING;
+        }
+        if (mBatteryLow && !mCharging && mMaxFrequencies[PROFILE_LOW_BATTERY] != null) {
+            return PROFILE_LOW_BATTERY;
+        }
+        if (!mScreenOn && mMaxFrequencies[PROFILE_SCREEN_OFF] != null) {
+            return PROFILE_SCREEN_OFF;
+        }
+        return PROFILE_DEFAULT;
+    }
+
+    /**
+     * Resolves the profile and writes its max frequency if it changed.
+     *
+     * @return true if a write was issued and succeeded
+     */
+    public synchronized boolean update() {
+        /* Without a normal max frequency there is nothing to restore to */
+        if (getMaxFrequency(PROFILE_DEFAULT) == null) {
+            Log.i(TAG, "Normal max CPU freq not saved. No change.");
+            return false;
+        }
+
+        int profile = resolveProfile();
+        int previous = mProfile;
+        if (profile != mProfile) {
+            mProfile = profile;
+            mWriter.onProfileChanged(profile);
+        }
+
+        String frequency = getMaxFrequency(profile);
+        if (frequency.equals(mAppliedFrequency)) {
+            return false;
+        }
+        /*
+         * The hardware max only lifts the limit of another profile, a limit
+         * set outside of the profiles is left alone.
+         */
+        if (profile == PROFILE_DEFAULT && previous == PROFILE_DEFAULT
+                && mMaxFrequencies[PROFILE_DEFAULT] == null) {
+            return false;
+        }
+        if (!mWriter.writeMaxFrequency(frequency)) {
+            Log.e(TAG, "Unable to set max CPU freq " + frequency + " for profile " + profile);
+            return false;
+        }
+        mAppliedFrequency = frequency;
+        Log.i(TAG, "Max CPU freq " + frequency + " set for profile " + profile);
+        return true;
+    }
+}
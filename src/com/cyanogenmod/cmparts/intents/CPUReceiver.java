@@ -17,153 +17,281 @@
 package com.cyanogenmod.cmparts.intents;
 
 import com.cyanogenmod.cmparts.activities.CPUActivity;
+import com.cyanogenmod.cmparts.utils.CPUPolicyEngine;
+import com.cyanogenmod.cmparts.utils.CPUStatsCollector;
+import com.cyanogenmod.cmparts.utils.DeviceCapabilities;
+import com.cyanogenmod.cmparts.utils.ThermalMonitor;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.Configuration;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
-import android.os.SystemProperties;
+import android.os.BatteryManager;
+import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
-import android.util.Log;
-
-import java.util.Arrays;
-import java.util.List;
 
 public class CPUReceiver extends BroadcastReceiver {
 
-    private static final String TAG = "CPUSettings";
+    public static final String ACTION_THERMAL_SAMPLE = "com.cyanogenmod.cmparts.THERMAL_SAMPLE";
 
-    private static final String CPU_SETTINGS_PROP = "sys.cpufreq.restored";
-    private static final String KSM_SETTINGS_PROP = "sys.ksm.restored";
+    public static final String ACTION_STATS_SAMPLE = "com.cyanogenmod.cmparts.CPU_STATS_SAMPLE";
 
-    @Override
-    public void onReceive(Context ctx, Intent intent) {
+    public static final String THERMAL_TRIP_DEFAULT = "45";
 
-        if (intent.getAction().equals(Intent.ACTION_POWER_CONNECTED) &&
-                intent.getAction().equals(Intent.ACTION_BATTERY_CHANGED) &&
-                   !intent.getAction().equals(Intent.ACTION_BATTERY_LOW)) {
-                setChargeCPU(ctx);
-        } else if (intent.getAction().equals(Intent.ACTION_POWER_DISCONNECTED) &&
-                intent.getAction().equals(Intent.ACTION_BATTERY_CHANGED) &&
-                   intent.getAction().equals(Intent.ACTION_BATTERY_LOW)) {
-                setBatlowCPU(ctx);
-        } else if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF) &&
-                   intent.getAction().equals(Intent.ACTION_POWER_DISCONNECTED) &&
-                   !intent.getAction().equals(Intent.ACTION_BATTERY_LOW)) {
-                setScreenOffCPU(ctx, true);
-        } else if (intent.getAction().equals(Intent.ACTION_DOCK_EVENT)) {
-            int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE, Intent.EXTRA_DOCK_STATE_UNDOCKED);
-            if (state == Intent.EXTRA_DOCK_STATE_CAR)
-                setCarDockCPU(ctx, true);
-            else if (state == Intent.EXTRA_DOCK_STATE_UNDOCKED)
-                setCarDockCPU(ctx, false);
-        } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON) &&
-                   intent.getAction().equals(Intent.ACTION_POWER_DISCONNECTED) &&
-                   !intent.getAction().equals(Intent.ACTION_BATTERY_LOW)) {
-                setScreenOffCPU(ctx, false);
-        } else if (SystemProperties.getBoolean(CPU_SETTINGS_PROP, false) == false
-                && intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
-            SystemProperties.set(CPU_SETTINGS_PROP, "true");
-            configureCPU(ctx);
-        } else {
-            SystemProperties.set(CPU_SETTINGS_PROP, "false");
+    private static final int LOW_BATTERY_PERCENT = 15;
+
+    private static final long THERMAL_SAMPLE_INTERVAL = 30000;
+
+    private static final String THERMAL_STATE_PREF = "thermal_throttle_state";
+    private static final String THERMAL_BOOT_PREF = "thermal_throttle_boot";
+
+    private static CPUProfileStateMachine sStateMachine;
+
+    private static ThermalThrottle sThermalThrottle;
+
+    /* Indexed by the CPUProfileStateMachine.PROFILE_* constants, the thermal cap is set by ThermalThrottle */
+    private static final String[] PROFILE_PREFS = new String[] {
+        CPUActivity.MAX_FREQ_PREF,
+        CPUActivity.SO_MAX_FREQ_PREF,
+        CPUActivity.BAT_MAX_FREQ_PREF,
+        CPUActivity.CH_MAX_FREQ_PREF,
+        CPUActivity.CD_MAX_FREQ_PREF
+    };
+
+    /* Keeps the profile frequencies in sync without re-reading them per event */
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sPrefListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+        public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            for (int profile = 0; profile < PROFILE_PREFS.length; profile++) {
+                if (PROFILE_PREFS[profile].equals(key)) {
+                    sStateMachine.setMaxFrequency(profile, prefs.getString(key, null));
+                    sStateMachine.update();
+                }
+            }
+            if (CPUActivity.THERMAL_FREQ_PREF.equals(key)
+                    || CPUActivity.THERMAL_TRIP_PREF.equals(key)) {
+                configureThermalThrottle(prefs);
+            }
+        }
+    };
+
+    /**
+     * Returns the process wide profile state machine. On first use the
+     * configured frequencies are loaded and the current device state is
+     * taken from the sticky battery and dock broadcasts.
+     */
+    public static synchronized CPUProfileStateMachine getStateMachine(Context ctx) {
+        if (sStateMachine == null) {
+            final Context appCtx = ctx.getApplicationContext();
+            sStateMachine = new CPUProfileStateMachine(new CPUProfileStateMachine.Writer() {
+                public boolean writeMaxFrequency(String maxFrequency) {
+                    return CPUPolicyEngine.getInstance().setMaxFrequency(maxFrequency);
+                }
+
+                public void onProfileChanged(int profile) {
+                    CPUStatsCollector.getInstance(appCtx).setActiveProfile(profile);
+                }
+            });
+
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(appCtx);
+            for (int profile = 0; profile < PROFILE_PREFS.length; profile++) {
+                sStateMachine.setMaxFrequency(profile, prefs.getString(PROFILE_PREFS[profile], null));
+            }
+            prefs.registerOnSharedPreferenceChangeListener(sPrefListener);
+            sStateMachine.setAppliedFrequency(CPUPolicyEngine.getInstance().getMaxFrequency());
+            sStateMachine.setHardwareMaxFrequency(
+                    CPUPolicyEngine.getInstance().getHardwareMaxFrequency());
+
+            PowerManager pm = (PowerManager) appCtx.getSystemService(Context.POWER_SERVICE);
+            Intent battery = appCtx.registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+            Intent dock = appCtx.registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_DOCK_EVENT));
+            int dockState = dock == null ? Intent.EXTRA_DOCK_STATE_UNDOCKED
+                    : dock.getIntExtra(Intent.EXTRA_DOCK_STATE, Intent.EXTRA_DOCK_STATE_UNDOCKED);
+
+            sStateMachine.setState(pm.isScreenOn(),
+                    dockState == Intent.EXTRA_DOCK_STATE_CAR,
+                    battery != null && isCharging(battery),
+                    battery != null && isBatteryLow(battery));
         }
+        return sStateMachine;
+    }
 
+    /**
+     * Sets the normal max frequency and applies it unless another profile
+     * is active.
+     *
+     * @return false if the frequency had to be written and that failed
+     */
+    public static boolean setDefaultMaxFrequency(Context ctx, String maxFrequency) {
+        CPUProfileStateMachine stateMachine = getStateMachine(ctx);
+        synchronized (stateMachine) {
+            stateMachine.setMaxFrequency(CPUProfileStateMachine.PROFILE_DEFAULT, maxFrequency);
+            stateMachine.update();
+            return stateMachine.getProfile() != CPUProfileStateMachine.PROFILE_DEFAULT
+                    || maxFrequency.equals(stateMachine.getAppliedFrequency());
+        }
     }
 
-    private void setScreenOffCPU(Context ctx, boolean screenOff) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-        String maxFrequency = prefs.getString(CPUActivity.MAX_FREQ_PREF, null);
-        String maxSoFrequency = prefs.getString(CPUActivity.SO_MAX_FREQ_PREF, null);
-        if (maxSoFrequency == null || maxFrequency == null) {
-            Log.i(TAG, "Screen off or normal max CPU freq not saved. No change.");
-        } else {
-            if (screenOff) {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MAX_FILE, maxSoFrequency);
-                Log.i(TAG, "Screen off max CPU freq set");
-            } else {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MAX_FILE, maxFrequency);
-                Log.i(TAG, "Normal (screen on) max CPU freq restored");
+    /**
+     * Returns the process wide thermal throttle, configured from the
+     * preferences. On first use the state saved in this boot is restored,
+     * so a throttled device stays throttled until it cooled down.
+     */
+    public static synchronized ThermalThrottle getThermalThrottle(Context ctx) {
+        if (sThermalThrottle == null) {
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+            sThermalThrottle = new ThermalThrottle();
+            configureThermalThrottle(prefs);
+            /* Event times are elapsed realtime, and the boot restore lifted the cap */
+            String bootId = DeviceCapabilities.readBootId();
+            if (bootId != null && bootId.equals(prefs.getString(THERMAL_BOOT_PREF, null))) {
+                sThermalThrottle.setState(prefs.getString(THERMAL_STATE_PREF, null));
             }
         }
+        return sThermalThrottle;
+    }
+
+    private static void saveThermalState(Context ctx, ThermalThrottle throttle) {
+        PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                .putString(THERMAL_STATE_PREF, throttle.getState())
+                .putString(THERMAL_BOOT_PREF, DeviceCapabilities.readBootId())
+                .commit();
+    }
+
+    private static synchronized void configureThermalThrottle(SharedPreferences prefs) {
+        if (sThermalThrottle == null) {
+            return;
+        }
+        int trip;
+        try {
+            trip = Integer.parseInt(prefs.getString(CPUActivity.THERMAL_TRIP_PREF,
+                    THERMAL_TRIP_DEFAULT));
+        } catch (NumberFormatException e) {
+            trip = Integer.parseInt(THERMAL_TRIP_DEFAULT);
+        }
+        sThermalThrottle.configure(trip * 10, prefs.getString(CPUActivity.THERMAL_FREQ_PREF, null),
+                CPUPolicyEngine.getInstance().getAvailableFrequencies());
     }
 
-    private boolean setCarDockCPU(Context ctx, boolean carDock) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-        String maxFrequency = prefs.getString(CPUActivity.MAX_FREQ_PREF, null);
-        String maxCdFrequency = prefs.getString(CPUActivity.CD_MAX_FREQ_PREF, null);
-        if (maxCdFrequency == null || maxFrequency == null) {
-            Log.i(TAG, "CarDock or normal max CPU frequency not saved. No change.");
-            return false;
+    /**
+     * Starts or stops sampling temperatures. Stopping lifts the cap.
+     */
+    public static void setThermalEnabled(Context ctx, boolean enabled) {
+        AlarmManager am = (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_THERMAL_SAMPLE);
+        intent.setClass(ctx, CPUReceiver.class);
+        PendingIntent pi = PendingIntent.getBroadcast(ctx, 0, intent, 0);
+
+        if (enabled) {
+            am.setRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + THERMAL_SAMPLE_INTERVAL,
+                    THERMAL_SAMPLE_INTERVAL, pi);
         } else {
-            if (carDock) {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MAX_FILE, maxCdFrequency);
-                Log.i(TAG, "CarDock max CPU freq set");
-            } else {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MAX_FILE, maxFrequency);
-                Log.i(TAG, "Normal max CPU freq restored");
-            }
+            am.cancel(pi);
+            ThermalThrottle throttle = getThermalThrottle(ctx);
+            throttle.reset();
+            saveThermalState(ctx, throttle);
+            getStateMachine(ctx).setThermalCap(null);
         }
-        return true;
     }
 
-    private void setChargeCPU(Context ctx) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-        String maxChFrequency = prefs.getString(CPUActivity.CH_MAX_FREQ_PREF, null);
-            if (maxChFrequency != null) {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MAX_FILE, maxChFrequency);
-                Log.i(TAG, "Charging on  max CPU freq set");
-            }
+    /**
+     * Starts snapshotting cpufreq statistics periodically, unless that is
+     * already scheduled. The alarm doesn't wake the device, residency
+     * while asleep is picked up by the next snapshot.
+     */
+    public static void scheduleStatsSampling(Context ctx) {
+        Intent intent = new Intent(ACTION_STATS_SAMPLE);
+        intent.setClass(ctx, CPUReceiver.class);
+        if (PendingIntent.getBroadcast(ctx, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+        AlarmManager am = (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent pi = PendingIntent.getBroadcast(ctx, 0, intent, 0);
+        am.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + AlarmManager.INTERVAL_FIFTEEN_MINUTES,
+                AlarmManager.INTERVAL_FIFTEEN_MINUTES, pi);
     }
 
-    private void setBatlowCPU(Context ctx) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
-        String maxBatFrequency = prefs.getString(CPUActivity.BAT_MAX_FREQ_PREF, null);
-            if (maxBatFrequency != null) {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MAX_FILE, maxBatFrequency);
-                Log.i(TAG, "Low battery on  max CPU freq set");
-            }
+    /**
+     * Feeds the hottest of the thermal zones and the battery to the
+     * throttle and applies its cap.
+     */
+    private static void sampleThermal(Context ctx, Intent battery) {
+        if (!PreferenceManager.getDefaultSharedPreferences(ctx).getBoolean(
+                CPUActivity.THERMAL_PREF, false)) {
+            setThermalEnabled(ctx, false);
+            return;
+        }
+        int temperature = ThermalMonitor.getInstance().readMaxTemperature();
+        if (battery == null) {
+            battery = ctx.getApplicationContext().registerReceiver(null,
+                    new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        }
+        if (battery != null && battery.hasExtra(BatteryManager.EXTRA_TEMPERATURE)) {
+            temperature = Math.max(temperature,
+                    battery.getIntExtra(BatteryManager.EXTRA_TEMPERATURE, 0));
+        }
+        if (temperature == ThermalMonitor.NO_TEMPERATURE) {
+            return;
+        }
+        ThermalThrottle throttle = getThermalThrottle(ctx);
+        int level = throttle.getLevel();
+        String cap = throttle.update(SystemClock.elapsedRealtime(), temperature);
+        if (throttle.getLevel() != level) {
+            saveThermalState(ctx, throttle);
+        }
+        getStateMachine(ctx).setThermalCap(cap);
     }
 
-    private void configureCPU(Context ctx) {
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+        String action = intent.getAction();
 
-        if (prefs.getBoolean(CPUActivity.SOB_PREF, false) == false) {
-            Log.i(TAG, "Restore disabled by user preference.");
+        if (ACTION_THERMAL_SAMPLE.equals(action)) {
+            sampleThermal(ctx, null);
+            return;
+        }
+        if (ACTION_STATS_SAMPLE.equals(action)) {
+            CPUStatsCollector.getInstance(ctx).snapshot();
             return;
         }
 
-        String governor = prefs.getString(CPUActivity.GOV_PREF, null);
-        String minFrequency = prefs.getString(CPUActivity.MIN_FREQ_PREF, null);
-        String maxFrequency = prefs.getString(CPUActivity.MAX_FREQ_PREF, null);
-        String availableFrequenciesLine = CPUActivity.readOneLine(CPUActivity.FREQ_LIST_FILE);
-        String availableGovernorsLine = CPUActivity.readOneLine(CPUActivity.GOVERNORS_LIST_FILE);
-        boolean noSettings = ((availableGovernorsLine == null) || (governor == null)) && 
-                             ((availableFrequenciesLine == null) || ((minFrequency == null) && (maxFrequency == null)));
-        List<String> frequencies = null;
-        List<String> governors = null;
-        
-        if (noSettings) {
-            Log.d(TAG, "No settings saved. Nothing to restore.");
-        } else {
-            if (availableGovernorsLine != null){
-                governors = Arrays.asList(availableGovernorsLine.split(" "));  
-            }
-            if (availableFrequenciesLine != null){
-                frequencies = Arrays.asList(availableFrequenciesLine.split(" "));  
-            }
-            if (governor != null && governors != null && governors.contains(governor)) {
-                CPUActivity.writeOneLine(CPUActivity.GOVERNOR, governor);
-            }
-            if (maxFrequency != null && frequencies != null && frequencies.contains(maxFrequency)) {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MAX_FILE, maxFrequency);
-            }
-            if (minFrequency != null && frequencies != null && frequencies.contains(minFrequency)) {
-                CPUActivity.writeOneLine(CPUActivity.FREQ_MIN_FILE, minFrequency);
-            }
-            Log.d(TAG, "CPU settings restored.");
+        CPUProfileStateMachine stateMachine = getStateMachine(ctx);
+
+        if (Intent.ACTION_SCREEN_ON.equals(action)) {
+            stateMachine.setScreenOn(true);
+        } else if (Intent.ACTION_SCREEN_OFF.equals(action)) {
+            stateMachine.setScreenOn(false);
+        } else if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+            stateMachine.setCharging(true);
+        } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+            stateMachine.setCharging(false);
+        } else if (Intent.ACTION_BATTERY_LOW.equals(action)) {
+            stateMachine.setBatteryLow(true);
+        } else if (Intent.ACTION_BATTERY_OKAY.equals(action)) {
+            stateMachine.setBatteryLow(false);
+        } else if (Intent.ACTION_BATTERY_CHANGED.equals(action)) {
+            stateMachine.setBatteryState(isCharging(intent), isBatteryLow(intent));
+        } else if (Intent.ACTION_DOCK_EVENT.equals(action)) {
+            int state = intent.getIntExtra(Intent.EXTRA_DOCK_STATE, Intent.EXTRA_DOCK_STATE_UNDOCKED);
+            stateMachine.setCarDocked(state == Intent.EXTRA_DOCK_STATE_CAR);
         }
     }
-}
 
+    private static boolean isCharging(Intent battery) {
+        return battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    private static boolean isBatteryLow(Intent battery) {
+        int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+        int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, 100);
+        return level >= 0 && scale > 0 && level * 100 / scale <= LOW_BATTERY_PERCENT;
+    }
+}
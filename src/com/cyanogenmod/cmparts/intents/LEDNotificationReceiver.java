@@ -16,11 +16,12 @@
 
 package com.cyanogenmod.cmparts.intents;
 
+import com.cyanogenmod.cmparts.utils.NotificationTracker;
+
 import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.text.TextUtils;
 
 public class LEDNotificationReceiver extends BroadcastReceiver {
@@ -30,11 +31,8 @@ public class LEDNotificationReceiver extends BroadcastReceiver {
         /* add package which sent out the notification to our own tracking list */
         String pkg = intent.getStringExtra(NotificationManager.EXTRA_PACKAGE);
         /* filter out our test notifications */
-        if (!TextUtils.equals(ctx.getPackageName(), pkg)) {
-            SharedPreferences pkgPrefs = ctx.getSharedPreferences("led_packages", Context.MODE_PRIVATE);
-            SharedPreferences.Editor editor = pkgPrefs.edit();
-            editor.putString(pkg, "");
-            editor.commit();
+        if (pkg != null && !TextUtils.equals(ctx.getPackageName(), pkg)) {
+            NotificationTracker.getInstance(ctx).onNotification(pkg, System.currentTimeMillis());
         }
     }
 }
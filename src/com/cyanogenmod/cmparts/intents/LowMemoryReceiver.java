@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.intents;
+
+import com.cyanogenmod.cmparts.R;
+import com.cyanogenmod.cmparts.activities.CPUActivity;
+import com.cyanogenmod.cmparts.activities.PerformanceSettingsActivity;
+import com.cyanogenmod.cmparts.utils.LowMemoryTuner;
+import com.cyanogenmod.cmparts.utils.SysfsWriter;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Drives the adaptive lowmemorykiller mode. While enabled, a non waking
+ * alarm samples memory pressure periodically and applies the thresholds
+ * chosen by {@link LowMemoryTuner}. Sampling is started on boot by
+ * {@link BootReceiver}. A decision takes several alarms, and the process
+ * is likely to be killed between them under the very pressure measured,
+ * so the tuner's window is saved after every sample.
+ */
+public class LowMemoryReceiver extends BroadcastReceiver {
+
+    private static final String TAG = "LowMemoryReceiver";
+
+    public static final String ACTION_SAMPLE = "com.cyanogenmod.cmparts.LOWMEMKILL_SAMPLE";
+
+    public static final String ADAPTIVE_PREF = "pref_lowmemkill_adaptive";
+
+    private static final long SAMPLE_INTERVAL = 30000;
+
+    private static final String STATE_PREF = "lowmemkill_tuner_state";
+
+    private static LowMemoryTuner sTuner;
+
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+        if (!ACTION_SAMPLE.equals(intent.getAction())) {
+            return;
+        }
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        if (!prefs.getBoolean(ADAPTIVE_PREF, false)) {
+            setAdaptive(ctx, false);
+            return;
+        }
+        LowMemoryTuner tuner = getTuner(ctx);
+        int[] minfree = tuner.sample();
+        if (minfree != null) {
+            SysfsWriter.getInstance().write(PerformanceSettingsActivity.LOWMEMKILL_RUN_FILE,
+                    LowMemoryTuner.toString(minfree));
+        }
+        /* Committed before returning, the process may not outlive the broadcast */
+        prefs.edit().putString(STATE_PREF, tuner.getState()).commit();
+    }
+
+    /**
+     * Starts or stops periodic sampling. The tuner starts from the
+     * thresholds currently in effect.
+     */
+    public static void setAdaptive(Context ctx, boolean adaptive) {
+        setAdaptive(ctx, adaptive,
+                CPUActivity.readOneLine(PerformanceSettingsActivity.LOWMEMKILL_RUN_FILE));
+    }
+
+    /**
+     * Starts or stops periodic sampling, starting from the given minfree
+     * thresholds, e.g. a value just queued for writing.
+     */
+    public static void setAdaptive(Context ctx, boolean adaptive, String minfree) {
+        AlarmManager am = (AlarmManager) ctx.getSystemService(Context.ALARM_SERVICE);
+        Intent intent = new Intent(ACTION_SAMPLE);
+        intent.setClass(ctx, LowMemoryReceiver.class);
+        PendingIntent pi = PendingIntent.getBroadcast(ctx, 0, intent, 0);
+
+        if (adaptive) {
+            LowMemoryTuner tuner = getTuner(ctx);
+            tuner.setMinfree(LowMemoryTuner.parse(minfree));
+            PreferenceManager.getDefaultSharedPreferences(ctx).edit()
+                    .putString(STATE_PREF, tuner.getState()).commit();
+            am.setRepeating(AlarmManager.ELAPSED_REALTIME,
+                    SystemClock.elapsedRealtime() + SAMPLE_INTERVAL, SAMPLE_INTERVAL, pi);
+        } else {
+            am.cancel(pi);
+        }
+    }
+
+    /**
+     * Returns the process wide tuner, bounded per slot by the lowest and
+     * highest thresholds among the presets. A new process continues the
+     * saved window if the kernel still has the thresholds it was saved for.
+     */
+    private static synchronized LowMemoryTuner getTuner(Context ctx) {
+        if (sTuner == null) {
+            String[] presets = ctx.getResources().getStringArray(R.array.values_lowmemkill);
+            int[] lower = LowMemoryTuner.parse(presets[0]);
+            int[] upper = LowMemoryTuner.parse(presets[0]);
+            for (int i = 1; i < presets.length; i++) {
+                int[] preset = LowMemoryTuner.parse(presets[i]);
+                for (int slot = 0; slot < lower.length; slot++) {
+                    lower[slot] = Math.min(lower[slot], preset[slot]);
+                    upper[slot] = Math.max(upper[slot], preset[slot]);
+                }
+            }
+            sTuner = new LowMemoryTuner(lower, upper, LowMemoryTuner.parse(
+                    CPUActivity.readOneLine(PerformanceSettingsActivity.LOWMEMKILL_RUN_FILE)));
+            String state = PreferenceManager.getDefaultSharedPreferences(ctx)
+                    .getString(STATE_PREF, null);
+            if (state != null && !sTuner.setState(state)) {
+                Log.d(TAG, "Thresholds changed since the saved window, starting a new one");
+            }
+        }
+        return sTuner;
+    }
+}
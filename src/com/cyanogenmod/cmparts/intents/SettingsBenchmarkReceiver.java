@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.intents;
+
+import com.cyanogenmod.cmparts.activities.led.LedRuleBenchmark;
+import com.cyanogenmod.cmparts.provider.SettingsBenchmark;
+import com.cyanogenmod.cmparts.utils.CPUFreqMonitorBenchmark;
+import com.cyanogenmod.cmparts.utils.CommandOutputCheck;
+import com.cyanogenmod.cmparts.utils.GovernorBenchmarkCheck;
+import com.cyanogenmod.cmparts.utils.LowMemoryReplay;
+import com.cyanogenmod.cmparts.utils.PerformancePresetCheck;
+import com.cyanogenmod.cmparts.utils.ShellSessionBenchmark;
+import com.cyanogenmod.cmparts.utils.StorageBenchmarkCheck;
+import com.cyanogenmod.cmparts.utils.ZramManagerCheck;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import java.io.File;
+
+/**
+ * Runs the benchmarks ({@link SettingsBenchmark}, {@link LedRuleBenchmark},
+ * {@link CPUFreqMonitorBenchmark}, {@link ShellSessionBenchmark}) and the
+ * checks ({@link CPUProfileReplay}, {@link CommandOutputCheck},
+ * {@link LowMemoryReplay}, {@link ZramManagerCheck},
+ * {@link GovernorBenchmarkCheck}, {@link ThermalCheck},
+ * {@link PerformancePresetCheck}, {@link StorageBenchmarkCheck}) in the
+ * background.
+ * Results go to the log:
+ * adb shell am broadcast -a com.cyanogenmod.cmparts.SETTINGS_BENCHMARK
+ * Senders need the DUMP permission, which the shell has.
+ */
+public class SettingsBenchmarkReceiver extends BroadcastReceiver {
+
+    public static final String ACTION_BENCHMARK = "com.cyanogenmod.cmparts.SETTINGS_BENCHMARK";
+
+    private static boolean sRunning;
+
+    @Override
+    public void onReceive(Context ctx, Intent intent) {
+        if (!ACTION_BENCHMARK.equals(intent.getAction())) {
+            return;
+        }
+        synchronized (SettingsBenchmarkReceiver.class) {
+            if (sRunning) {
+                return;
+            }
+            sRunning = true;
+        }
+
+        final Context appCtx = ctx.getApplicationContext();
+        final File cacheDir = ctx.getCacheDir();
+        new Thread("SettingsBenchmark") {
+            @Override
+            public void run() {
+                try {
+                    new SettingsBenchmark(appCtx).run();
+                    new LedRuleBenchmark().run();
+                    new CPUFreqMonitorBenchmark().run();
+                    new ShellSessionBenchmark().run();
+                    new CPUProfileReplay().run();
+                    new CommandOutputCheck(cacheDir).run();
+                    new LowMemoryReplay().run();
+                    new ZramManagerCheck(cacheDir).run();
+                    new GovernorBenchmarkCheck().run();
+                    new ThermalCheck(cacheDir).run();
+                    new PerformancePresetCheck().run();
+                    new StorageBenchmarkCheck().run();
+                } finally {
+                    synchronized (SettingsBenchmarkReceiver.class) {
+                        sRunning = false;
+                    }
+                }
+            }
+        }.start();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.intents;
+
+import com.cyanogenmod.cmparts.utils.SelfCheck;
+import com.cyanogenmod.cmparts.utils.ThermalMonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Reads temperatures from a fake /sys/class/thermal tree through
+ * {@link ThermalMonitor}, feeds them to a {@link ThermalThrottle} and the
+ * resulting caps to a {@link CPUProfileStateMachine} without a saved
+ * normal max frequency, the way CPUReceiver samples, and checks what gets
+ * written. A restart while throttled continues from the saved state.
+ * Switching throttling off must lift the cap without recording a reading.
+ */
+public class ThermalCheck extends SelfCheck {
+
+    private static final String HARDWARE_MAX = "1000000";
+
+    private static final String[] FREQUENCIES = new String[] {
+        "245000", "384000", "614000", "806000", HARDWARE_MAX
+    };
+
+    /**
+     * @param cacheDir where the fake tree goes
+     */
+    public ThermalCheck(File cacheDir) {
+        super("ThermalCheck", new File(cacheDir, "thermal_check"));
+    }
+
+    @Override
+    protected void runChecks() throws IOException {
+        File dir = getDir();
+        File zone0 = new File(dir, "thermal_zone0");
+        File zone1 = new File(dir, "thermal_zone1");
+        File zone2 = new File(dir, "thermal_zone2");
+
+        /* Millidegrees, degrees, and a hotter zone which is switched off */
+        write(zone0, ThermalMonitor.TEMP, "45000");
+        write(zone0, ThermalMonitor.MODE, "enabled");
+        write(zone1, ThermalMonitor.TEMP, "52");
+        write(zone2, ThermalMonitor.TEMP, "90000");
+        write(zone2, ThermalMonitor.MODE, "disabled");
+        new File(dir, "cooling_device0").mkdirs();
+
+        ThermalMonitor monitor = new ThermalMonitor(dir);
+        check("zones", monitor.getZones().length == 3);
+        check("max temperature", monitor.readMaxTemperature() == 520);
+
+        ThermalThrottle throttle = new ThermalThrottle();
+        throttle.configure(500, "806000", FREQUENCIES);
+        CPUProfileReplay.RecordingWriter writer = new CPUProfileReplay.RecordingWriter();
+        CPUProfileStateMachine stateMachine = new CPUProfileStateMachine(writer);
+        stateMachine.setHardwareMaxFrequency(HARDWARE_MAX);
+        stateMachine.setAppliedFrequency(HARDWARE_MAX);
+
+        /* Over the trip, the cap applies against the hardware max */
+        check("trip", "806000".equals(sample(monitor, throttle, stateMachine, writer, 0)));
+
+        write(zone1, ThermalMonitor.TEMP, "56");
+        check("second level", "614000".equals(
+                sample(monitor, throttle, stateMachine, writer, 1000)));
+
+        /*
+         * A restarted process picks up the saved level, and the state
+         * machine the throttled max from sysfs, as CPUReceiver does
+         */
+        String state = throttle.getState();
+        throttle = new ThermalThrottle();
+        throttle.configure(500, "806000", FREQUENCIES);
+        check("restore", throttle.setState(state) && throttle.getLevel() == 2
+                && throttle.getThrottleCount() == 1 && throttle.getEvents().size() == 2);
+        stateMachine = new CPUProfileStateMachine(writer);
+        stateMachine.setHardwareMaxFrequency(HARDWARE_MAX);
+        stateMachine.setAppliedFrequency("614000");
+
+        /* Within the hysteresis nothing changes, restarted or not */
+        write(zone1, ThermalMonitor.TEMP, "53");
+        check("hysteresis", sample(monitor, throttle, stateMachine, writer, 2000) == null);
+
+        write(zone1, ThermalMonitor.TEMP, "51");
+        check("cooling", "806000".equals(
+                sample(monitor, throttle, stateMachine, writer, 3000)));
+
+        /* Switching off, as CPUReceiver.setThermalEnabled(false) does */
+        int before = writer.writes.size();
+        throttle.reset();
+        stateMachine.setThermalCap(null);
+        check("off level", throttle.getLevel() == 0 && throttle.getCap() == null);
+        check("off lifts the cap", writer.writes.size() == before + 1
+                && HARDWARE_MAX.equals(writer.writes.get(before)));
+
+        List<ThermalThrottle.Event> events = throttle.getEvents();
+        check("events", events.size() == 3);
+        boolean readings = true;
+        for (ThermalThrottle.Event event : events) {
+            readings &= event.temperature != ThermalMonitor.NO_TEMPERATURE;
+        }
+        check("no fake reading", readings && throttle.getTemperature() == 510);
+
+        /* Without a saved max, a limit set elsewhere is left alone */
+        before = writer.writes.size();
+        stateMachine.setAppliedFrequency("806000");
+        stateMachine.setScreenOn(false);
+        check("no restore without a profile", writer.writes.size() == before);
+    }
+
+    /**
+     * @return the max frequency written in response, null if none
+     */
+    private static String sample(ThermalMonitor monitor, ThermalThrottle throttle,
+            CPUProfileStateMachine stateMachine, CPUProfileReplay.RecordingWriter writer,
+            long now) {
+        int before = writer.writes.size();
+        stateMachine.setThermalCap(throttle.update(now, monitor.readMaxTemperature()));
+        return writer.writes.size() > before ? writer.writes.get(writer.writes.size() - 1) : null;
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.intents;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns temperature readings into a stepped max frequency cap.
+ *
+ * At the trip temperature the first cap applies, every STEP above it the
+ * cap drops by one more available frequency. A level is only left once
+ * the temperature is HYSTERESIS below where it started, so the cap
+ * doesn't flap around a threshold. Level changes are kept as events.
+ * Temperatures are in tenths of a degree Celsius. Level, events and
+ * counts can be saved with {@link #getState()} and picked up again with
+ * {@link #setState(String)}, so a restarted process keeps throttling
+ * where it left off. Like
+ * {@link CPUProfileStateMachine} this has no Android dependencies apart
+ * from logging, so readings can be replayed against it.
+ */
+public class ThermalThrottle {
+
+    private static final String TAG = "CPUSettings";
+
+    public static final int STEP = 50;
+    public static final int HYSTERESIS = 30;
+
+    private static final int MAX_EVENTS = 32;
+
+    public static class Event {
+        public final long time;
+        public final int fromLevel;
+        public final int toLevel;
+        public final int temperature;
+        public final String cap;
+
+        Event(long time, int fromLevel, int toLevel, int temperature, String cap) {
+            this.time = time;
+            this.fromLevel = fromLevel;
+            this.toLevel = toLevel;
+            this.temperature = temperature;
+            this.cap = cap;
+        }
+    }
+
+    private int mTrip;
+    /* Caps per level, index 0 is the first throttled level */
+    private String[] mCaps = new String[0];
+
+    private int mLevel;
+    private int mTemperature;
+
+    private final Event[] mEvents = new Event[MAX_EVENTS];
+    private int mEventHead;
+    private int mEventCount;
+    private int mThrottleCount;
+
+    /**
+     * @param trip temperature at which throttling starts
+     * @param firstCap cap of the first level, null disables throttling
+     * @param frequencies available frequencies, used for the further levels
+     */
+    public synchronized void configure(int trip, String firstCap, String[] frequencies) {
+        mTrip = trip;
+        List<String> caps = new ArrayList<String>();
+        if (firstCap != null) {
+            caps.add(firstCap);
+            long[] lower = new long[frequencies.length];
+            int count = 0;
+            long first = Long.parseLong(firstCap);
+            for (String frequency : frequencies) {
+                long value = Long.parseLong(frequency);
+                if (value < first) {
+                    lower[count++] = value;
+                }
+            }
+            Arrays.sort(lower, 0, count);
+            for (int i = count - 1; i >= 0; i--) {
+                caps.add(String.valueOf(lower[i]));
+            }
+        }
+        mCaps = caps.toArray(new String[caps.size()]);
+        mLevel = Math.min(mLevel, mCaps.length);
+    }
+
+    /**
+     * Feeds a reading.
+     *
+     * @return the cap to apply, null if not throttled
+     */
+    public synchronized String update(long now, int temperature) {
+        mTemperature = temperature;
+        int level = mLevel;
+        while (level < mCaps.length && temperature >= threshold(level + 1)) {
+            level++;
+        }
+        while (level > 0 && temperature < threshold(level) - HYSTERESIS) {
+            level--;
+        }
+        if (level != mLevel) {
+            String cap = getCap(level);
+            addEvent(new Event(now, mLevel, level, temperature, cap));
+            if (mLevel == 0) {
+                mThrottleCount++;
+            }
+            Log.i(TAG, "Thermal level " + mLevel + " -> " + level + " at "
+                    + temperature / 10 + "." + Math.abs(temperature % 10) + "C, cap " + cap);
+            mLevel = level;
+        }
+        return getCap(mLevel);
+    }
+
+    /**
+     * Drops back to the unthrottled level without recording an event,
+     * e.g. when throttling is switched off.
+     */
+    public synchronized void reset() {
+        if (mLevel != 0) {
+            Log.i(TAG, "Thermal level " + mLevel + " -> 0, throttling off");
+        }
+        mLevel = 0;
+    }
+
+    private int threshold(int level) {
+        return mTrip + (level - 1) * STEP;
+    }
+
+    private String getCap(int level) {
+        return level > 0 ? mCaps[level - 1] : null;
+    }
+
+    public synchronized int getLevel() {
+        return mLevel;
+    }
+
+    public synchronized String getCap() {
+        return getCap(mLevel);
+    }
+
+    /**
+     * @return the last reading
+     */
+    public synchronized int getTemperature() {
+        return mTemperature;
+    }
+
+    /**
+     * @return how often throttling started
+     */
+    public synchronized int getThrottleCount() {
+        return mThrottleCount;
+    }
+
+    /**
+     * @return the recorded level changes, oldest first
+     */
+    public synchronized List<Event> getEvents() {
+        List<Event> events = new ArrayList<Event>(mEventCount);
+        for (int i = 0; i < mEventCount; i++) {
+            events.add(mEvents[(mEventHead - mEventCount + i + MAX_EVENTS) % MAX_EVENTS]);
+        }
+        return events;
+    }
+
+    /**
+     * @return level, last reading, throttle count and events, for
+     *         {@link #setState(String)}
+     */
+    public synchronized String getState() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(mLevel).append(';').append(mTemperature).append(';').append(mThrottleCount);
+        for (Event event : getEvents()) {
+            sb.append(';').append(event.time).append(',').append(event.fromLevel)
+                    .append(',').append(event.toLevel).append(',').append(event.temperature)
+                    .append(',').append(event.cap != null ? event.cap : "");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Continues from a state saved by {@link #getState()}. Must be called
+     * after {@link #configure}, the level is limited to the levels it set up.
+     *
+     * @return false if the state couldn't be read and nothing changed
+     */
+    public synchronized boolean setState(String state) {
+        String[] parts = state != null ? state.split(";") : new String[0];
+        if (parts.length < 3) {
+            return false;
+        }
+        Event[] events = new Event[Math.min(parts.length - 3, MAX_EVENTS)];
+        try {
+            int level = Integer.parseInt(parts[0]);
+            int temperature = Integer.parseInt(parts[1]);
+            int throttleCount = Integer.parseInt(parts[2]);
+            /* Only the newest events fit */
+            int first = parts.length - events.length;
+            for (int i = 0; i < events.length; i++) {
+                String[] fields = parts[first + i].split(",", -1);
+                if (fields.length != 5) {
+                    return false;
+                }
+                events[i] = new Event(Long.parseLong(fields[0]), Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                        fields[4].length() > 0 ? fields[4] : null);
+            }
+            mLevel = Math.max(0, Math.min(level, mCaps.length));
+            mTemperature = temperature;
+            mThrottleCount = throttleCount;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        mEventHead = 0;
+        mEventCount = 0;
+        for (Event event : events) {
+            addEvent(event);
+        }
+        return true;
+    }
+
+    private void addEvent(Event event) {
+        mEvents[mEventHead] = event;
+        mEventHead = (mEventHead + 1) % MAX_EVENTS;
+        mEventCount = Math.min(mEventCount + 1, MAX_EVENTS);
+    }
+}
@@ -33,7 +33,14 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     private static final String TABLE_NAME = "settings";
 
     public DatabaseHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param name database to open instead of the settings, for benchmarks
+     */
+    DatabaseHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
     }
 
     @Override
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.provider;
+
+import com.cyanogenmod.cmparts.provider.SettingsProvider.Constants;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.os.Debug;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Measures the cost per row of writing through {@link SettingsProvider},
+ * with one insert per row, by table or by key URI, against bulkInsert()
+ * and applyBatch(), and the cost of reading one key by selection against
+ * reading it by key URI, which is served from memory. The provider runs
+ * on a database of its own, deleted afterwards, so the settings and their
+ * observers are left alone.
+ */
+public class SettingsBenchmark {
+
+    private static final String TAG = "SettingsBenchmark";
+
+    private static final String DATABASE_NAME = "settings_benchmark.db";
+
+    private static final String KEY_PREFIX = "benchmark.";
+
+    public static final int[] ROW_COUNTS = new int[] { 1, 100, 10000 };
+
+    public static final int MODE_INSERT = 0;
+    public static final int MODE_BULK_INSERT = 1;
+    public static final int MODE_APPLY_BATCH = 2;
+    public static final int MODE_INSERT_KEY = 3;
+
+    private static final String[] MODE_NAMES = new String[] {
+        "insert", "bulkInsert", "applyBatch", "insert by key"
+    };
+
+    public static final int READS = 1000;
+
+    public static final int READ_SELECTION = 0;
+    public static final int READ_KEY_URI = 1;
+
+    private static final String[] READ_NAMES = new String[] {
+        "query by selection", "query by key"
+    };
+
+    private final Context mContext;
+
+    private SettingsProvider mProvider;
+
+    public SettingsBenchmark(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Runs every mode for each of ROW_COUNTS and logs the results.
+     *
+     * @return microseconds per row, indexed by mode and row count
+     */
+    public long[][] run() {
+        mContext.deleteDatabase(DATABASE_NAME);
+        mProvider = new SettingsProvider(DATABASE_NAME);
+        mProvider.attachInfo(mContext, null);
+        try {
+            return runModes();
+        } finally {
+            mProvider.close();
+            mProvider = null;
+            mContext.deleteDatabase(DATABASE_NAME);
+        }
+    }
+
+    private long[][] runModes() {
+        long[][] results = new long[MODE_NAMES.length][ROW_COUNTS.length];
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            for (int i = 0; i < ROW_COUNTS.length; i++) {
+                int rows = ROW_COUNTS[i];
+                clear();
+                results[mode][i] = measure(mode, rows) / 1000 / rows;
+                Log.i(TAG, MODE_NAMES[mode] + ", " + rows + " rows: "
+                        + results[mode][i] + " us per row");
+            }
+        }
+
+        /* Reads pick from 100 rows */
+        clear();
+        measure(MODE_BULK_INSERT, 100);
+        for (int read = 0; read < READ_NAMES.length; read++) {
+            long[] result = measureReads(read, READS);
+            Log.i(TAG, READ_NAMES[read] + ": " + result[0] / 1000 / READS + " us, "
+                    + result[1] / READS + " allocations per read");
+        }
+        clear();
+        return results;
+    }
+
+    /**
+     * @return nanoseconds and allocations on this thread for all reads
+     */
+    private long[] measureReads(int read, int count) {
+        String[] projection = new String[] { Constants.VALUE };
+        Debug.startAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            String key = KEY_PREFIX + i % 100;
+            Cursor c;
+            if (read == READ_SELECTION) {
+                c = mProvider.query(SettingsProvider.CONTENT_URI, projection,
+                        Constants.KEY + "=?", new String[] { key }, null);
+            } else {
+                c = mProvider.query(SettingsProvider.getUriFor(key), projection,
+                        null, null, null);
+            }
+            if (c != null) {
+                c.moveToFirst();
+                c.close();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        allocations = Debug.getThreadAllocCount() - allocations;
+        Debug.stopAllocCounting();
+        return new long[] { elapsed, allocations };
+    }
+
+    /**
+     * @return nanoseconds for writing all rows
+     */
+    private long measure(int mode, int rows) {
+        ContentValues[] values = new ContentValues[rows];
+        for (int i = 0; i < rows; i++) {
+            values[i] = new ContentValues(2);
+            values[i].put(Constants.KEY, KEY_PREFIX + i);
+            values[i].put(Constants.VALUE, String.valueOf(i));
+        }
+
+        long start = System.nanoTime();
+        switch (mode) {
+            case MODE_INSERT:
+                for (ContentValues row : values) {
+                    mProvider.insert(SettingsProvider.CONTENT_URI, row);
+                }
+                break;
+            case MODE_BULK_INSERT:
+                mProvider.bulkInsert(SettingsProvider.CONTENT_URI, values);
+                break;
+            case MODE_APPLY_BATCH:
+                ArrayList<ContentProviderOperation> operations =
+                        new ArrayList<ContentProviderOperation>(rows);
+                for (ContentValues row : values) {
+                    operations.add(ContentProviderOperation.newInsert(SettingsProvider.CONTENT_URI)
+                            .withValues(row).build());
+                }
+                try {
+                    mProvider.applyBatch(operations);
+                } catch (OperationApplicationException e) {
+                    Log.e(TAG, "applyBatch failed", e);
+                }
+                break;
+            case MODE_INSERT_KEY:
+                for (ContentValues row : values) {
+                    mProvider.insert(SettingsProvider.getUriFor(row.getAsString(Constants.KEY)),
+                            row);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private void clear() {
+        mProvider.delete(SettingsProvider.CONTENT_URI, Constants.KEY + " LIKE ?",
+                new String[] { KEY_PREFIX + "%" });
+    }
+}
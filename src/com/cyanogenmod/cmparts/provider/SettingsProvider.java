@@ -17,16 +17,22 @@
 package com.cyanogenmod.cmparts.provider;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.text.TextUtils;
@@ -41,16 +47,74 @@ public class SettingsProvider extends ContentProvider {
 
     private static final int SETTINGS = 1;
     private static final int SETTINGS_ID = 2;
+    private static final int SETTINGS_KEY = 3;
 
     static {
         URI_MATCHER.addURI(AUTHORITY, "settings", SETTINGS);
         URI_MATCHER.addURI(AUTHORITY, "settings/#", SETTINGS_ID);
+        URI_MATCHER.addURI(AUTHORITY, "settings/key/*", SETTINGS_KEY);
     }
 
+    /*
+     * Keeps the row id of an existing key, so row id URIs stay valid. The
+     * lookup uses the index of the unique key column.
+     */
+    private static final String UPSERT_SQL = "INSERT OR REPLACE INTO " + TABLE_NAME + " ("
+            + Constants._ID + ", " + Constants.KEY + ", " + Constants.VALUE + ") VALUES ("
+            + "(SELECT " + Constants._ID + " FROM " + TABLE_NAME + " WHERE "
+            + Constants.KEY + "=?), ?, ?)";
+
+    private static final String KEY_SELECTION = Constants.KEY + "=?";
+
     private static final String TAG = "SettingsProvider";
 
+    /* Set for a benchmark provider on a database of its own, which notifies no one */
+    private final String mDatabaseName;
+
     private SQLiteOpenHelper mOpenHelper;
 
+    /* Set while applyBatch() runs on a thread, notifications are sent once at the end */
+    private final ThreadLocal<Boolean> mInBatch = new ThreadLocal<Boolean>();
+
+    private static class CacheEntry {
+        final long id;
+        final String value;
+
+        CacheEntry(long id, String value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+
+    /*
+     * All rows by key. Writes by key keep it up to date, writes by
+     * selection drop it and the next read loads it again. A write by key
+     * and its cache update happen under the cache lock, so a concurrent
+     * write of the same key can't leave the cache behind the database.
+     * Within applyBatch() the transaction holds the database lock, which
+     * readers loading the cache wait for under the cache lock, so the
+     * cache is left alone there and dropped once the batch is done.
+     */
+    private final HashMap<String, CacheEntry> mCache = new HashMap<String, CacheEntry>();
+    private boolean mCacheValid;
+
+    public SettingsProvider() {
+        this(null);
+    }
+
+    /**
+     * Creates a provider on a database of its own, which changes no
+     * settings and sends no change notifications. Attach it to a context
+     * with attachInfo() and call it directly, {@link #close()} it when done.
+     */
+    SettingsProvider(String databaseName) {
+        mDatabaseName = databaseName;
+    }
+
+    void close() {
+        mOpenHelper.close();
+    }
+
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
@@ -59,6 +123,7 @@ public class SettingsProvider extends ContentProvider {
 
         case SETTINGS:
             count = db.delete(TABLE_NAME, selection, selectionArgs);
+            invalidateCache();
             break;
 
         case SETTINGS_ID:
@@ -71,13 +136,26 @@ public class SettingsProvider extends ContentProvider {
             }
 
             count = db.delete(TABLE_NAME, selection, selectionArgs);
+            invalidateCache();
+            break;
+
+        case SETTINGS_KEY:
+            String key = uri.getLastPathSegment();
+            if (inBatch()) {
+                count = db.delete(TABLE_NAME, KEY_SELECTION, new String[] { key });
+                break;
+            }
+            synchronized (mCache) {
+                count = db.delete(TABLE_NAME, KEY_SELECTION, new String[] { key });
+                mCache.remove(key);
+            }
             break;
 
         default:
             throw new IllegalArgumentException("Cannot delete from URI: " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
@@ -89,6 +167,7 @@ public class SettingsProvider extends ContentProvider {
             return Constants.CONTENT_TYPE;
 
         case SETTINGS_ID:
+        case SETTINGS_KEY:
             return Constants.CONTENT_ITEM_TYPE;
 
         default:
@@ -96,33 +175,260 @@ public class SettingsProvider extends ContentProvider {
         }
     }
 
+    /**
+     * @return the URI of a setting addressed by its key. Inserting or
+     *         updating through it replaces the value, or adds the setting.
+     */
+    public static Uri getUriFor(String key) {
+        return CONTENT_URI.buildUpon().appendPath("key").appendPath(key).build();
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues initialValues) {
-        if (URI_MATCHER.match(uri) != SETTINGS) {
+        int match = URI_MATCHER.match(uri);
+        if (match == SETTINGS_KEY) {
+            upsert(uri, initialValues);
+            return uri;
+        }
+        if (match != SETTINGS) {
             throw new IllegalArgumentException("Cannot insert into URI: " + uri);
         }
 
         ContentValues values = (initialValues != null) ? new ContentValues(initialValues) : new ContentValues();
-        for (String colName : Constants.getRequiredColumns()) {
-            if (values.containsKey(colName) == false) {
-                throw new IllegalArgumentException("Missing column: " + colName);
-            }
-        }
+        checkRequiredColumns(values);
 
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(TABLE_NAME, "", values);
+        long rowId;
+        if (inBatch()) {
+            rowId = db.insert(TABLE_NAME, "", values);
+        } else {
+            synchronized (mCache) {
+                rowId = db.insert(TABLE_NAME, "", values);
+                if (rowId >= 0) {
+                    putCache(values.getAsString(Constants.KEY), rowId,
+                            values.getAsString(Constants.VALUE));
+                }
+            }
+        }
 
         if (rowId < 0) {
             throw new SQLException("Failed to insert row into: " + uri);
         }
         Uri noteUri = ContentUris.withAppendedId(CONTENT_URI, rowId);
-        getContext().getContentResolver().notifyChange(noteUri, null);
+        notifyChange(noteUri);
         return noteUri;
     }
 
+    /**
+     * Inserts all rows in one transaction with one change notification.
+     * Nothing is inserted if one of the rows fails.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (URI_MATCHER.match(uri) != SETTINGS) {
+            throw new IllegalArgumentException("Cannot insert into URI: " + uri);
+        }
+        for (ContentValues row : values) {
+            checkRequiredColumns(row);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long[] rowIds = new long[values.length];
+        synchronized (mCache) {
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    rowIds[i] = db.insert(TABLE_NAME, "", values[i]);
+                    if (rowIds[i] < 0) {
+                        throw new SQLException("Failed to insert row into: " + uri);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            for (int i = 0; i < values.length; i++) {
+                putCache(values[i].getAsString(Constants.KEY), rowIds[i],
+                        values[i].getAsString(Constants.VALUE));
+            }
+        }
+
+        notifyChange(uri);
+        return values.length;
+    }
+
+    /**
+     * Applies all operations in one transaction with one change
+     * notification for the whole table.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        mInBatch.set(Boolean.TRUE);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mInBatch.set(null);
+            /* Entries may have been cached for a transaction rolled back */
+            invalidateCache();
+        }
+
+        if (mDatabaseName == null) {
+            getContext().getContentResolver().notifyChange(CONTENT_URI, null);
+        }
+        return results;
+    }
+
+    /**
+     * Sets the value of the key in the URI with a single statement.
+     */
+    private long upsert(Uri uri, ContentValues values) {
+        if (values == null || !values.containsKey(Constants.VALUE)) {
+            throw new IllegalArgumentException("Missing column: " + Constants.VALUE);
+        }
+        String key = uri.getLastPathSegment();
+        String value = values.getAsString(Constants.VALUE);
+        long rowId;
+        if (inBatch()) {
+            rowId = executeUpsert(key, value);
+        } else {
+            synchronized (mCache) {
+                rowId = executeUpsert(key, value);
+                if (rowId >= 0) {
+                    putCache(key, rowId, value);
+                }
+            }
+        }
+
+        if (rowId < 0) {
+            throw new SQLException("Failed to set: " + uri);
+        }
+        notifyChange(uri);
+        return rowId;
+    }
+
+    private long executeUpsert(String key, String value) {
+        SQLiteStatement statement = mOpenHelper.getWritableDatabase().compileStatement(UPSERT_SQL);
+        try {
+            statement.bindString(1, key);
+            statement.bindString(2, key);
+            if (value == null) {
+                statement.bindNull(3);
+            } else {
+                statement.bindString(3, value);
+            }
+            return statement.executeInsert();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private CacheEntry getCacheEntry(String key) {
+        synchronized (mCache) {
+            if (!mCacheValid) {
+                loadCache();
+            }
+            return mCache.get(key);
+        }
+    }
+
+    private void loadCache() {
+        mCache.clear();
+        Cursor c = mOpenHelper.getReadableDatabase().query(TABLE_NAME, new String[] {
+                Constants._ID, Constants.KEY, Constants.VALUE }, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                mCache.put(c.getString(1), new CacheEntry(c.getLong(0), c.getString(2)));
+            }
+        } finally {
+            c.close();
+        }
+        mCacheValid = true;
+    }
+
+    private void putCache(String key, long id, String value) {
+        synchronized (mCache) {
+            if (mCacheValid) {
+                mCache.put(key, new CacheEntry(id, value));
+            }
+        }
+    }
+
+    private void invalidateCache() {
+        if (inBatch()) {
+            /* applyBatch() drops it when done */
+            return;
+        }
+        synchronized (mCache) {
+            mCacheValid = false;
+            mCache.clear();
+        }
+    }
+
+    /**
+     * Answers a plain query for a key from memory.
+     */
+    private Cursor queryCache(Uri uri, String[] projection) {
+        String key = uri.getLastPathSegment();
+        CacheEntry entry = getCacheEntry(key);
+        if (projection == null) {
+            projection = new String[] { Constants._ID, Constants.KEY, Constants.VALUE };
+        }
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (entry != null) {
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                if (Constants._ID.equals(projection[i])) {
+                    row[i] = entry.id;
+                } else if (Constants.KEY.equals(projection[i])) {
+                    row[i] = key;
+                } else if (Constants.VALUE.equals(projection[i])) {
+                    row[i] = entry.value;
+                } else {
+                    throw new IllegalArgumentException("Unknown column: " + projection[i]);
+                }
+            }
+            cursor.addRow(row);
+        }
+        if (mDatabaseName == null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        }
+        return cursor;
+    }
+
+    private boolean inBatch() {
+        return mInBatch.get() != null;
+    }
+
+    private void notifyChange(Uri uri) {
+        if (mDatabaseName == null && !inBatch()) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    private static void checkRequiredColumns(ContentValues values) {
+        for (String colName : Constants.getRequiredColumns()) {
+            if (values.containsKey(colName) == false) {
+                throw new IllegalArgumentException("Missing column: " + colName);
+            }
+        }
+    }
+
     @Override
     public boolean onCreate() {
-        mOpenHelper = new DatabaseHelper(getContext());
+        if (mDatabaseName == null) {
+            mOpenHelper = new DatabaseHelper(getContext());
+        } else {
+            mOpenHelper = new DatabaseHelper(getContext(), mDatabaseName);
+        }
+        synchronized (mCache) {
+            loadCache();
+        }
         return true;
     }
 
@@ -130,8 +436,12 @@ public class SettingsProvider extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
 
-        SQLiteQueryBuilder qBuilder = new SQLiteQueryBuilder();
         int match = URI_MATCHER.match(uri);
+        if (match == SETTINGS_KEY && TextUtils.isEmpty(selection)) {
+            return queryCache(uri, projection);
+        }
+
+        SQLiteQueryBuilder qBuilder = new SQLiteQueryBuilder();
 
         switch (match) {
 
@@ -142,7 +452,13 @@ public class SettingsProvider extends ContentProvider {
         case SETTINGS_ID:
             qBuilder.setTables(TABLE_NAME);
             qBuilder.appendWhere("_id=");
-            qBuilder.appendWhere(uri.getPathSegments().get(SETTINGS_ID));
+            qBuilder.appendWhere(uri.getPathSegments().get(1));
+            break;
+
+        case SETTINGS_KEY:
+            qBuilder.setTables(TABLE_NAME);
+            qBuilder.appendWhere(Constants.KEY + "=");
+            qBuilder.appendWhereEscapeString(uri.getLastPathSegment());
             break;
 
         default:
@@ -161,7 +477,7 @@ public class SettingsProvider extends ContentProvider {
 
         if (ret == null) {
             Log.i(TAG, "query failed");
-        } else {
+        } else if (mDatabaseName == null) {
             ret.setNotificationUri(getContext().getContentResolver(), uri);
         }
 
@@ -180,12 +496,18 @@ public class SettingsProvider extends ContentProvider {
 
         case SETTINGS:
             count = db.update(TABLE_NAME, values, selection, null);
+            invalidateCache();
             break;
         case SETTINGS_ID:
             String segment = uri.getPathSegments().get(1);
             rowId = Long.parseLong(segment);
             count = db.update(TABLE_NAME, values, "_id=" + rowId, null);
+            invalidateCache();
             break;
+        case SETTINGS_KEY:
+            /* Notifies on its own */
+            upsert(uri, values);
+            return 1;
 
         default:
             throw new UnsupportedOperationException("Cannot update URI: " + uri);
@@ -193,7 +515,7 @@ public class SettingsProvider extends ContentProvider {
 
         Log.i(TAG, "*** notifyChange() rowId: " + rowId + " url " + uri);
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return count;
     }
 
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.services;
+
+import com.cyanogenmod.cmparts.activities.CPUActivity;
+import com.cyanogenmod.cmparts.intents.CPUReceiver;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.IBinder;
+import android.preference.PreferenceManager;
+
+/**
+ * Receives the broadcasts CPUReceiver needs which are only delivered to
+ * receivers registered at runtime: screen on and off, and battery changes.
+ * Runs only while a max frequency profile other than the default one is
+ * configured.
+ */
+public class CPUProfileService extends Service {
+
+    private final CPUReceiver mReceiver = new CPUReceiver();
+
+    /**
+     * Starts or stops the service, depending on whether any profile
+     * needs the events.
+     */
+    public static void update(Context ctx) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        Intent intent = new Intent(ctx, CPUProfileService.class);
+        if (prefs.getString(CPUActivity.SO_MAX_FREQ_PREF, null) != null
+                || prefs.getString(CPUActivity.BAT_MAX_FREQ_PREF, null) != null
+                || prefs.getString(CPUActivity.CH_MAX_FREQ_PREF, null) != null
+                || prefs.getString(CPUActivity.CD_MAX_FREQ_PREF, null) != null) {
+            ctx.startService(intent);
+        } else {
+            ctx.stopService(intent);
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        filter.addAction(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        registerReceiver(mReceiver, filter);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        unregisterReceiver(mReceiver);
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * I/O scheduler, read-ahead and request queue settings of every block
+ * device with a request queue under /sys/block.
+ *
+ * Settings chosen per device are kept in their own preferences file, so
+ * they can be applied again on boot. The block directory is a constructor
+ * argument so a fake sysfs tree can be used instead.
+ */
+public class BlockDeviceManager {
+
+    private static final String TAG = "BlockDeviceManager";
+
+    public static final String BLOCK_ROOT = "/sys/block";
+
+    public static final String SCHEDULER = "queue/scheduler";
+    public static final String READ_AHEAD_KB = "queue/read_ahead_kb";
+    public static final String NR_REQUESTS = "queue/nr_requests";
+
+    public static final String PREFS_NAME = "storage_tuning";
+
+    private static BlockDeviceManager sInstance;
+
+    private final File mRoot;
+
+    public static synchronized BlockDeviceManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new BlockDeviceManager(new File(BLOCK_ROOT));
+        }
+        return sInstance;
+    }
+
+    public BlockDeviceManager(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * @return names of devices with a request queue, e.g. mmcblk0, loop0
+     */
+    public String[] getDevices() {
+        File[] dirs = mRoot.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return new File(file, READ_AHEAD_KB).exists();
+            }
+        });
+        if (dirs == null) {
+            return new String[0];
+        }
+        String[] devices = new String[dirs.length];
+        for (int i = 0; i < dirs.length; i++) {
+            devices[i] = dirs[i].getName();
+        }
+        Arrays.sort(devices);
+        return devices;
+    }
+
+    public File getNode(String device, String node) {
+        return new File(new File(mRoot, device), node);
+    }
+
+    /**
+     * @return schedulers the device offers, empty for devices without
+     *         an elevator such as zram
+     */
+    public String[] getAvailableSchedulers(String device) {
+        String line = readLine(getNode(device, SCHEDULER));
+        if (line == null || line.trim().length() == 0 || "none".equals(line.trim())) {
+            return new String[0];
+        }
+        String[] schedulers = line.trim().split("\\s+");
+        for (int i = 0; i < schedulers.length; i++) {
+            if (schedulers[i].startsWith("[")) {
+                schedulers[i] = schedulers[i].substring(1, schedulers[i].length() - 1);
+            }
+        }
+        return schedulers;
+    }
+
+    /**
+     * @return the active scheduler, shown in brackets by the kernel
+     */
+    public String getScheduler(String device) {
+        String line = readLine(getNode(device, SCHEDULER));
+        if (line == null) {
+            return null;
+        }
+        int start = line.indexOf('[');
+        int end = line.indexOf(']', start + 1);
+        return start >= 0 && end > start ? line.substring(start + 1, end) : null;
+    }
+
+    public String getReadAhead(String device) {
+        return readLine(getNode(device, READ_AHEAD_KB));
+    }
+
+    public String getNrRequests(String device) {
+        return readLine(getNode(device, NR_REQUESTS));
+    }
+
+    public boolean setScheduler(String device, String scheduler) {
+        if (!Arrays.asList(getAvailableSchedulers(device)).contains(scheduler)) {
+            return false;
+        }
+        return SysfsWriter.getInstance().writeSync(getNode(device, SCHEDULER).getPath(), scheduler);
+    }
+
+    public boolean setReadAhead(String device, String kb) {
+        return SysfsWriter.getInstance().writeSync(getNode(device, READ_AHEAD_KB).getPath(), kb);
+    }
+
+    public boolean setNrRequests(String device, String requests) {
+        return SysfsWriter.getInstance().writeSync(getNode(device, NR_REQUESTS).getPath(), requests);
+    }
+
+    /**
+     * Describes the scheduler and read-ahead of the physical devices, e.g.
+     * "mmcblk0:cfq:128 mmcblk1:noop:2048", to tell benchmark results of
+     * different settings apart.
+     */
+    public String getConfiguration() {
+        StringBuilder sb = new StringBuilder();
+        for (String device : getDevices()) {
+            if (device.startsWith("loop") || device.startsWith("ram")
+                    || device.startsWith("zram") || device.startsWith("dm-")) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            String scheduler = getScheduler(device);
+            sb.append(device).append(':').append(scheduler != null ? scheduler : "none")
+                    .append(':').append(getReadAhead(device));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Sets the scheduler on every device offering it, e.g. for the global
+     * scheduler preference.
+     *
+     * @return number of devices changed
+     */
+    public int setSchedulerAll(String scheduler) {
+        int changed = 0;
+        for (String device : getDevices()) {
+            if (setScheduler(device, scheduler)) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Applies and remembers one setting of a device.
+     *
+     * @param node one of SCHEDULER, READ_AHEAD_KB or NR_REQUESTS
+     */
+    public boolean apply(Context ctx, String device, String node, String value) {
+        boolean applied = set(device, node, value);
+        if (applied) {
+            getPrefs(ctx).edit().putString(device + "/" + node, value).commit();
+        }
+        return applied;
+    }
+
+    /**
+     * @return the remembered value of a device setting, or null
+     */
+    public String getSaved(Context ctx, String device, String node) {
+        return getPrefs(ctx).getString(device + "/" + node, null);
+    }
+
+    /**
+     * Applies all remembered settings of devices which still exist.
+     *
+     * @return number of settings which could not be applied
+     */
+    public int restore(Context ctx) {
+        int failed = 0;
+        for (Map.Entry<String, ?> entry : getPrefs(ctx).getAll().entrySet()) {
+            String key = entry.getKey();
+            int slash = key.indexOf('/');
+            if (slash <= 0 || !(entry.getValue() instanceof String)) {
+                continue;
+            }
+            String device = key.substring(0, slash);
+            String node = key.substring(slash + 1);
+            if (!new File(mRoot, device).exists()) {
+                continue;
+            }
+            String value = (String) entry.getValue();
+            if (!set(device, node, value)) {
+                Log.w(TAG, "Could not restore " + key + "=" + value);
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    private boolean set(String device, String node, String value) {
+        if (SCHEDULER.equals(node)) {
+            return setScheduler(device, value);
+        }
+        return SysfsWriter.getInstance().writeSync(getNode(device, node).getPath(), value);
+    }
+
+    private static SharedPreferences getPrefs(Context ctx) {
+        return ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    private static String readLine(File file) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file), 256);
+            try {
+                return br.readLine();
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package com.cyanogenmod.cmparts.utils;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.HashMap;
 
 import android.util.Log;
 
 public class CMDProcessor {
 	
 	private static final String TAG = "CMD Processor";
+	private static final HashMap<String, ShellSession> sSessions = new HashMap<String, ShellSession>();
+
+	/** Default cap on captured characters per stream, 0 for no limit */
+	public static final int DEFAULT_OUTPUT_LIMIT = 1024 * 1024;
 	private Boolean can_su;
 	public SH sh;
 	public SH su;
@@ -26,10 +33,12 @@ public class CMDProcessor {
 		return canSU(false);
 	}
 	
-	public class CommandResult {
+	public static class CommandResult {
 		public final String stdout;
 		public final String stderr;
 		public final Integer exit_value;
+		public final boolean timed_out;
+		public final boolean truncated;
 
 		CommandResult(final Integer exit_value_in) {
 			this(exit_value_in, null, null);
@@ -37,9 +46,17 @@ public class CMDProcessor {
 
 		CommandResult(final Integer exit_value_in, final String stdout_in,
 				final String stderr_in) {
+			this(exit_value_in, stdout_in, stderr_in, false, false);
+		}
+
+		CommandResult(final Integer exit_value_in, final String stdout_in,
+				final String stderr_in, final boolean timed_out_in,
+				final boolean truncated_in) {
 			exit_value = exit_value_in;
 			stdout = stdout_in;
 			stderr = stderr_in;
+			timed_out = timed_out_in;
+			truncated = truncated_in;
 		}
 
 		public boolean success() {
@@ -47,6 +64,31 @@ public class CMDProcessor {
 		}
 	}
 
+	/**
+	 * Receives output lines while a command is still running. Called on
+	 * the threads draining the process streams.
+	 */
+	public interface LineListener {
+		void onStdout(String line);
+
+		void onStderr(String line);
+	}
+
+	/**
+	 * Returns the process wide session for a shell, shared by all
+	 * CMDProcessor instances.
+	 */
+	public static ShellSession getSession(final String shell) {
+		synchronized (sSessions) {
+			ShellSession session = sSessions.get(shell);
+			if (session == null) {
+				session = new ShellSession(shell, ShellSession.DEFAULT_IDLE_TIMEOUT);
+				sSessions.put(shell, session);
+			}
+			return session;
+		}
+	}
+
 	public class SH {
 		private String SHELL = "sh";
 
@@ -54,26 +96,13 @@ public class CMDProcessor {
 			SHELL = SHELL_in;
 		}
 
-		private String getStreamLines(final InputStream is) {
-			String out = null;
-			StringBuffer buffer = null;
-			final DataInputStream dis = new DataInputStream(is);
-
-			try {
-				if (dis.available() > 0) {
-					buffer = new StringBuffer(dis.readLine());
-					while (dis.available() > 0) {
-						buffer.append("\n").append(dis.readLine());
-					}
-				}
-				dis.close();
-			} catch (final Exception ex) {
-				Log.e(TAG, ex.getMessage());
-			}
-			if (buffer != null) {
-				out = buffer.toString();
-			}
-			return out;
+		/**
+		 * Runs a command through the shared session of this shell instead
+		 * of starting a new process.
+		 */
+		public CommandResult runSession(final String s) {
+			final CommandResult result = getSession(SHELL).run(s);
+			return result != null ? result : new CommandResult(null);
 		}
 
 		public Process run(final String s) {
@@ -93,24 +122,191 @@ public class CMDProcessor {
 		}
 
 		public CommandResult runWaitFor(final String s) {
+			final CommandResult result = getSession(SHELL).run(s);
+			if (result != null) {
+				return result;
+			}
+			/*
+			 * The command never reached a session shell, so it's safe to run
+			 * it in a one-off process. A command which did reach it is never
+			 * repeated, it may have run partly.
+			 */
+			return runProcessWaitFor(s);
+		}
+
+		public CommandResult runProcessWaitFor(final String s) {
+			return runStreaming(s, null, 0, DEFAULT_OUTPUT_LIMIT);
+		}
+
+		/**
+		 * Runs a command in a new process, draining stdout and stderr
+		 * concurrently while it runs.
+		 *
+		 * @param listener receives each line as it arrives, may be null
+		 * @param timeout milliseconds after which the process is killed, 0 for none
+		 * @param limit characters kept per stream in the result, 0 for no limit;
+		 *        output beyond it is still drained and passed to the listener
+		 */
+		public CommandResult runStreaming(final String s, final LineListener listener,
+				final long timeout, final int limit) {
 			final Process process = run(s);
+			if (process == null) {
+				return new CommandResult(null);
+			}
+
+			final StreamPump stdout = new StreamPump(process.getInputStream(), listener, false, limit);
+			final StreamPump stderr = new StreamPump(process.getErrorStream(), listener, true, limit);
+			stdout.start();
+			stderr.start();
+
+			final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
 			Integer exit_value = null;
-			String stdout = null;
-			String stderr = null;
-			if (process != null) {
+			boolean timed_out = false;
+			try {
+				exit_value = waitFor(process, deadline);
+				if (exit_value == null) {
+					Log.e(TAG, "runStreaming timed out after " + timeout + "ms: " + s);
+					timed_out = true;
+					process.destroy();
+				}
+				/*
+				 * Pumps end once the pipes close. After a kill, children of the
+				 * command may still hold them open, so don't wait forever then.
+				 */
+				stdout.join(timed_out ? 1000 : 0);
+				stderr.join(timed_out ? 1000 : 0);
+			} catch (final InterruptedException e) {
+				Log.e(TAG, "runStreaming " + e.toString());
+				process.destroy();
+			}
+			return new CommandResult(exit_value, stdout.getOutput(), stderr.getOutput(),
+					timed_out, stdout.isTruncated() || stderr.isTruncated());
+		}
+
+		private Integer waitFor(final Process process, final long deadline)
+				throws InterruptedException {
+			if (deadline == 0) {
+				return process.waitFor();
+			}
+			long delay = 5;
+			while (System.currentTimeMillis() < deadline) {
 				try {
-					exit_value = process.waitFor();
+					return process.exitValue();
+				} catch (final IllegalThreadStateException e) {
+					Thread.sleep(Math.min(delay, Math.max(1, deadline - System.currentTimeMillis())));
+					delay = Math.min(delay * 2, 100);
+				}
+			}
+			return null;
+		}
+	}
 
-					stdout = getStreamLines(process.getInputStream());
-					stderr = getStreamLines(process.getErrorStream());
+	/**
+	 * Reads one process stream in fixed size chunks until it closes.
+	 * Text beyond the limit is dropped as it arrives, so a command without
+	 * newlines can't grow the buffer either. Lines passed to the listener
+	 * are split at MAX_LINE. The captured output may only be taken once the
+	 * pump has ended, or under its lock as getOutput() does.
+	 */
+	private static class StreamPump extends Thread {
+		private static final int MAX_LINE = 8192;
 
-				} catch (final InterruptedException e) {
-					Log.e(TAG, "runWaitFor " + e.toString());
-				} catch (final NullPointerException e) {
-					Log.e(TAG, "runWaitFor " + e.toString());
+		private final Reader mReader;
+		private final LineListener mListener;
+		private final boolean mStderr;
+		private final int mLimit;
+		private final char[] mChunk = new char[8192];
+		/* Only touched by the pump thread */
+		private final StringBuilder mLine = new StringBuilder();
+		private StringBuilder mBuffer;
+		private boolean mTruncated;
+
+		StreamPump(final InputStream is, final LineListener listener,
+				final boolean stderr, final int limit) {
+			super(TAG + (stderr ? "-stderr" : "-stdout"));
+			mReader = new InputStreamReader(is);
+			mListener = listener;
+			mStderr = stderr;
+			mLimit = limit;
+		}
+
+		@Override
+		public void run() {
+			try {
+				int count;
+				while ((count = mReader.read(mChunk)) != -1) {
+					if (mListener != null) {
+						deliver(mChunk, count);
+					}
+					append(mChunk, count);
+				}
+			} catch (final IOException e) {
+				Log.e(TAG, "StreamPump " + e.toString());
+			} finally {
+				if (mListener != null && mLine.length() > 0) {
+					deliverLine();
+				}
+				try {
+					mReader.close();
+				} catch (final IOException e) {
 				}
 			}
-			return new CommandResult(exit_value, stdout, stderr);
+		}
+
+		private void deliver(final char[] chunk, final int count) {
+			for (int i = 0; i < count; i++) {
+				if (chunk[i] == '\n') {
+					deliverLine();
+				} else {
+					mLine.append(chunk[i]);
+					if (mLine.length() == MAX_LINE) {
+						deliverLine();
+					}
+				}
+			}
+		}
+
+		private void deliverLine() {
+			final String line = mLine.toString();
+			mLine.setLength(0);
+			if (mStderr) {
+				mListener.onStderr(line);
+			} else {
+				mListener.onStdout(line);
+			}
+		}
+
+		private synchronized void append(final char[] chunk, int count) {
+			if (mTruncated) {
+				return;
+			}
+			if (mBuffer == null) {
+				mBuffer = new StringBuilder(Math.min(count, 8192));
+			}
+			if (mLimit > 0 && mBuffer.length() + count > mLimit) {
+				count = mLimit - mBuffer.length();
+				mTruncated = true;
+			}
+			mBuffer.append(chunk, 0, count);
+		}
+
+		/**
+		 * @return the output without its final newline, like the lines
+		 *         joined with newlines it used to be
+		 */
+		synchronized String getOutput() {
+			if (mBuffer == null) {
+				return null;
+			}
+			int length = mBuffer.length();
+			if (length > 0 && mBuffer.charAt(length - 1) == '\n') {
+				length--;
+			}
+			return mBuffer.substring(0, length);
+		}
+
+		synchronized boolean isTruncated() {
+			return mTruncated;
 		}
 	}
 
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+/**
+ * Shared sampler for the current CPU frequency.
+ *
+ * The sysfs node is kept open and re-read from offset zero into a fixed
+ * buffer, so a sample allocates nothing. Listeners are only called when the
+ * value changes, and the sampling interval backs off while it stays the same.
+ * Sampling stops entirely once the last listener is removed.
+ */
+public class CPUFreqMonitor {
+
+    private static final String TAG = "CPUFreqMonitor";
+
+    private static final long MIN_INTERVAL = 500;
+    private static final long MAX_INTERVAL = 4000;
+
+    public interface Listener {
+        /**
+         * Called on the main thread when the frequency changes.
+         *
+         * @param khz new frequency in kHz, or -1 if it could not be read
+         */
+        void onFrequencyChanged(int khz);
+    }
+
+    private static CPUFreqMonitor sInstance;
+
+    private final File mFile;
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final byte[] mBuffer = new byte[32];
+    private final Object mReaderLock = new Object();
+
+    private HandlerThread mThread;
+    private Handler mSampleHandler;
+    private RandomAccessFile mReader;
+    private long mInterval = MIN_INTERVAL;
+    private volatile int mLastValue = -1;
+
+    /* Stats, mainly useful to compare against a plain polling thread */
+    private long mSamples;
+    private long mDispatches;
+
+    public static synchronized CPUFreqMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new CPUFreqMonitor(findFreqFile());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the current frequency node of the first policy, or null
+     */
+    static File findFreqFile() {
+        CPUPolicyEngine engine = CPUPolicyEngine.getInstance();
+        if (engine.getPolicies().isEmpty()) {
+            return null;
+        }
+        File dir = engine.getPolicies().get(0).dir;
+        File file = new File(dir, CPUPolicyEngine.FREQ_CUR);
+        if (!file.exists()) {
+            file = new File(dir, CPUPolicyEngine.FREQINFO_CUR);
+        }
+        return file;
+    }
+
+    public CPUFreqMonitor(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Registers a listener. It immediately receives the last known value
+     * if there is one.
+     */
+    public synchronized void addListener(final Listener listener) {
+        if (mListeners.contains(listener)) {
+            return;
+        }
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            start();
+        } else if (mLastValue >= 0) {
+            final int value = mLastValue;
+            mMainHandler.post(new Runnable() {
+                public void run() {
+                    listener.onFrequencyChanged(value);
+                }
+            });
+        }
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            stop();
+        }
+    }
+
+    public int getLastValue() {
+        return mLastValue;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    public synchronized long getDispatchCount() {
+        return mDispatches;
+    }
+
+    private void start() {
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mSampleHandler = new Handler(mThread.getLooper());
+        mInterval = MIN_INTERVAL;
+        mLastValue = -1;
+        mSampleHandler.post(mSampleTask);
+    }
+
+    private void stop() {
+        mSampleHandler.removeCallbacks(mSampleTask);
+        final HandlerThread thread = mThread;
+        mSampleHandler.post(new Runnable() {
+            public void run() {
+                closeReader();
+                thread.quit();
+            }
+        });
+        mThread = null;
+        mSampleHandler = null;
+    }
+
+    private final Runnable mSampleTask = new Runnable() {
+        public void run() {
+            int value = sample();
+            synchronized (CPUFreqMonitor.this) {
+                mSamples++;
+                /* Stale task from a monitor session that has been stopped */
+                if (mSampleHandler == null || mSampleHandler.getLooper() != Looper.myLooper()) {
+                    return;
+                }
+                if (value != mLastValue) {
+                    mLastValue = value;
+                    mInterval = MIN_INTERVAL;
+                    dispatch(value);
+                } else if (mInterval < MAX_INTERVAL) {
+                    mInterval = Math.min(mInterval * 2, MAX_INTERVAL);
+                }
+                mSampleHandler.postDelayed(this, mInterval);
+            }
+        }
+    };
+
+    private void dispatch(final int value) {
+        mDispatches++;
+        final Listener[] listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        mMainHandler.post(new Runnable() {
+            public void run() {
+                for (Listener listener : listeners) {
+                    listener.onFrequencyChanged(value);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the frequency from the open node without allocating.
+     */
+    int sample() {
+        if (mFile == null) {
+            return -1;
+        }
+        synchronized (mReaderLock) {
+            return sampleLocked();
+        }
+    }
+
+    private int sampleLocked() {
+        try {
+            if (mReader == null) {
+                mReader = new RandomAccessFile(mFile, "r");
+            }
+            mReader.seek(0);
+            int len = mReader.read(mBuffer, 0, mBuffer.length);
+            int value = 0;
+            boolean found = false;
+            for (int i = 0; i < len; i++) {
+                byte b = mBuffer[i];
+                if (b >= '0' && b <= '9') {
+                    value = value * 10 + (b - '0');
+                    found = true;
+                } else if (found) {
+                    break;
+                }
+            }
+            return found ? value : -1;
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + mFile, e);
+            closeReader();
+            return -1;
+        }
+    }
+
+    void closeReader() {
+        synchronized (mReaderLock) {
+            if (mReader != null) {
+                try {
+                    mReader.close();
+                } catch (IOException e) {
+                }
+                mReader = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Compares {@link CPUFreqMonitor} against the polling thread CPUActivity
+ * used to run: a new reader every 500 ms and a message for every read.
+ * Allocations are counted per read on the calling thread, wakeups and
+ * dispatches by running both side by side for DURATION.
+ */
+public class CPUFreqMonitorBenchmark {
+
+    private static final String TAG = "CPUFreqMonitorBenchmark";
+
+    public static final int READS = 1000;
+    public static final long DURATION = 30 * 1000;
+
+    private static final long POLL_INTERVAL = 500;
+
+    private final File mFile;
+
+    public CPUFreqMonitorBenchmark() {
+        mFile = CPUFreqMonitor.findFreqFile();
+    }
+
+    /**
+     * Logs allocations per read, wakeups and dispatches per minute for
+     * the polling thread and the monitor.
+     */
+    public void run() {
+        if (mFile == null) {
+            Log.w(TAG, "No cpufreq node, skipping");
+            return;
+        }
+
+        CPUFreqMonitor monitor = new CPUFreqMonitor(mFile);
+        long pollAllocs = measureAllocations(false, monitor);
+        long monitorAllocs = measureAllocations(true, monitor);
+
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final long[] polled = new long[2];
+        Thread poller = new Thread(TAG) {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        sleep(POLL_INTERVAL);
+                        polled[0]++;
+                        handler.sendMessage(handler.obtainMessage(0, readLegacy()));
+                        polled[1]++;
+                    }
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        CPUFreqMonitor.Listener listener = new CPUFreqMonitor.Listener() {
+            public void onFrequencyChanged(int khz) {
+            }
+        };
+
+        poller.start();
+        monitor.addListener(listener);
+        try {
+            Thread.sleep(DURATION);
+        } catch (InterruptedException e) {
+        }
+        monitor.removeListener(listener);
+        poller.interrupt();
+        try {
+            poller.join();
+        } catch (InterruptedException e) {
+        }
+
+        long seconds = DURATION / 1000;
+        Log.i(TAG, "polling thread: " + pollAllocs + " allocations per read, "
+                + polled[0] * 60 / seconds + " wakeups and "
+                + polled[1] * 60 / seconds + " messages per minute");
+        Log.i(TAG, "monitor: " + monitorAllocs + " allocations per read, "
+                + monitor.getSampleCount() * 60 / seconds + " wakeups and "
+                + monitor.getDispatchCount() * 60 / seconds + " dispatches per minute");
+    }
+
+    /**
+     * @return allocations on this thread per read
+     */
+    private long measureAllocations(boolean useMonitor, CPUFreqMonitor monitor) {
+        Debug.startAllocCounting();
+        int allocations = Debug.getThreadAllocCount();
+        for (int i = 0; i < READS; i++) {
+            if (useMonitor) {
+                monitor.sample();
+            } else {
+                /* The message the old thread sent for every read */
+                Message.obtain(null, 0, readLegacy()).recycle();
+            }
+        }
+        allocations = Debug.getThreadAllocCount() - allocations;
+        Debug.stopAllocCounting();
+        if (useMonitor) {
+            monitor.closeReader();
+        }
+        return allocations / READS;
+    }
+
+    private String readLegacy() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(mFile), 512);
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.os.SystemClock;
+
+import java.io.File;
+
+/**
+ * Runs {@link GovernorBenchmark} on the device: governors are switched on
+ * every CPU policy and residency comes from the first policy's
+ * time_in_state.
+ */
+public class CPUGovernorPlatform implements GovernorBenchmark.Platform {
+
+    /* Roughly a millisecond of work per unit on a 1GHz core */
+    private static final int WORK_ITERATIONS = 250000;
+
+    private final CPUPolicyEngine mEngine;
+    private final File mTimeInState;
+    private long[] mFrequencies = new long[0];
+
+    /* Keeps the work loop from being optimized away */
+    private volatile long mSink;
+
+    public CPUGovernorPlatform(CPUPolicyEngine engine) {
+        mEngine = engine;
+        mTimeInState = engine.getPolicies().isEmpty() ? null
+                : engine.getPolicies().get(0).node(CPUStatsCollector.TIME_IN_STATE);
+    }
+
+    public boolean setGovernor(String governor) {
+        return mEngine.setGovernor(governor);
+    }
+
+    public long[] getFrequencies() {
+        return mFrequencies;
+    }
+
+    public long[] getTimeInState() {
+        long[][] state = mTimeInState != null ? CPUStatsCollector.readTimeInState(mTimeInState) : null;
+        if (state == null) {
+            return new long[mFrequencies.length];
+        }
+        mFrequencies = state[0];
+        return state[1];
+    }
+
+    public void work(int units) {
+        long x = mSink;
+        for (int unit = 0; unit < units; unit++) {
+            for (int i = 0; i < WORK_ITERATIONS; i++) {
+                x = x * 6364136223846793005L + 1442695040888963407L;
+            }
+        }
+        mSink = x;
+    }
+
+    public void idle(long millis) {
+        SystemClock.sleep(millis);
+    }
+
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Applies cpufreq policy (governor, min and max frequency) to every core
+ * instead of only cpu0.
+ *
+ * Cores are discovered from cpuN/cpufreq directories below the cpu sysfs
+ * root. Cores that share a policy (same related_cpus, or cpufreq directories
+ * resolving to the same node) are grouped and written only once. The root
+ * directory is a constructor argument so the engine can be pointed at a
+ * fake sysfs tree.
+ */
+public class CPUPolicyEngine {
+
+    private static final String TAG = "CPUPolicyEngine";
+
+    public static final String SYSFS_CPU_ROOT = "/sys/devices/system/cpu";
+
+    public static final String GOVERNOR = "scaling_governor";
+    public static final String GOVERNORS_LIST = "scaling_available_governors";
+    public static final String FREQ_LIST = "scaling_available_frequencies";
+    public static final String FREQ_MAX = "scaling_max_freq";
+    public static final String FREQ_MIN = "scaling_min_freq";
+    public static final String FREQ_CUR = "scaling_cur_freq";
+    public static final String FREQINFO_CUR = "cpuinfo_cur_freq";
+    public static final String FREQINFO_MAX = "cpuinfo_max_freq";
+    public static final String RELATED_CPUS = "related_cpus";
+
+    private static CPUPolicyEngine sInstance;
+
+    private final File mRoot;
+
+    /**
+     * One cpufreq policy, i.e. a group of cores sharing the same settings.
+     */
+    public static class Policy {
+        /** The core whose cpufreq directory is used for reads and writes */
+        public final int leadCpu;
+        /** All cores covered by this policy, lead core included */
+        public final int[] cpus;
+        public final File dir;
+
+        Policy(int leadCpu, int[] cpus, File dir) {
+            this.leadCpu = leadCpu;
+            this.cpus = cpus;
+            this.dir = dir;
+        }
+
+        public File node(String name) {
+            return new File(dir, name);
+        }
+    }
+
+    public static synchronized CPUPolicyEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new CPUPolicyEngine(new File(SYSFS_CPU_ROOT));
+        }
+        return sInstance;
+    }
+
+    public CPUPolicyEngine(File root) {
+        mRoot = root;
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    /**
+     * Scans the cpu root for cpuN/cpufreq directories. Cores which are
+     * currently offline have no cpufreq node and are skipped, so this is
+     * done again on every apply.
+     */
+    public List<Policy> getPolicies() {
+        List<Policy> policies = new ArrayList<Policy>();
+        String[] names = mRoot.list();
+        if (names == null) {
+            return policies;
+        }
+
+        int[] cpus = new int[names.length];
+        int count = 0;
+        for (String name : names) {
+            int cpu = parseCpuName(name);
+            if (cpu >= 0 && new File(mRoot, name + "/cpufreq").isDirectory()) {
+                cpus[count++] = cpu;
+            }
+        }
+        cpus = Arrays.copyOf(cpus, count);
+        Arrays.sort(cpus);
+
+        HashMap<String, Policy> groups = new HashMap<String, Policy>();
+        for (int cpu : cpus) {
+            File dir = new File(mRoot, "cpu" + cpu + "/cpufreq");
+            String groupKey = getGroupKey(dir, cpu);
+            if (groups.containsKey(groupKey)) {
+                Policy lead = groups.get(groupKey);
+                int[] merged = Arrays.copyOf(lead.cpus, lead.cpus.length + 1);
+                merged[lead.cpus.length] = cpu;
+                Policy policy = new Policy(lead.leadCpu, merged, lead.dir);
+                groups.put(groupKey, policy);
+                policies.set(policies.indexOf(lead), policy);
+            } else {
+                Policy policy = new Policy(cpu, new int[] { cpu }, dir);
+                groups.put(groupKey, policy);
+                policies.add(policy);
+            }
+        }
+        return policies;
+    }
+
+    public int getCpuCount() {
+        int count = 0;
+        for (Policy policy : getPolicies()) {
+            count += policy.cpus.length;
+        }
+        return count;
+    }
+
+    private Policy getPrimaryPolicy() {
+        List<Policy> policies = getPolicies();
+        return policies.isEmpty() ? null : policies.get(0);
+    }
+
+    /**
+     * Reads a cpufreq node of the first policy (normally cpu0).
+     */
+    public String readPrimary(String node) {
+        Policy policy = getPrimaryPolicy();
+        if (policy == null) {
+            return null;
+        }
+        return readLine(policy.node(node));
+    }
+
+    public String getGovernor() {
+        return readPrimary(GOVERNOR);
+    }
+
+    public String getMinFrequency() {
+        return readPrimary(FREQ_MIN);
+    }
+
+    public String getMaxFrequency() {
+        return readPrimary(FREQ_MAX);
+    }
+
+    /**
+     * @return the highest frequency the hardware supports, whatever the
+     *         current limit
+     */
+    public String getHardwareMaxFrequency() {
+        return readPrimary(FREQINFO_MAX);
+    }
+
+    public String getCurFrequency() {
+        Policy policy = getPrimaryPolicy();
+        if (policy == null) {
+            return null;
+        }
+        File cur = policy.node(FREQ_CUR);
+        if (!cur.exists()) {
+            cur = policy.node(FREQINFO_CUR);
+        }
+        return readLine(cur);
+    }
+
+    public String[] getAvailableGovernors() {
+        return splitList(readPrimary(GOVERNORS_LIST));
+    }
+
+    public String[] getAvailableFrequencies() {
+        return splitList(readPrimary(FREQ_LIST));
+    }
+
+    public boolean setGovernor(String governor) {
+        return apply(governor, null, null);
+    }
+
+    public boolean setMinFrequency(String minFrequency) {
+        return apply(null, minFrequency, null);
+    }
+
+    public boolean setMaxFrequency(String maxFrequency) {
+        return apply(null, null, maxFrequency);
+    }
+
+    /**
+     * Applies governor, min and max frequency to every policy. Null values
+     * are left untouched. Values not supported by a policy are skipped for
+     * that policy. If any write fails, all policies already touched are
+     * restored to the values they had before.
+     *
+     * @return true if every requested value was written
+     */
+    public synchronized boolean apply(String governor, String minFrequency, String maxFrequency) {
+        List<Policy> policies = getPolicies();
+        if (policies.isEmpty()) {
+            Log.w(TAG, "No cpufreq policies found under " + mRoot);
+            return false;
+        }
+
+        List<String[]> previous = new ArrayList<String[]>();
+        for (Policy policy : policies) {
+            previous.add(new String[] {
+                readLine(policy.node(GOVERNOR)),
+                readLine(policy.node(FREQ_MIN)),
+                readLine(policy.node(FREQ_MAX))
+            });
+        }
+
+        for (int i = 0; i < policies.size(); i++) {
+            Policy policy = policies.get(i);
+            if (!applyPolicy(policy, previous.get(i), governor, minFrequency, maxFrequency)) {
+                Log.e(TAG, "Failed to apply policy to cpu" + policy.leadCpu + ", rolling back");
+                for (int j = 0; j <= i; j++) {
+                    String[] old = previous.get(j);
+                    applyPolicy(policies.get(j), null, old[0], old[1], old[2]);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean applyPolicy(Policy policy, String[] current, String governor,
+            String minFrequency, String maxFrequency) {
+        String[] frequencies = splitList(readLine(policy.node(FREQ_LIST)));
+        String[] governors = splitList(readLine(policy.node(GOVERNORS_LIST)));
+
+        if (governor != null && isSupported(governors, governor)) {
+            if (current == null || !governor.equals(current[0])) {
+                if (!writeLine(policy.node(GOVERNOR), governor)) {
+                    return false;
+                }
+            }
+        }
+
+        boolean writeMin = minFrequency != null && isSupported(frequencies, minFrequency);
+        boolean writeMax = maxFrequency != null && isSupported(frequencies, maxFrequency);
+
+        /*
+         * The kernel rejects min > max, so when lowering max below the
+         * current min, the min has to go first and vice versa.
+         */
+        String curMin = current != null ? current[1] : readLine(policy.node(FREQ_MIN));
+        boolean minFirst = writeMin && writeMax
+                && compareFrequency(maxFrequency, curMin) < 0;
+        if (!minFirst && writeMax && !maxFrequency.equals(current != null ? current[2] : null)) {
+            if (!writeLine(policy.node(FREQ_MAX), maxFrequency)) {
+                return false;
+            }
+        }
+        if (writeMin && !minFrequency.equals(curMin)) {
+            if (!writeLine(policy.node(FREQ_MIN), minFrequency)) {
+                return false;
+            }
+        }
+        if (minFirst && !maxFrequency.equals(current != null ? current[2] : null)) {
+            if (!writeLine(policy.node(FREQ_MAX), maxFrequency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String getGroupKey(File dir, int cpu) {
+        String related = readLine(new File(dir, RELATED_CPUS));
+        if (related != null && related.trim().length() > 0) {
+            return "related:" + related.trim();
+        }
+        try {
+            return "path:" + dir.getCanonicalPath();
+        } catch (IOException e) {
+            return "cpu:" + cpu;
+        }
+    }
+
+    private static int parseCpuName(String name) {
+        if (!name.startsWith("cpu") || name.length() == 3) {
+            return -1;
+        }
+        int cpu = 0;
+        for (int i = 3; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            cpu = cpu * 10 + (c - '0');
+        }
+        return cpu;
+    }
+
+    private static boolean isSupported(String[] available, String value) {
+        /* Some kernels do not export the list; let the kernel decide then */
+        if (available.length == 0) {
+            return true;
+        }
+        for (String s : available) {
+            if (s.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int compareFrequency(String a, String b) {
+        try {
+            long diff = Long.parseLong(a.trim()) - Long.parseLong(b.trim());
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    public static String[] splitList(String line) {
+        if (line == null || line.trim().length() == 0) {
+            return new String[0];
+        }
+        return line.trim().split("\\s+");
+    }
+
+    private static String readLine(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file), 512);
+            try {
+                return br.readLine();
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "IO Exception when reading " + file, e);
+            return null;
+        }
+    }
+
+    private static boolean writeLine(File file, String value) {
+        return SysfsWriter.getInstance().writeSync(file.getPath(), value);
+    }
+}
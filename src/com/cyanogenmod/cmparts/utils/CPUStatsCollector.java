@@ -0,0 +1,465 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects cpufreq time_in_state and total_trans statistics.
+ *
+ * Each snapshot stores the difference to the previous one as a primitive
+ * array in a fixed size ring buffer, tagged with the CPU profile which was
+ * active during that interval. Residency can then be summed up per profile,
+ * e.g. to check whether a screen off cap actually keeps the CPU out of the
+ * high frequency steps.
+ *
+ * Times are reported by the kernel in 10 ms units and summed over all
+ * policies.
+ *
+ * Snapshots are taken by a periodic alarm (see CPUReceiver), on profile
+ * changes and when CPUActivity is shown. The process wide instance saves
+ * the ring buffer to a file after each snapshot, so collected statistics
+ * survive the process being killed. The counters of the last snapshot are
+ * only kept within the same boot, the kernel resets them on reboot.
+ */
+public class CPUStatsCollector {
+
+    private static final String TAG = "CPUStatsCollector";
+
+    public static final String TIME_IN_STATE = "stats/time_in_state";
+    public static final String TOTAL_TRANS = "stats/total_trans";
+
+    public static final int MAX_PROFILES = 8;
+
+    private static final int DEFAULT_CAPACITY = 128;
+
+    private static final String STATS_FILE = "cpu_stats";
+    private static final int FILE_VERSION = 1;
+
+    private static CPUStatsCollector sInstance;
+
+    private final CPUPolicyEngine mEngine;
+    private final int mCapacity;
+
+    /* Frequency table (kHz, ascending) used to index all arrays below */
+    private long[] mFrequencies;
+
+    /* Last absolute counters, to compute deltas */
+    private long[] mLastTimes;
+    private long mLastTransitions = -1;
+
+    /* Ring buffer of deltas */
+    private final long[][] mDeltaTimes;
+    private final long[] mDeltaTransitions;
+    private final long[] mTimestamps;
+    private final int[] mProfiles;
+    private int mHead;
+    private int mSize;
+
+    private int mActiveProfile;
+
+    /* Where the state is kept, null if it isn't */
+    private final File mFile;
+    private final String mBootId;
+
+    public static synchronized CPUStatsCollector getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new CPUStatsCollector(CPUPolicyEngine.getInstance(), DEFAULT_CAPACITY,
+                    new File(ctx.getApplicationContext().getFilesDir(), STATS_FILE),
+                    DeviceCapabilities.readBootId());
+        }
+        return sInstance;
+    }
+
+    public CPUStatsCollector(CPUPolicyEngine engine, int capacity) {
+        this(engine, capacity, null, null);
+    }
+
+    /**
+     * @param file where the state is saved after each snapshot and
+     *        loaded from now, null to keep it in memory only
+     * @param bootId id of the current boot, the counters of the last
+     *        snapshot are only loaded if they were saved in the same boot
+     */
+    public CPUStatsCollector(CPUPolicyEngine engine, int capacity, File file, String bootId) {
+        mEngine = engine;
+        mCapacity = capacity;
+        mDeltaTimes = new long[capacity][];
+        mDeltaTransitions = new long[capacity];
+        mTimestamps = new long[capacity];
+        mProfiles = new int[capacity];
+        mFile = file;
+        mBootId = bootId;
+        if (mFile != null) {
+            load();
+        }
+    }
+
+    public synchronized int getActiveProfile() {
+        return mActiveProfile;
+    }
+
+    /**
+     * Switches the active profile. The interval up to now is recorded for
+     * the previous profile first, so residency is attributed correctly.
+     */
+    public synchronized void setActiveProfile(int profile) {
+        if (profile < 0 || profile >= MAX_PROFILES) {
+            throw new IllegalArgumentException("Invalid profile " + profile);
+        }
+        if (profile != mActiveProfile) {
+            snapshot();
+            mActiveProfile = profile;
+            save();
+        }
+    }
+
+    /**
+     * Reads the current counters of every policy and records the delta to
+     * the previous snapshot. The first call only establishes the baseline.
+     *
+     * @return false if no statistics are available
+     */
+    public synchronized boolean snapshot() {
+        List<CPUPolicyEngine.Policy> policies = mEngine.getPolicies();
+        long[] times = mFrequencies != null ? new long[mFrequencies.length] : null;
+        long transitions = 0;
+        boolean found = false;
+
+        for (CPUPolicyEngine.Policy policy : policies) {
+            long[][] state = readTimeInState(policy.node(TIME_IN_STATE));
+            if (state == null) {
+                continue;
+            }
+            found = true;
+            if (times == null || !containsAll(mFrequencies, state[0])) {
+                times = rebuildFrequencyTable(state[0], times);
+            }
+            for (int i = 0; i < state[0].length; i++) {
+                times[Arrays.binarySearch(mFrequencies, state[0][i])] += state[1][i];
+            }
+            transitions += readLong(policy.node(TOTAL_TRANS));
+        }
+
+        if (!found) {
+            return false;
+        }
+
+        if (mLastTimes != null && mLastTimes.length == times.length) {
+            long[] delta = mDeltaTimes[mHead];
+            if (delta == null || delta.length != times.length) {
+                delta = new long[times.length];
+                mDeltaTimes[mHead] = delta;
+            }
+            for (int i = 0; i < times.length; i++) {
+                /* Counters reset on hotplug; never record negative time */
+                delta[i] = Math.max(0, times[i] - mLastTimes[i]);
+            }
+            mDeltaTransitions[mHead] = Math.max(0, transitions - mLastTransitions);
+            mTimestamps[mHead] = SystemClock.elapsedRealtime();
+            mProfiles[mHead] = mActiveProfile;
+            mHead = (mHead + 1) % mCapacity;
+            if (mSize < mCapacity) {
+                mSize++;
+            }
+        }
+        mLastTimes = times;
+        mLastTransitions = transitions;
+        save();
+        return true;
+    }
+
+    /**
+     * @return the frequency table (kHz) the histograms are indexed by
+     */
+    public synchronized long[] getFrequencies() {
+        return mFrequencies != null ? mFrequencies.clone() : new long[0];
+    }
+
+    /**
+     * Sums the recorded residency of one profile.
+     *
+     * @return time per frequency in 10 ms units, indexed like getFrequencies()
+     */
+    public synchronized long[] getResidency(int profile) {
+        long[] result = new long[mFrequencies != null ? mFrequencies.length : 0];
+        for (int n = 0; n < mSize; n++) {
+            int i = (mHead - 1 - n + mCapacity) % mCapacity;
+            long[] delta = mDeltaTimes[i];
+            if (mProfiles[i] != profile || delta == null || delta.length != result.length) {
+                continue;
+            }
+            for (int f = 0; f < result.length; f++) {
+                result[f] += delta[f];
+            }
+        }
+        return result;
+    }
+
+    public synchronized long getTransitions(int profile) {
+        long result = 0;
+        for (int n = 0; n < mSize; n++) {
+            int i = (mHead - 1 - n + mCapacity) % mCapacity;
+            if (mProfiles[i] == profile) {
+                result += mDeltaTransitions[i];
+            }
+        }
+        return result;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSize;
+    }
+
+    public synchronized void clear() {
+        mSize = 0;
+        mHead = 0;
+        mLastTimes = null;
+        mLastTransitions = -1;
+        save();
+    }
+
+    /**
+     * Restores the state saved by save(). The counters of the last
+     * snapshot are dropped if they are from a previous boot.
+     */
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile), 4096));
+            try {
+                if (in.readInt() != FILE_VERSION) {
+                    return;
+                }
+                String bootId = in.readUTF();
+                int profile = in.readInt();
+                long[] frequencies = readLongs(in);
+                long[] lastTimes = readLongs(in);
+                long lastTransitions = in.readLong();
+                int size = Math.min(in.readInt(), mCapacity);
+                /* Oldest first, so the ring buffer fills up the same way */
+                for (int n = 0; n < size; n++) {
+                    mDeltaTimes[n] = readLongs(in);
+                    mDeltaTransitions[n] = in.readLong();
+                    mTimestamps[n] = in.readLong();
+                    mProfiles[n] = in.readInt();
+                }
+
+                mActiveProfile = profile >= 0 && profile < MAX_PROFILES ? profile : 0;
+                mFrequencies = frequencies.length > 0 ? frequencies : null;
+                mSize = size;
+                mHead = size % mCapacity;
+                if (bootId.equals(mBootId) && lastTimes.length > 0) {
+                    mLastTimes = lastTimes;
+                    mLastTransitions = lastTransitions;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to load " + mFile, e);
+            mSize = 0;
+            mHead = 0;
+            mFrequencies = null;
+        }
+    }
+
+    private void save() {
+        if (mFile == null) {
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp), 4096));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeUTF(mBootId != null ? mBootId : "");
+                out.writeInt(mActiveProfile);
+                writeLongs(out, mFrequencies);
+                writeLongs(out, mLastTimes);
+                out.writeLong(mLastTransitions);
+                out.writeInt(mSize);
+                for (int n = mSize - 1; n >= 0; n--) {
+                    int i = (mHead - 1 - n + mCapacity) % mCapacity;
+                    writeLongs(out, mDeltaTimes[i]);
+                    out.writeLong(mDeltaTransitions[i]);
+                    out.writeLong(mTimestamps[i]);
+                    out.writeInt(mProfiles[i]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                Log.e(TAG, "Unable to replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to save " + mFile, e);
+        }
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        if (values == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(values.length);
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > 1024) {
+            throw new IOException("Bad array length " + length);
+        }
+        long[] values = new long[length];
+        for (int i = 0; i < length; i++) {
+            values[i] = in.readLong();
+        }
+        return values;
+    }
+
+    /**
+     * Merges new frequencies into the table. Recorded deltas use the old
+     * indexing and are dropped, which only happens if the frequency table
+     * of the kernel changes at runtime.
+     */
+    private long[] rebuildFrequencyTable(long[] frequencies, long[] times) {
+        long[] merged;
+        if (mFrequencies == null) {
+            merged = frequencies.clone();
+        } else {
+            merged = Arrays.copyOf(mFrequencies, mFrequencies.length + frequencies.length);
+            System.arraycopy(frequencies, 0, merged, mFrequencies.length, frequencies.length);
+        }
+        Arrays.sort(merged);
+        int count = 0;
+        for (int i = 0; i < merged.length; i++) {
+            if (count == 0 || merged[count - 1] != merged[i]) {
+                merged[count++] = merged[i];
+            }
+        }
+        merged = Arrays.copyOf(merged, count);
+
+        long[] remapped = new long[count];
+        if (times != null) {
+            for (int i = 0; i < times.length; i++) {
+                remapped[Arrays.binarySearch(merged, mFrequencies[i])] = times[i];
+            }
+        }
+        mFrequencies = merged;
+        mSize = 0;
+        mHead = 0;
+        mLastTimes = null;
+        return remapped;
+    }
+
+    private static boolean containsAll(long[] table, long[] values) {
+        for (long value : values) {
+            if (Arrays.binarySearch(table, value) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return { frequencies, times } or null if the node can't be read
+     */
+    static long[][] readTimeInState(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        long[] frequencies = new long[32];
+        long[] times = new long[32];
+        int count = 0;
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file), 1024);
+            try {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space <= 0) {
+                        continue;
+                    }
+                    if (count == frequencies.length) {
+                        frequencies = Arrays.copyOf(frequencies, count * 2);
+                        times = Arrays.copyOf(times, count * 2);
+                    }
+                    frequencies[count] = parseLong(line, 0, space);
+                    times[count] = parseLong(line, space + 1, line.length());
+                    count++;
+                }
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+            return null;
+        }
+        return new long[][] { Arrays.copyOf(frequencies, count), Arrays.copyOf(times, count) };
+    }
+
+    private static long readLong(File file) {
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file), 64);
+            try {
+                String line = br.readLine();
+                return line != null ? parseLong(line, 0, line.length()) : 0;
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to read " + file, e);
+            return 0;
+        }
+    }
+
+    private static long parseLong(String s, int start, int end) {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+            }
+        }
+        return value;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Pushes multi-megabyte output through sh, with CMDProcessor's streaming
+ * runner and through a {@link ShellSession}, and checks it arrives
+ * complete, capped or timed out as asked. The output comes from files
+ * written beforehand and cat, which every toolbox has.
+ */
+public class CommandOutputCheck extends SelfCheck {
+
+    private static final String SHELL = "sh";
+
+    /* 4 MB in lines of 64 characters plus newline */
+    private static final int LINES = 4 * 1024 * 1024 / 65;
+    private static final int LINE_LENGTH = 64;
+
+    /* 4 MB without any newline */
+    private static final int FLAT_LENGTH = 4 * 1024 * 1024;
+
+    /**
+     * @param cacheDir where the files to cat go
+     */
+    public CommandOutputCheck(File cacheDir) {
+        super("CommandOutputCheck", new File(cacheDir, "command_output_check"));
+    }
+
+    @Override
+    protected void runChecks() throws IOException {
+        getDir().mkdirs();
+        File lines = new File(getDir(), "lines");
+        File flat = new File(getDir(), "flat");
+        writeLines(lines);
+        writeFlat(flat);
+
+        checkStreaming(lines, flat);
+        checkSession(lines, flat);
+    }
+
+    private void checkStreaming(File lines, File flat) {
+        CMDProcessor.SH sh = new CMDProcessor().new SH(SHELL);
+        final int[] counted = new int[2];
+        CMDProcessor.LineListener listener = new CMDProcessor.LineListener() {
+            public void onStdout(String line) {
+                counted[0]++;
+            }
+
+            public void onStderr(String line) {
+                counted[1]++;
+            }
+        };
+
+        /*
+         * Both streams full at once: stdout must be drained while stderr is
+         * written. runStreaming() execs the command, hence the inner shell.
+         */
+        CMDProcessor.CommandResult result = sh.runStreaming(
+                SHELL + " -c \"cat " + lines + " >&2; cat " + lines + "\"", listener, 60000, 0);
+        check("streaming exit", result.success());
+        check("streaming stdout length", length(result.stdout) == LINES * (LINE_LENGTH + 1) - 1);
+        check("streaming stderr length", length(result.stderr) == LINES * (LINE_LENGTH + 1) - 1);
+        check("streaming stdout lines", counted[0] == LINES);
+        check("streaming stderr lines", counted[1] == LINES);
+
+        result = sh.runStreaming("cat " + flat, null, 60000, CMDProcessor.DEFAULT_OUTPUT_LIMIT);
+        check("streaming cap exit", result.success());
+        check("streaming cap truncated", result.truncated);
+        check("streaming cap length", length(result.stdout) == CMDProcessor.DEFAULT_OUTPUT_LIMIT);
+
+        result = sh.runStreaming("sleep 10", null, 500, 0);
+        check("streaming timeout", result.timed_out && result.exit_value == null);
+    }
+
+    private void checkSession(File lines, File flat) {
+        ShellSession session = new ShellSession(SHELL, 0);
+        try {
+            CMDProcessor.CommandResult result = session.run("cat " + lines + " >&2; cat " + lines);
+            check("session exit", result != null && result.success());
+            check("session truncated", result != null && result.truncated);
+            check("session stdout length", result != null
+                    && length(result.stdout) == CMDProcessor.DEFAULT_OUTPUT_LIMIT);
+
+            /* Nothing but a marker at the end of 4 MB, which must still be found */
+            result = session.run("cat " + flat);
+            check("session flat exit", result != null && result.success());
+            check("session flat length", result != null
+                    && length(result.stdout) == CMDProcessor.DEFAULT_OUTPUT_LIMIT);
+
+            result = session.run("echo done");
+            check("session after", result != null && "done".equals(result.stdout));
+
+            result = session.run("sleep 10", 500);
+            check("session timeout", result != null && result.timed_out);
+            result = session.run("echo restarted");
+            check("session restart", result != null && "restarted".equals(result.stdout));
+        } finally {
+            session.close();
+        }
+    }
+
+    private static int length(String s) {
+        return s != null ? s.length() : -1;
+    }
+
+    private static void writeLines(File file) throws IOException {
+        char[] line = new char[LINE_LENGTH + 1];
+        for (int i = 0; i < LINE_LENGTH; i++) {
+            line[i] = (char) ('a' + i % 26);
+        }
+        line[LINE_LENGTH] = '\n';
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file), 65536);
+        try {
+            for (int i = 0; i < LINES; i++) {
+                writer.write(line);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void writeFlat(File file) throws IOException {
+        char[] block = new char[4096];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = 'x';
+        }
+        BufferedWriter writer = new BufferedWriter(new FileWriter(file), 65536);
+        try {
+            for (int i = 0; i < FLAT_LENGTH / block.length; i++) {
+                writer.write(block);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
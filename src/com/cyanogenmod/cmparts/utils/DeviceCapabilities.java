@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import com.cyanogenmod.cmparts.activities.PerformanceSettingsActivity;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Registry of what the device and kernel support.
+ *
+ * Results are kept as a bit mask and persisted together with the boot id
+ * and kernel version, so probing happens once per boot. Only files are
+ * probed; nothing here runs commands, so looking up a capability never
+ * starts a root shell.
+ */
+public class DeviceCapabilities {
+
+    private static final String TAG = "DeviceCapabilities";
+
+    private static final String PREFS_NAME = "device_capabilities";
+    private static final String KEY_BOOT_ID = "boot_id";
+    private static final String KEY_KERNEL = "kernel";
+    private static final String KEY_CAPS = "caps";
+
+    private static final String BOOT_ID_FILE = "/proc/sys/kernel/random/boot_id";
+    private static final String SWAPS_FILE = "/proc/swaps";
+    private static final String IOSCHED_FILE = "/sys/block/mmcblk0/queue/scheduler";
+
+    /* Bits 0 and 1 were su and busybox, cached masks may still carry them */
+    public static final int CAP_CPUFREQ = 2;
+    public static final int CAP_CPUFREQ_STATS = 3;
+    public static final int CAP_KSM = 4;
+    public static final int CAP_LOWMEMKILLER = 5;
+    public static final int CAP_READ_AHEAD = 6;
+    public static final int CAP_SWAP = 7;
+    public static final int CAP_IOSCHED = 8;
+
+    private static DeviceCapabilities sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final String mBootId;
+    private final String mKernel;
+
+    private volatile int mCaps;
+
+    public static synchronized DeviceCapabilities getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DeviceCapabilities(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private DeviceCapabilities(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mBootId = readBootId();
+        mKernel = System.getProperty("os.version", "");
+
+        if (mBootId != null && mBootId.equals(mPrefs.getString(KEY_BOOT_ID, null))
+                && mKernel.equals(mPrefs.getString(KEY_KERNEL, null))
+                && mPrefs.contains(KEY_CAPS)) {
+            mCaps = mPrefs.getInt(KEY_CAPS, 0);
+        } else {
+            probe();
+        }
+    }
+
+    public boolean has(int capability) {
+        return (mCaps & (1 << capability)) != 0;
+    }
+
+    /**
+     * Drops the cached result and probes again.
+     */
+    public void reprobe() {
+        probe();
+    }
+
+    private synchronized void probe() {
+        int caps = probeFiles();
+        mCaps = caps;
+        Log.d(TAG, "Capabilities probed: 0x" + Integer.toHexString(caps));
+
+        mPrefs.edit()
+                .putString(KEY_BOOT_ID, mBootId)
+                .putString(KEY_KERNEL, mKernel)
+                .putInt(KEY_CAPS, caps)
+                .commit();
+    }
+
+    private int probeFiles() {
+        int caps = 0;
+        if (!CPUPolicyEngine.getInstance().getPolicies().isEmpty()) {
+            caps |= 1 << CAP_CPUFREQ;
+            File stats = CPUPolicyEngine.getInstance().getPolicies().get(0)
+                    .node(CPUStatsCollector.TIME_IN_STATE);
+            if (stats.exists()) {
+                caps |= 1 << CAP_CPUFREQ_STATS;
+            }
+        }
+        if (new File(PerformanceSettingsActivity.KSM_RUN_FILE).exists()) {
+            caps |= 1 << CAP_KSM;
+        }
+        if (new File(PerformanceSettingsActivity.LOWMEMKILL_RUN_FILE).exists()) {
+            caps |= 1 << CAP_LOWMEMKILLER;
+        }
+        if (new File(PerformanceSettingsActivity.SDCARD_RUN_FILE).exists()) {
+            caps |= 1 << CAP_READ_AHEAD;
+        }
+        if (new File(SWAPS_FILE).exists()) {
+            caps |= 1 << CAP_SWAP;
+        }
+        if (new File(IOSCHED_FILE).exists()) {
+            caps |= 1 << CAP_IOSCHED;
+        }
+        return caps;
+    }
+
+    /**
+     * @return the id the kernel generated for this boot, or null
+     */
+    public static String readBootId() {
+        return readLine(BOOT_ID_FILE);
+    }
+
+    private static String readLine(String fname) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(fname), 64);
+            try {
+                return br.readLine();
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
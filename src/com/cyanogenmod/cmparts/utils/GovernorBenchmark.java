@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Runs the same synthetic workload under each CPU governor and ranks them.
+ *
+ * The workload starts idle, then does short bursts of work with pauses in
+ * between, like UI interaction, then one long block of computation. Burst
+ * latency, the time of the long block and an energy estimate from
+ * time_in_state are recorded per governor. Everything touching the device
+ * goes through {@link Platform}, so a simulated frequency source can be
+ * used instead.
+ */
+public class GovernorBenchmark {
+
+    /* Workload shape */
+    public static final long IDLE_MS = 1000;
+    public static final int BURSTS = 30;
+    public static final int BURST_UNITS = 4;
+    public static final long BURST_GAP_MS = 120;
+    public static final int SUSTAINED_UNITS = 400;
+
+    /*
+     * userspace keeps whatever frequency was set last, so it would only
+     * measure the previous governor's final state.
+     */
+    private static final List<String> EXCLUDED = Arrays.asList("userspace");
+
+    public interface Platform {
+        boolean setGovernor(String governor);
+
+        /**
+         * @return frequencies in kHz, in the order of getTimeInState()
+         */
+        long[] getFrequencies();
+
+        /**
+         * @return cumulative time per frequency, in any unit
+         */
+        long[] getTimeInState();
+
+        /**
+         * Performs a fixed amount of computation per unit.
+         */
+        void work(int units);
+
+        void idle(long millis);
+
+        long nanoTime();
+    }
+
+    public interface Listener {
+        void onGovernorStarted(String governor, int index, int count);
+    }
+
+    /**
+     * Latencies in microseconds. Energy is residency weighted by the cube
+     * of the relative frequency, as voltage rises with frequency, so it
+     * only compares governors with each other.
+     */
+    public static class Result {
+        public String governor;
+        public long burstMedian;
+        public long burstP90;
+        public long sustained;
+        public long energy;
+        public long[] residency;
+        /* Doublings against the best governor summed over the metrics, lower is better */
+        public double score;
+    }
+
+    private final Platform mPlatform;
+
+    public GovernorBenchmark(Platform platform) {
+        mPlatform = platform;
+    }
+
+    /**
+     * @return the governors which pick frequencies by themselves
+     */
+    public static String[] getComparable(String[] governors) {
+        List<String> comparable = new ArrayList<String>();
+        for (String governor : governors) {
+            if (!EXCLUDED.contains(governor)) {
+                comparable.add(governor);
+            }
+        }
+        return comparable.toArray(new String[comparable.size()]);
+    }
+
+    /**
+     * Runs the workload under each governor which can be selected, except
+     * those which don't scale on their own.
+     *
+     * @return results, best first
+     */
+    public List<Result> run(String[] governors, Listener listener) {
+        governors = getComparable(governors);
+        List<Result> results = new ArrayList<Result>();
+        for (int i = 0; i < governors.length; i++) {
+            if (listener != null) {
+                listener.onGovernorStarted(governors[i], i, governors.length);
+            }
+            if (!mPlatform.setGovernor(governors[i])) {
+                continue;
+            }
+            results.add(measure(governors[i]));
+        }
+        rank(results);
+        return results;
+    }
+
+    private Result measure(String governor) {
+        Result result = new Result();
+        result.governor = governor;
+        long[] before = mPlatform.getTimeInState();
+
+        mPlatform.idle(IDLE_MS);
+
+        long[] latency = new long[BURSTS];
+        for (int i = 0; i < BURSTS; i++) {
+            long start = mPlatform.nanoTime();
+            mPlatform.work(BURST_UNITS);
+            latency[i] = (mPlatform.nanoTime() - start) / 1000;
+            mPlatform.idle(BURST_GAP_MS);
+        }
+        Arrays.sort(latency);
+        result.burstMedian = latency[BURSTS / 2];
+        result.burstP90 = latency[(BURSTS * 9 + 9) / 10 - 1];
+
+        long start = mPlatform.nanoTime();
+        mPlatform.work(SUSTAINED_UNITS);
+        result.sustained = (mPlatform.nanoTime() - start) / 1000;
+
+        long[] after = mPlatform.getTimeInState();
+        result.residency = new long[after.length];
+        for (int i = 0; i < after.length; i++) {
+            result.residency[i] = after[i] - (i < before.length ? before[i] : 0);
+        }
+        result.energy = energy(mPlatform.getFrequencies(), result.residency);
+        return result;
+    }
+
+    public static long energy(long[] frequencies, long[] residency) {
+        long max = 1;
+        for (long frequency : frequencies) {
+            max = Math.max(max, frequency);
+        }
+        double energy = 0;
+        for (int i = 0; i < frequencies.length && i < residency.length; i++) {
+            double relative = (double) frequencies[i] / max;
+            energy += residency[i] * relative * relative * relative;
+        }
+        return Math.round(energy);
+    }
+
+    /**
+     * Scores burst latency, sustained time and energy by how many times
+     * each doubles against the best governor, so one metric with a small
+     * best value can't outweigh the others, and sorts by the sum.
+     */
+    public static void rank(List<Result> results) {
+        long bestBurst = Long.MAX_VALUE;
+        long bestSustained = Long.MAX_VALUE;
+        long bestEnergy = Long.MAX_VALUE;
+        for (Result result : results) {
+            bestBurst = Math.min(bestBurst, result.burstP90);
+            bestSustained = Math.min(bestSustained, result.sustained);
+            bestEnergy = Math.min(bestEnergy, result.energy);
+        }
+        for (Result result : results) {
+            result.score = doublings(result.burstP90, bestBurst)
+                    + doublings(result.sustained, bestSustained)
+                    + doublings(result.energy, bestEnergy);
+        }
+        Collections.sort(results, new Comparator<Result>() {
+            public int compare(Result a, Result b) {
+                return Double.compare(a.score, b.score);
+            }
+        });
+    }
+
+    private static double doublings(long value, long best) {
+        return Math.log((double) Math.max(1, value) / Math.max(1, best)) / Math.log(2);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs {@link GovernorBenchmark} on a simulated two frequency CPU with a
+ * simulated clock, so it takes no time and always ranks the same way, and
+ * checks the measurements and the ranking.
+ */
+public class GovernorBenchmarkCheck extends SelfCheck {
+
+    /**
+     * Simulated governors: performance always runs at the highest
+     * frequency, powersave at the lowest and ondemand raises the frequency
+     * once work has gone on for {@link #RAMP_NS}.
+     */
+    static class SimulatedPlatform implements GovernorBenchmark.Platform {
+        static final long[] FREQUENCIES = new long[] { 245000, 1000000 };
+        static final long RAMP_NS = 2000000;
+
+        /* A unit of work takes a millisecond at 1 GHz */
+        private static final long UNIT_NS_KHZ = 1000000L * 1000000L;
+
+        final List<String> governors = new ArrayList<String>();
+        private final long[] mTimeInState = new long[FREQUENCIES.length];
+        private String mGovernor;
+        private long mNow;
+
+        public boolean setGovernor(String governor) {
+            governors.add(governor);
+            mGovernor = governor;
+            return true;
+        }
+
+        public long[] getFrequencies() {
+            return FREQUENCIES;
+        }
+
+        public long[] getTimeInState() {
+            return mTimeInState.clone();
+        }
+
+        public void work(int units) {
+            long remaining = units * UNIT_NS_KHZ;
+            int low = 0;
+            int high = FREQUENCIES.length - 1;
+            if (mGovernor.equals("ondemand")) {
+                long ramp = Math.min(remaining, RAMP_NS * FREQUENCIES[low]);
+                advance(ramp / FREQUENCIES[low], low);
+                remaining -= ramp;
+            }
+            int index = mGovernor.equals("powersave") ? low : high;
+            advance(remaining / FREQUENCIES[index], index);
+        }
+
+        public void idle(long millis) {
+            advance(millis * 1000000, mGovernor.equals("performance") ? FREQUENCIES.length - 1 : 0);
+        }
+
+        public long nanoTime() {
+            return mNow;
+        }
+
+        private void advance(long nanos, int index) {
+            mNow += nanos;
+            mTimeInState[index] += nanos;
+        }
+    }
+
+    public GovernorBenchmarkCheck() {
+        super("GovernorBenchmarkCheck");
+    }
+
+    @Override
+    protected void runChecks() {
+        SimulatedPlatform platform = new SimulatedPlatform();
+        List<GovernorBenchmark.Result> results = new GovernorBenchmark(platform).run(
+                new String[] { "performance", "userspace", "ondemand", "powersave" }, null);
+
+        check("userspace not selected", !platform.governors.contains("userspace"));
+        check("result count", results.size() == 3);
+        if (results.size() != 3) {
+            return;
+        }
+        check("ranking", results.get(0).governor.equals("ondemand")
+                && results.get(1).governor.equals("powersave")
+                && results.get(2).governor.equals("performance"));
+
+        GovernorBenchmark.Result performance = find(results, "performance");
+        GovernorBenchmark.Result powersave = find(results, "powersave");
+        GovernorBenchmark.Result ondemand = find(results, "ondemand");
+        /* 4 units at 1 GHz, and at 245 MHz */
+        check("performance burst", performance.burstMedian == 4000 && performance.burstP90 == 4000);
+        check("powersave burst", powersave.burstMedian == 16326);
+        /* 2 ms ramping at 245 MHz covers 0.49 units, the rest runs at 1 GHz */
+        check("ondemand burst", ondemand.burstMedian == 5510);
+        check("performance sustained", performance.sustained == 400000);
+
+        long residency = 0;
+        for (GovernorBenchmark.Result result : results) {
+            for (long value : result.residency) {
+                residency += value;
+            }
+        }
+        check("residency covers the run", residency == platform.nanoTime());
+        check("energy", powersave.energy < ondemand.energy && ondemand.energy < performance.energy);
+    }
+
+    private static GovernorBenchmark.Result find(List<GovernorBenchmark.Result> results,
+            String governor) {
+        for (GovernorBenchmark.Result result : results) {
+            if (result.governor.equals(governor)) {
+                return result;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.os.SystemClock;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Samples KSM page sharing counters and derives how much memory KSM saves
+ * and what its scanning costs.
+ *
+ * From these a sleep_millisecs / pages_to_scan pair is recommended within
+ * the given bounds: scanning is slowed down when most scanned pages turn out
+ * to be unshareable, and sped up while sharing keeps growing cheaply. The
+ * KSM directory is a constructor argument so the sampler can be pointed at
+ * a fake sysfs tree.
+ */
+public class KSMSampler {
+
+    public static final String KSM_ROOT = "/sys/kernel/mm/ksm";
+
+    public static final String PAGES_SHARED = "pages_shared";
+    public static final String PAGES_SHARING = "pages_sharing";
+    public static final String PAGES_UNSHARED = "pages_unshared";
+    public static final String PAGES_VOLATILE = "pages_volatile";
+    public static final String FULL_SCANS = "full_scans";
+    public static final String SLEEP_MILLISECS = "sleep_millisecs";
+    public static final String PAGES_TO_SCAN = "pages_to_scan";
+
+    public static final long PAGE_SIZE = 4096;
+
+    /* More unshared than this many times the shared pages means wasted scans */
+    private static final int UNSHARED_RATIO_SLOW_DOWN = 10;
+    /* Fewer unshared than this many times the shared pages is worth scanning harder */
+    private static final int UNSHARED_RATIO_SPEED_UP = 2;
+    /* Saving growth per minute that justifies scanning harder */
+    private static final long GROWTH_SPEED_UP_BYTES = 1024 * 1024;
+
+    private static final int FIELDS = 7;
+    private static final int SHARED = 0;
+    private static final int SHARING = 1;
+    private static final int UNSHARED = 2;
+    private static final int VOLATILE = 3;
+    private static final int SCANS = 4;
+    private static final int SLEEP = 5;
+    private static final int SCAN = 6;
+
+    /* Indexed by the field constants above */
+    private static final String[] NODES = new String[] {
+        PAGES_SHARED, PAGES_SHARING, PAGES_UNSHARED, PAGES_VOLATILE,
+        FULL_SCANS, SLEEP_MILLISECS, PAGES_TO_SCAN
+    };
+
+    private final File mRoot;
+    private final int mCapacity;
+    private final long[][] mSamples;
+    private final long[] mTimestamps;
+    private int mHead;
+    private int mSize;
+
+    private int mMinSleep = 500;
+    private int mMaxSleep = 4000;
+    private int mMinScan = 64;
+    private int mMaxScan = 512;
+
+    public KSMSampler(File root, int capacity) {
+        mRoot = root;
+        mCapacity = capacity;
+        mSamples = new long[capacity][FIELDS];
+        mTimestamps = new long[capacity];
+    }
+
+    public KSMSampler() {
+        this(new File(KSM_ROOT), 60);
+    }
+
+    /**
+     * Sets the range auto tuning and recommendations stay within.
+     */
+    public synchronized void setBounds(int minSleep, int maxSleep, int minScan, int maxScan) {
+        mMinSleep = minSleep;
+        mMaxSleep = maxSleep;
+        mMinScan = minScan;
+        mMaxScan = maxScan;
+    }
+
+    /**
+     * @return false if KSM counters are not available
+     */
+    public boolean sample() {
+        return sample(SystemClock.elapsedRealtime());
+    }
+
+    public synchronized boolean sample(long now) {
+        long[] sample = mSamples[mHead];
+        for (int i = 0; i < FIELDS; i++) {
+            long value = readLong(new File(mRoot, NODES[i]));
+            if (value < 0) {
+                return false;
+            }
+            sample[i] = value;
+        }
+        mTimestamps[mHead] = now;
+        mHead = (mHead + 1) % mCapacity;
+        if (mSize < mCapacity) {
+            mSize++;
+        }
+        return true;
+    }
+
+    public synchronized int getSampleCount() {
+        return mSize;
+    }
+
+    private long[] latest() {
+        return mSamples[(mHead - 1 + mCapacity) % mCapacity];
+    }
+
+    private int oldestIndex() {
+        return (mHead - mSize + mCapacity) % mCapacity;
+    }
+
+    /**
+     * @return memory currently saved by merging, in bytes
+     */
+    public synchronized long getSavedBytes() {
+        return mSize == 0 ? 0 : latest()[SHARING] * PAGE_SIZE;
+    }
+
+    public synchronized long getSharedPages() {
+        return mSize == 0 ? 0 : latest()[SHARED];
+    }
+
+    public synchronized long getUnsharedPages() {
+        return mSize == 0 ? 0 : latest()[UNSHARED];
+    }
+
+    public synchronized long getVolatilePages() {
+        return mSize == 0 ? 0 : latest()[VOLATILE];
+    }
+
+    /**
+     * @return pages scanned per second with the current settings
+     */
+    public synchronized long getScanRate() {
+        if (mSize == 0 || latest()[SLEEP] == 0) {
+            return 0;
+        }
+        return latest()[SCAN] * 1000 / latest()[SLEEP];
+    }
+
+    /**
+     * @return average milliseconds per full scan over the sampled window,
+     *         or -1 if no full scan completed in it
+     */
+    public synchronized long getFullScanInterval() {
+        if (mSize < 2) {
+            return -1;
+        }
+        int oldest = oldestIndex();
+        long scans = latest()[SCANS] - mSamples[oldest][SCANS];
+        if (scans <= 0) {
+            return -1;
+        }
+        return (mTimestamps[(mHead - 1 + mCapacity) % mCapacity] - mTimestamps[oldest]) / scans;
+    }
+
+    /**
+     * @return change in saved bytes per minute over the sampled window
+     */
+    public synchronized long getSavedGrowthPerMinute() {
+        if (mSize < 2) {
+            return 0;
+        }
+        int oldest = oldestIndex();
+        long elapsed = mTimestamps[(mHead - 1 + mCapacity) % mCapacity] - mTimestamps[oldest];
+        if (elapsed <= 0) {
+            return 0;
+        }
+        long growth = (latest()[SHARING] - mSamples[oldest][SHARING]) * PAGE_SIZE;
+        return growth * 60000 / elapsed;
+    }
+
+    /**
+     * @return { sleep_millisecs, pages_to_scan } to use next, or null
+     *         without samples
+     */
+    public synchronized int[] getRecommendation() {
+        if (mSize == 0) {
+            return null;
+        }
+        long[] last = latest();
+        long sleep = last[SLEEP];
+        long scan = last[SCAN];
+        long sharing = Math.max(1, last[SHARING]);
+
+        if (last[UNSHARED] > sharing * UNSHARED_RATIO_SLOW_DOWN) {
+            /* Mostly scanning pages that never merge */
+            sleep *= 2;
+            scan /= 2;
+        } else if (last[UNSHARED] < sharing * UNSHARED_RATIO_SPEED_UP
+                && getSavedGrowthPerMinute() > GROWTH_SPEED_UP_BYTES) {
+            sleep /= 2;
+            scan *= 2;
+        }
+        return new int[] {
+            (int) Math.max(mMinSleep, Math.min(mMaxSleep, sleep)),
+            (int) Math.max(mMinScan, Math.min(mMaxScan, scan))
+        };
+    }
+
+    /**
+     * Queues the recommended settings if they differ from the current ones.
+     *
+     * @return the applied { sleep_millisecs, pages_to_scan }, or null if
+     *         nothing changed
+     */
+    public synchronized int[] autoTune(SysfsWriter writer) {
+        int[] recommendation = getRecommendation();
+        if (recommendation == null) {
+            return null;
+        }
+        long[] last = latest();
+        if (recommendation[0] == last[SLEEP] && recommendation[1] == last[SCAN]) {
+            return null;
+        }
+        writer.write(new File(mRoot, SLEEP_MILLISECS).getPath(), String.valueOf(recommendation[0]));
+        writer.write(new File(mRoot, PAGES_TO_SCAN).getPath(), String.valueOf(recommendation[1]));
+        return recommendation;
+    }
+
+    private static long readLong(File file) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file), 64);
+            try {
+                String line = br.readLine();
+                if (line == null) {
+                    return -1;
+                }
+                return Long.parseLong(line.trim());
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+/**
+ * Replays /proc/meminfo and /proc/vmstat snapshots, 30 seconds apart as
+ * LowMemoryReceiver samples them, through {@link ProcStatParser} into a
+ * {@link LowMemoryTuner}, and checks the thresholds it picks. The process
+ * may be restarted between samples, carrying the tuner's saved state.
+ */
+public class LowMemoryReplay extends SelfCheck {
+
+    private static final long INTERVAL = 30000;
+
+    /* Bounds and start as LowMemoryReceiver derives them from the presets */
+    private static final int[] LOWER = LowMemoryTuner.parse("2560,4096,6144,7680,8704,10240");
+    private static final int[] UPPER = LowMemoryTuner.parse("2560,4096,6144,18944,22016,23552");
+    private static final String START = "2560,4096,6144,10240,11264,12288";
+    private static final String RAISED = "2560,4096,6144,11264,12390,13516";
+
+    /* Pages swapped per interval, about 333 per second */
+    private static final long THRASH_SWAP = 10000;
+
+    private final ProcStatParser mMeminfoParser =
+            new ProcStatParser(LowMemoryTuner.MEMINFO_FILE, LowMemoryTuner.MEMINFO_KEYS);
+    private final ProcStatParser mVmstatParser =
+            new ProcStatParser(LowMemoryTuner.VMSTAT_FILE, LowMemoryTuner.VMSTAT_KEYS);
+
+    public LowMemoryReplay() {
+        super("LowMemoryReplay");
+    }
+
+    @Override
+    protected void runChecks() {
+        int decision = LowMemoryTuner.WINDOW + 1;
+
+        /* Swap thrashing raises the thresholds once the window is full */
+        check("thrashing", RAISED.equals(replay(decision, -1, false, false)));
+
+        /* A restart mid window continues it from the saved state */
+        check("restart", RAISED.equals(replay(decision, 3, true, false)));
+
+        /* Without the saved state, the window starts over */
+        check("restart without state", replay(decision, 3, false, false) == null);
+
+        /* After a reboot the counters are lower, the saved window is void */
+        check("reboot", replay(decision, 3, true, true) == null);
+
+        /* A state saved for other thresholds doesn't apply */
+        LowMemoryTuner tuner = newTuner();
+        tuner.setMinfree(LowMemoryTuner.parse(RAISED));
+        check("other thresholds", !newTuner().setState(tuner.getState()));
+    }
+
+    /**
+     * Feeds samples of steady swap thrashing with plenty of free memory.
+     *
+     * @param count samples to feed
+     * @param restartAfter sample after which a new tuner takes over, or -1
+     * @param keepState whether the new tuner continues the saved state
+     * @param reboot whether counters and clock restart along with the tuner
+     * @return thresholds picked by the last sample, or null if none
+     */
+    private String replay(int count, int restartAfter, boolean keepState, boolean reboot) {
+        LowMemoryTuner tuner = newTuner();
+        long[] meminfo = new long[LowMemoryTuner.MEMINFO_KEYS.length];
+        long[] vmstat = new long[LowMemoryTuner.VMSTAT_KEYS.length];
+        long now = 3600000;
+        long swapped = 5000000;
+        int[] minfree = null;
+        for (int i = 1; i <= count; i++) {
+            now += INTERVAL;
+            swapped += THRASH_SWAP;
+            parse(mMeminfoParser, meminfo(65536, 98304), meminfo);
+            parse(mVmstatParser, vmstat(swapped), vmstat);
+            minfree = tuner.sample(now, meminfo, vmstat);
+
+            if (i == restartAfter) {
+                String state = tuner.getState();
+                tuner = newTuner();
+                if (keepState) {
+                    tuner.setState(state);
+                }
+                if (reboot) {
+                    now = 60000;
+                    swapped = 0;
+                }
+            }
+        }
+        return minfree != null ? LowMemoryTuner.toString(minfree) : null;
+    }
+
+    private static LowMemoryTuner newTuner() {
+        return new LowMemoryTuner(LOWER.clone(), UPPER.clone(), LowMemoryTuner.parse(START));
+    }
+
+    private static void parse(ProcStatParser parser, String snapshot, long[] values) {
+        byte[] data = snapshot.getBytes();
+        parser.parse(data, data.length, values);
+    }
+
+    private static String meminfo(long free, long cached) {
+        return "MemTotal:         409600 kB\n"
+                + "MemFree:          " + free + " kB\n"
+                + "Buffers:           12288 kB\n"
+                + "Cached:           " + cached + " kB\n"
+                + "SwapCached:         4096 kB\n";
+    }
+
+    private static String vmstat(long swapped) {
+        return "nr_free_pages 16384\n"
+                + "pswpin " + swapped / 2 + "\n"
+                + "pswpout " + swapped / 2 + "\n"
+                + "pgmajfault 1200\n"
+                + "pgsteal_normal 400000\n"
+                + "pgscan_kswapd_normal 500000\n"
+                + "pgscan_direct_normal 20000\n";
+    }
+}
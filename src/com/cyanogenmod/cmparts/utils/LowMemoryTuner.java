@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Adjusts the lowmemorykiller minfree thresholds to observed memory
+ * pressure.
+ *
+ * Samples are collected over a window. If reclaim thrashes in that window
+ * (heavy swapping, major faults, or page scanning which steals little) the
+ * thresholds are raised, so background apps get killed before the device
+ * grinds. If free memory instead sat inside the kill range most of the
+ * time without reclaim being under pressure, apps get killed for nothing
+ * and the thresholds are lowered. Each slot stays within its bounds.
+ *
+ * The counters are passed to {@link #sample(long, long[], long[])} as
+ * parsed arrays, so recorded /proc snapshots can be replayed. A window
+ * spans minutes, longer than the process may live under memory pressure,
+ * so its progress can be saved with {@link #getState()} and picked up
+ * again with {@link #setState(String)}.
+ */
+public class LowMemoryTuner {
+
+    private static final String TAG = "LowMemoryTuner";
+
+    public static final String MEMINFO_FILE = "/proc/meminfo";
+    public static final String VMSTAT_FILE = "/proc/vmstat";
+
+    /* Indexes into the meminfo values */
+    public static final String[] MEMINFO_KEYS = new String[] { "MemFree", "Cached" };
+    public static final int MEM_FREE = 0;
+    public static final int MEM_CACHED = 1;
+
+    /* Indexes into the vmstat values */
+    public static final String[] VMSTAT_KEYS = new String[] {
+        "pgscan*", "pgsteal*", "pswpin", "pswpout", "pgmajfault"
+    };
+    public static final int VM_PGSCAN = 0;
+    public static final int VM_PGSTEAL = 1;
+    public static final int VM_PSWPIN = 2;
+    public static final int VM_PSWPOUT = 3;
+    public static final int VM_PGMAJFAULT = 4;
+
+    /* Samples per decision */
+    public static final int WINDOW = 6;
+
+    private static final int STEP_PERCENT = 10;
+    /* Pages per second swapped in and out that count as thrashing */
+    private static final long SWAP_THRASH_RATE = 256;
+    /* Major faults per second that count as thrashing */
+    private static final long MAJFAULT_THRASH_RATE = 100;
+    /* Scanned pages per second below which reclaim efficiency is ignored */
+    private static final long SCAN_MIN_RATE = 1024;
+    /* Reclaim stealing less than this share of scanned pages is thrashing */
+    private static final int STEAL_MIN_PERCENT = 50;
+
+    private final int[] mLower;
+    private final int[] mUpper;
+    private final int[] mMinfree;
+
+    private final long[] mMeminfo = new long[MEMINFO_KEYS.length];
+    private final long[] mVmstat = new long[VMSTAT_KEYS.length];
+    private final long[] mWindowStart = new long[VMSTAT_KEYS.length];
+    private long mWindowStartTime;
+    private int mSamples;
+    private int mKillZoneSamples;
+
+    private ProcStatParser mMeminfoParser;
+    private ProcStatParser mVmstatParser;
+
+    /**
+     * @param lower lowest allowed threshold per slot, in pages
+     * @param upper highest allowed threshold per slot, in pages
+     */
+    public LowMemoryTuner(int[] lower, int[] upper, int[] minfree) {
+        mLower = lower;
+        mUpper = upper;
+        mMinfree = new int[lower.length];
+        setMinfree(minfree);
+    }
+
+    /**
+     * Sets the thresholds currently in effect, e.g. after the user picked
+     * a static value, and starts a new window.
+     */
+    public synchronized void setMinfree(int[] minfree) {
+        for (int i = 0; i < mMinfree.length; i++) {
+            int value = minfree != null && i < minfree.length ? minfree[i] : mLower[i];
+            mMinfree[i] = Math.max(mLower[i], Math.min(mUpper[i], value));
+        }
+        mSamples = 0;
+    }
+
+    public synchronized int[] getMinfree() {
+        return mMinfree.clone();
+    }
+
+    /**
+     * Samples /proc/meminfo and /proc/vmstat.
+     *
+     * @return new thresholds to apply, or null if they stay the same
+     */
+    public int[] sample() {
+        synchronized (this) {
+            if (mMeminfoParser == null) {
+                mMeminfoParser = new ProcStatParser(MEMINFO_FILE, MEMINFO_KEYS);
+                mVmstatParser = new ProcStatParser(VMSTAT_FILE, VMSTAT_KEYS);
+            }
+            if (!mMeminfoParser.read(mMeminfo) || !mVmstatParser.read(mVmstat)) {
+                return null;
+            }
+            return sample(SystemClock.elapsedRealtime(), mMeminfo, mVmstat);
+        }
+    }
+
+    /**
+     * @param meminfo values for {@link #MEMINFO_KEYS}, in kB
+     * @param vmstat values for {@link #VMSTAT_KEYS}
+     * @return new thresholds to apply, or null if they stay the same
+     */
+    public synchronized int[] sample(long now, long[] meminfo, long[] vmstat) {
+        if (mSamples > 0 && isStale(now, vmstat)) {
+            Log.d(TAG, "Counters went back, starting a new window");
+            mSamples = 0;
+        }
+        if (mSamples == 0) {
+            System.arraycopy(vmstat, 0, mWindowStart, 0, mWindowStart.length);
+            mWindowStartTime = now;
+            mKillZoneSamples = 0;
+        }
+        mSamples++;
+
+        long available = (meminfo[MEM_FREE] + meminfo[MEM_CACHED]) / 4;
+        if (available < mMinfree[mMinfree.length - 1]) {
+            mKillZoneSamples++;
+        }
+        if (mSamples <= WINDOW) {
+            return null;
+        }
+
+        long seconds = Math.max(1, (now - mWindowStartTime) / 1000);
+        long scanned = vmstat[VM_PGSCAN] - mWindowStart[VM_PGSCAN];
+        long stolen = vmstat[VM_PGSTEAL] - mWindowStart[VM_PGSTEAL];
+        long swapped = vmstat[VM_PSWPIN] - mWindowStart[VM_PSWPIN]
+                + vmstat[VM_PSWPOUT] - mWindowStart[VM_PSWPOUT];
+        long faults = vmstat[VM_PGMAJFAULT] - mWindowStart[VM_PGMAJFAULT];
+        boolean thrashing = swapped / seconds > SWAP_THRASH_RATE
+                || faults / seconds > MAJFAULT_THRASH_RATE
+                || (scanned / seconds > SCAN_MIN_RATE
+                        && stolen * 100 < scanned * STEAL_MIN_PERCENT);
+        boolean churning = !thrashing && mKillZoneSamples * 2 > mSamples;
+        mSamples = 0;
+
+        if (!thrashing && !churning) {
+            return null;
+        }
+        boolean changed = false;
+        int previous = 0;
+        for (int i = 0; i < mMinfree.length; i++) {
+            int step = Math.max(1, mMinfree[i] * STEP_PERCENT / 100);
+            int value = thrashing ? mMinfree[i] + step : mMinfree[i] - step;
+            value = Math.max(mLower[i], Math.min(mUpper[i], value));
+            /* Thresholds must not decrease from one slot to the next */
+            value = Math.max(previous, value);
+            if (value != mMinfree[i]) {
+                mMinfree[i] = value;
+                changed = true;
+            }
+            previous = value;
+        }
+        if (!changed) {
+            return null;
+        }
+        Log.d(TAG, (thrashing ? "Reclaim thrashing" : "Kill churn") + ", minfree now "
+                + toString(mMinfree));
+        return mMinfree.clone();
+    }
+
+    /**
+     * A window restored after a reboot would compare counters the kernel
+     * has reset since.
+     */
+    private boolean isStale(long now, long[] vmstat) {
+        if (now < mWindowStartTime) {
+            return true;
+        }
+        for (int i = 0; i < vmstat.length; i++) {
+            if (vmstat[i] < mWindowStart[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return thresholds and window progress, for {@link #setState(String)}
+     */
+    public synchronized String getState() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(toString(mMinfree)).append(';').append(mSamples).append(';')
+                .append(mKillZoneSamples).append(';').append(mWindowStartTime);
+        for (long value : mWindowStart) {
+            sb.append(';').append(value);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Continues the window saved by {@link #getState()}, provided it was
+     * saved for the thresholds currently in effect.
+     *
+     * @return false if the state didn't apply and a new window starts
+     */
+    public synchronized boolean setState(String state) {
+        String[] parts = state != null ? state.split(";") : new String[0];
+        if (parts.length != 4 + mWindowStart.length) {
+            return false;
+        }
+        int[] minfree = parse(parts[0]);
+        if (minfree == null || !Arrays.equals(minfree, mMinfree)) {
+            return false;
+        }
+        try {
+            int samples = Integer.parseInt(parts[1]);
+            int killZoneSamples = Integer.parseInt(parts[2]);
+            long windowStartTime = Long.parseLong(parts[3]);
+            long[] windowStart = new long[mWindowStart.length];
+            for (int i = 0; i < windowStart.length; i++) {
+                windowStart[i] = Long.parseLong(parts[4 + i]);
+            }
+            mSamples = samples;
+            mKillZoneSamples = killZoneSamples;
+            mWindowStartTime = windowStartTime;
+            System.arraycopy(windowStart, 0, mWindowStart, 0, windowStart.length);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        return true;
+    }
+
+    public static String toString(int[] minfree) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < minfree.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(minfree[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the thresholds in a minfree string, or null if malformed
+     */
+    public static int[] parse(String minfree) {
+        if (minfree == null) {
+            return null;
+        }
+        String[] parts = minfree.trim().split(",");
+        int[] values = new int[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = Integer.parseInt(parts[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return values;
+    }
+}
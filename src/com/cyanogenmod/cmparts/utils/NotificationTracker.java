@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps track of the packages which post notifications, how many they
+ * posted and when they last did, for the LED settings.
+ *
+ * Counting happens in memory, in arrays indexed by package, and changes
+ * are written to the led_packages preferences. A package seen for the
+ * first time is written before onNotification() returns, so the list of
+ * packages survives the process being killed once the receiver is done.
+ * Counts and times are written from a background thread once STATS_DELAY
+ * of wall clock time passed since the last write; those of the last
+ * interval are lost if the process dies before that. A failed write is
+ * retried with the next one.
+ */
+public class NotificationTracker {
+
+    private static final String TAG = "NotificationTracker";
+
+    public static final String PREFS_NAME = "led_packages";
+
+    private static final long STATS_DELAY = 15 * 60 * 1000;
+
+    private static NotificationTracker sInstance;
+
+    private final SharedPreferences mPrefs;
+    private final Handler mHandler;
+    /* Keeps writes in order, they happen on the caller's thread as well */
+    private final Object mWriteLock = new Object();
+
+    private final HashMap<String, Integer> mIndex = new HashMap<String, Integer>();
+    private String[] mPackages = new String[16];
+    private int[] mCounts = new int[16];
+    private long[] mLastSeen = new long[16];
+    private boolean[] mDirty = new boolean[16];
+    private int mSize;
+
+    /* Wall clock time of the last write */
+    private long mWrittenAt;
+    private boolean mScheduled;
+
+    private final Runnable mWriteRunnable = new Runnable() {
+        public void run() {
+            write();
+        }
+    };
+
+    public static synchronized NotificationTracker getInstance(Context ctx) {
+        if (sInstance == null) {
+            sInstance = new NotificationTracker(ctx.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private NotificationTracker(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            int slot = add(entry.getKey());
+            /* Packages recorded before counting started have empty values */
+            Object value = entry.getValue();
+            String[] stats = value instanceof String ? ((String) value).split(",") : new String[0];
+            if (stats.length == 2) {
+                try {
+                    mCounts[slot] = Integer.parseInt(stats[0]);
+                    mLastSeen[slot] = Long.parseLong(stats[1]);
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Bad stats for " + entry.getKey() + ": " + value);
+                }
+            }
+        }
+
+        mWrittenAt = System.currentTimeMillis();
+
+        HandlerThread thread = new HandlerThread(TAG);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Counts a notification. Only touches the disk for a package not seen
+     * before, so it's fine to call from the main thread for every
+     * notification.
+     *
+     * @param now wall clock time of the notification
+     */
+    public void onNotification(String pkg, long now) {
+        boolean isNew;
+        long delay = 0;
+        synchronized (this) {
+            Integer slot = mIndex.get(pkg);
+            isNew = slot == null;
+            int i = isNew ? add(pkg) : slot;
+            mCounts[i]++;
+            mLastSeen[i] = now;
+            mDirty[i] = true;
+
+            if (!isNew) {
+                /* Handler delays count uptime, which stands still in deep sleep */
+                boolean due = now - mWrittenAt >= STATS_DELAY || now < mWrittenAt;
+                if (!due && mScheduled) {
+                    return;
+                }
+                delay = due ? 0 : STATS_DELAY;
+                mScheduled = true;
+            }
+        }
+        if (isNew) {
+            write();
+            return;
+        }
+        mHandler.removeCallbacks(mWriteRunnable);
+        mHandler.postDelayed(mWriteRunnable, delay);
+    }
+
+    private int add(String pkg) {
+        if (mSize == mPackages.length) {
+            int capacity = mSize * 2;
+            String[] packages = new String[capacity];
+            int[] counts = new int[capacity];
+            long[] lastSeen = new long[capacity];
+            boolean[] dirty = new boolean[capacity];
+            System.arraycopy(mPackages, 0, packages, 0, mSize);
+            System.arraycopy(mCounts, 0, counts, 0, mSize);
+            System.arraycopy(mLastSeen, 0, lastSeen, 0, mSize);
+            System.arraycopy(mDirty, 0, dirty, 0, mSize);
+            mPackages = packages;
+            mCounts = counts;
+            mLastSeen = lastSeen;
+            mDirty = dirty;
+        }
+        mPackages[mSize] = pkg;
+        mIndex.put(pkg, mSize);
+        return mSize++;
+    }
+
+    private void write() {
+        synchronized (mWriteLock) {
+            SharedPreferences.Editor editor = mPrefs.edit();
+            int[] written;
+            int count = 0;
+            synchronized (this) {
+                mScheduled = false;
+                mWrittenAt = System.currentTimeMillis();
+                written = new int[mSize];
+                for (int i = 0; i < mSize; i++) {
+                    if (mDirty[i]) {
+                        editor.putString(mPackages[i], mCounts[i] + "," + mLastSeen[i]);
+                        mDirty[i] = false;
+                        written[count++] = i;
+                    }
+                }
+            }
+            if (count == 0 || editor.commit()) {
+                return;
+            }
+
+            Log.e(TAG, "Could not save " + count + " packages, retrying later");
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    mDirty[written[i]] = true;
+                }
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mHandler.postDelayed(mWriteRunnable, STATS_DELAY);
+        }
+    }
+
+    public synchronized boolean isSeen(String pkg) {
+        return mIndex.containsKey(pkg);
+    }
+
+    public synchronized int getCount(String pkg) {
+        Integer slot = mIndex.get(pkg);
+        return slot != null ? mCounts[slot] : 0;
+    }
+
+    /**
+     * @return wall clock time of the last notification, 0 if unknown
+     */
+    public synchronized long getLastSeen(String pkg) {
+        Integer slot = mIndex.get(pkg);
+        return slot != null ? mLastSeen[slot] : 0;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import com.cyanogenmod.cmparts.activities.CPUActivity;
+import com.cyanogenmod.cmparts.activities.PerformanceSettingsActivity;
+
+import android.provider.Settings;
+import android.server.PowerSaverService;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A named set of values across preferences, system properties, settings
+ * and sysfs which {@link PresetEngine} applies in one pass.
+ *
+ * Entries belong to a group, such as "ksm". A group is applied as a whole
+ * or, if one of its nodes doesn't exist on the device, skipped as a whole,
+ * so a preference never records a value its node didn't get. Within a
+ * preset entries are applied in order.
+ *
+ * Presets are stored as text, a header line followed by one tab separated
+ * line per entry: group, target, key, value. Files are written to the
+ * sdcard, which anyone can write to, so a file may only set what the
+ * built-in presets set, to values the settings themselves offer.
+ */
+public class PerformancePreset {
+
+    public static final int TARGET_PREF = 0;
+    public static final int TARGET_PREF_BOOLEAN = 1;
+    public static final int TARGET_PROP = 2;
+    public static final int TARGET_SYSTEM = 3;
+    public static final int TARGET_SECURE = 4;
+    public static final int TARGET_SYSFS = 5;
+    public static final int TARGET_GOVERNOR = 6;
+
+    private static final String[] TARGET_NAMES = new String[] {
+        "pref", "bool", "prop", "system", "secure", "sysfs", "governor"
+    };
+
+    public static final String FILE_HEADER = "cmparts-preset";
+    public static final int FILE_VERSION = 1;
+    public static final String FILE_SUFFIX = ".preset";
+
+    /* Ranges the lists in the performance settings span */
+    private static final int KSM_SLEEP_MIN = 500;
+    private static final int KSM_SLEEP_MAX = 4000;
+    private static final int KSM_SCAN_MIN = 64;
+    private static final int KSM_SCAN_MAX = 512;
+    private static final int READ_AHEAD_MIN = 128;
+    private static final int READ_AHEAD_MAX = 8192;
+
+    private static final Pattern GOVERNOR_NAME = Pattern.compile("[a-z0-9_]{1,15}");
+
+    private static Set<String> sAllowed;
+
+    public static class Entry {
+        public final String group;
+        public final int target;
+        public final String key;
+        public final String value;
+
+        Entry(String group, int target, String key, String value) {
+            this.group = group;
+            this.target = target;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return group + "/" + TARGET_NAMES[target] + ":" + key + "=" + value;
+        }
+    }
+
+    private final String mName;
+    private final List<Entry> mEntries = new ArrayList<Entry>();
+
+    public PerformancePreset(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public List<Entry> getEntries() {
+        return Collections.unmodifiableList(mEntries);
+    }
+
+    public PerformancePreset add(String group, int target, String key, String value) {
+        if (target < 0 || target >= TARGET_NAMES.length) {
+            throw new IllegalArgumentException("Unknown target " + target);
+        }
+        checkField(group);
+        checkField(key);
+        checkField(value);
+        mEntries.add(new Entry(group, target, key, value));
+        return this;
+    }
+
+    private static void checkField(String field) {
+        if (field == null || field.indexOf('\t') >= 0 || field.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Bad preset field " + field);
+        }
+    }
+
+    public static PerformancePreset[] getBuiltIns() {
+        return new PerformancePreset[] {
+            maxThroughput(), balanced(), deepBattery()
+        };
+    }
+
+    public static PerformancePreset maxThroughput() {
+        PerformancePreset preset = new PerformancePreset("Max throughput");
+        addGovernor(preset, "performance");
+        addKSM(preset, false, PerformanceSettingsActivity.KSM_SLEEP_PREF_DEFAULT,
+                PerformanceSettingsActivity.KSM_SCAN_PREF_DEFAULT);
+        addReadAhead(preset, "4096");
+        addPowerSaver(preset, false);
+        return preset;
+    }
+
+    public static PerformancePreset balanced() {
+        PerformancePreset preset = new PerformancePreset("Balanced");
+        addGovernor(preset, "ondemand");
+        addKSM(preset, false, PerformanceSettingsActivity.KSM_SLEEP_PREF_DEFAULT,
+                PerformanceSettingsActivity.KSM_SCAN_PREF_DEFAULT);
+        addReadAhead(preset, PerformanceSettingsActivity.SDCARD_PREF_DEFAULT);
+        addPowerSaver(preset, false);
+        return preset;
+    }
+
+    public static PerformancePreset deepBattery() {
+        PerformancePreset preset = new PerformancePreset("Deep battery");
+        addGovernor(preset, "conservative");
+        addKSM(preset, false, PerformanceSettingsActivity.KSM_SLEEP_PREF_DEFAULT,
+                PerformanceSettingsActivity.KSM_SCAN_PREF_DEFAULT);
+        addReadAhead(preset, "512");
+        addPowerSaver(preset, true);
+        return preset;
+    }
+
+    private static void addGovernor(PerformancePreset preset, String governor) {
+        preset.add("cpu.governor", TARGET_GOVERNOR, CPUPolicyEngine.GOVERNOR, governor);
+        preset.add("cpu.governor", TARGET_PREF, CPUActivity.GOV_PREF, governor);
+    }
+
+    /* Rates first, merging starts or stops last */
+    private static void addKSM(PerformancePreset preset, boolean enabled, String sleep,
+            String scan) {
+        preset.add("ksm", TARGET_SYSFS, PerformanceSettingsActivity.KSM_SLEEP_RUN_FILE, sleep);
+        preset.add("ksm", TARGET_PREF, PerformanceSettingsActivity.KSM_SLEEP_PREF, sleep);
+        preset.add("ksm", TARGET_PROP, PerformanceSettingsActivity.KSM_SLEEP_PROP, sleep);
+        preset.add("ksm", TARGET_SYSFS, PerformanceSettingsActivity.KSM_SCAN_RUN_FILE, scan);
+        preset.add("ksm", TARGET_PREF, PerformanceSettingsActivity.KSM_SCAN_PREF, scan);
+        preset.add("ksm", TARGET_PROP, PerformanceSettingsActivity.KSM_SCAN_PROP, scan);
+        preset.add("ksm", TARGET_SYSFS, PerformanceSettingsActivity.KSM_RUN_FILE,
+                enabled ? PerformanceSettingsActivity.KSM_PREF_ENABLED
+                        : PerformanceSettingsActivity.KSM_PREF_DISABLED);
+        preset.add("ksm", TARGET_PREF_BOOLEAN, PerformanceSettingsActivity.KSM_PREF,
+                String.valueOf(enabled));
+    }
+
+    private static void addReadAhead(PerformancePreset preset, String kb) {
+        preset.add("readahead", TARGET_SYSFS, PerformanceSettingsActivity.SDCARD_RUN_FILE, kb);
+        preset.add("readahead", TARGET_PREF, PerformanceSettingsActivity.SDCARD_PREF, kb);
+        preset.add("readahead", TARGET_PROP, PerformanceSettingsActivity.SDCARD_PROP, kb);
+    }
+
+    private static void addPowerSaver(PerformancePreset preset, boolean enabled) {
+        preset.add("powersaver", TARGET_SECURE, Settings.Secure.POWER_SAVER_MODE,
+                String.valueOf(enabled ? PowerSaverService.POWER_SAVER_MODE_ON
+                        : PowerSaverService.POWER_SAVER_MODE_OFF));
+    }
+
+    /**
+     * @return a copy without the groups which have an entry a preset file
+     *         may not hold, e.g. a kernel default outside the offered
+     *         range, so it can be read back with {@link #decode(String)}
+     */
+    public PerformancePreset getImportable() {
+        Set<String> rejected = new HashSet<String>();
+        for (Entry entry : mEntries) {
+            if (!isAllowed(entry)) {
+                rejected.add(entry.group);
+            }
+        }
+        PerformancePreset preset = new PerformancePreset(mName);
+        for (Entry entry : mEntries) {
+            if (!rejected.contains(entry.group)) {
+                preset.mEntries.add(entry);
+            }
+        }
+        return preset;
+    }
+
+    public String encode() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(FILE_HEADER).append('\t').append(FILE_VERSION).append('\t')
+                .append(mName).append('\n');
+        for (Entry entry : mEntries) {
+            sb.append(entry.group).append('\t').append(TARGET_NAMES[entry.target]).append('\t')
+                    .append(entry.key).append('\t').append(entry.value).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @throws IOException if the text isn't a preset of a known version
+     */
+    public static PerformancePreset decode(String text) throws IOException {
+        String[] lines = text.split("\n");
+        String[] header = lines[0].split("\t", -1);
+        if (header.length != 3 || !FILE_HEADER.equals(header[0])) {
+            throw new IOException("Not a preset");
+        }
+        if (!String.valueOf(FILE_VERSION).equals(header[1])) {
+            throw new IOException("Unsupported preset version " + header[1]);
+        }
+
+        PerformancePreset preset = new PerformancePreset(header[2]);
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].length() == 0) {
+                continue;
+            }
+            String[] fields = lines[i].split("\t", -1);
+            int target = fields.length == 4 ? indexOf(TARGET_NAMES, fields[1]) : -1;
+            if (target < 0) {
+                throw new IOException("Bad preset line " + (i + 1) + ": " + lines[i]);
+            }
+            preset.add(fields[0], target, fields[2], fields[3]);
+            Entry entry = preset.mEntries.get(preset.mEntries.size() - 1);
+            if (!isAllowed(entry)) {
+                throw new IOException("Entry not allowed in a preset, line " + (i + 1) + ": "
+                        + entry);
+            }
+        }
+        return preset;
+    }
+
+    /**
+     * @return whether a built-in preset has an entry for the same group,
+     *         target and key, and the value is one the key takes
+     */
+    static synchronized boolean isAllowed(Entry entry) {
+        if (sAllowed == null) {
+            sAllowed = new HashSet<String>();
+            for (PerformancePreset preset : getBuiltIns()) {
+                for (Entry builtIn : preset.mEntries) {
+                    sAllowed.add(getSlot(builtIn));
+                }
+            }
+        }
+        return sAllowed.contains(getSlot(entry)) && isValidValue(entry);
+    }
+
+    private static String getSlot(Entry entry) {
+        return entry.group + "\t" + entry.target + "\t" + entry.key;
+    }
+
+    private static boolean isValidValue(Entry entry) {
+        String key = entry.key;
+        String value = entry.value;
+        if (entry.target == TARGET_GOVERNOR || key.equals(CPUActivity.GOV_PREF)) {
+            return GOVERNOR_NAME.matcher(value).matches();
+        }
+        if (entry.target == TARGET_PREF_BOOLEAN) {
+            return value.equals("true") || value.equals("false");
+        }
+        if (key.equals(PerformanceSettingsActivity.KSM_RUN_FILE)) {
+            return value.equals(PerformanceSettingsActivity.KSM_PREF_ENABLED)
+                    || value.equals(PerformanceSettingsActivity.KSM_PREF_DISABLED);
+        }
+        if (key.equals(PerformanceSettingsActivity.KSM_SLEEP_RUN_FILE)
+                || key.equals(PerformanceSettingsActivity.KSM_SLEEP_PREF)
+                || key.equals(PerformanceSettingsActivity.KSM_SLEEP_PROP)) {
+            return isInRange(value, KSM_SLEEP_MIN, KSM_SLEEP_MAX);
+        }
+        if (key.equals(PerformanceSettingsActivity.KSM_SCAN_RUN_FILE)
+                || key.equals(PerformanceSettingsActivity.KSM_SCAN_PREF)
+                || key.equals(PerformanceSettingsActivity.KSM_SCAN_PROP)) {
+            return isInRange(value, KSM_SCAN_MIN, KSM_SCAN_MAX);
+        }
+        if (key.equals(PerformanceSettingsActivity.SDCARD_RUN_FILE)
+                || key.equals(PerformanceSettingsActivity.SDCARD_PREF)
+                || key.equals(PerformanceSettingsActivity.SDCARD_PROP)) {
+            return isInRange(value, READ_AHEAD_MIN, READ_AHEAD_MAX);
+        }
+        if (key.equals(Settings.Secure.POWER_SAVER_MODE)) {
+            return value.equals(String.valueOf(PowerSaverService.POWER_SAVER_MODE_ON))
+                    || value.equals(String.valueOf(PowerSaverService.POWER_SAVER_MODE_OFF));
+        }
+        return false;
+    }
+
+    private static boolean isInRange(String value, int min, int max) {
+        try {
+            int number = Integer.parseInt(value);
+            return number >= min && number <= max;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static int indexOf(String[] array, String value) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i].equals(value)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void save(File file) throws IOException {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Can't create " + dir);
+        }
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(encode());
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static PerformancePreset load(File file) throws IOException {
+        StringBuilder text = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file), 1024);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                text.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        return decode(text.toString());
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import com.cyanogenmod.cmparts.activities.PerformanceSettingsActivity;
+import com.cyanogenmod.cmparts.utils.PerformancePreset.Entry;
+
+import java.io.IOException;
+
+/**
+ * Encodes and decodes {@link PerformancePreset}s: the built-ins and values
+ * captured from a kernel with its own KSM defaults must read back as they
+ * were exported, files setting anything else must be rejected.
+ */
+public class PerformancePresetCheck extends SelfCheck {
+
+    public PerformancePresetCheck() {
+        super("PerformancePresetCheck");
+    }
+
+    @Override
+    protected void runChecks() {
+        for (PerformancePreset preset : PerformancePreset.getBuiltIns()) {
+            check("built-in " + preset.getName(), roundTrip(preset));
+        }
+
+        /* Captured as PresetEngine does, with the kernel's KSM defaults */
+        PerformancePreset captured = new PerformancePreset("Current");
+        for (Entry entry : PerformancePreset.balanced().getEntries()) {
+            String value = entry.value;
+            if (entry.key.equals(PerformanceSettingsActivity.KSM_SLEEP_RUN_FILE)) {
+                value = "20";
+            } else if (entry.key.equals(PerformanceSettingsActivity.KSM_SCAN_RUN_FILE)) {
+                value = "100";
+            }
+            captured.add(entry.group, entry.target, entry.key, value);
+        }
+        PerformancePreset exported = captured.getImportable();
+        check("captured round trip", roundTrip(exported));
+        boolean ksm = false;
+        boolean readAhead = false;
+        for (Entry entry : exported.getEntries()) {
+            ksm |= entry.group.equals("ksm");
+            readAhead |= entry.group.equals("readahead");
+        }
+        check("out of range group left out", !ksm);
+        check("other groups kept", readAhead);
+
+        String header = PerformancePreset.FILE_HEADER + "\t" + PerformancePreset.FILE_VERSION
+                + "\tImported\n";
+        check("unknown node", !decodes(header + "ksm\tsysfs\t/data/local/node\t1\n"));
+        check("other group", !decodes(header + "ksm\tprop\t"
+                + PerformanceSettingsActivity.SDCARD_PROP + "\t1024\n"));
+        check("out of range", !decodes(header + "readahead\tprop\t"
+                + PerformanceSettingsActivity.SDCARD_PROP + "\t64\n"));
+        check("in range", decodes(header + "readahead\tprop\t"
+                + PerformanceSettingsActivity.SDCARD_PROP + "\t1024\n"));
+    }
+
+    private static boolean roundTrip(PerformancePreset preset) {
+        try {
+            String encoded = preset.encode();
+            return PerformancePreset.decode(encoded).encode().equals(encoded);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean decodes(String text) {
+        try {
+            PerformancePreset.decode(text);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import com.cyanogenmod.cmparts.utils.PerformancePreset.Entry;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemProperties;
+import android.preference.PreferenceManager;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Applies a {@link PerformancePreset} as one unit.
+ *
+ * All entries are read first and only those which differ from the current
+ * state are written. If a write fails, everything written before it is
+ * set back to what it was, in reverse order. Nodes which can't be read
+ * can't be set back either; they are logged. Must not be called on the
+ * main thread, sysfs writes block.
+ */
+public class PresetEngine {
+
+    private static final String TAG = "PresetEngine";
+
+    public static final String LAST_PRESET_PREF = "performance_preset_last";
+
+    public static class Result {
+        public final String name;
+        public final int changed;
+        public final int unchanged;
+        public final int skipped;
+        /* The entry whose write failed, null on success */
+        public final Entry failed;
+
+        Result(String name, int changed, int unchanged, int skipped, Entry failed) {
+            this.name = name;
+            this.changed = changed;
+            this.unchanged = unchanged;
+            this.skipped = skipped;
+            this.failed = failed;
+        }
+
+        public boolean isSuccess() {
+            return failed == null;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final ContentResolver mResolver;
+    private final SysfsWriter mWriter;
+    private final CPUPolicyEngine mCPU;
+
+    public PresetEngine(Context ctx) {
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(ctx);
+        mResolver = ctx.getContentResolver();
+        mWriter = SysfsWriter.getInstance();
+        mCPU = CPUPolicyEngine.getInstance();
+    }
+
+    public synchronized Result apply(PerformancePreset preset) {
+        Set<String> unsupported = new HashSet<String>();
+        for (Entry entry : preset.getEntries()) {
+            if (!isSupported(entry)) {
+                unsupported.add(entry.group);
+            }
+        }
+
+        /* Diff against the current state */
+        List<Entry> changes = new ArrayList<Entry>();
+        List<String> previous = new ArrayList<String>();
+        int unchanged = 0;
+        int skipped = 0;
+        for (Entry entry : preset.getEntries()) {
+            if (unsupported.contains(entry.group)) {
+                skipped++;
+                continue;
+            }
+            String current = read(entry);
+            if (isCurrent(entry, current)) {
+                unchanged++;
+            } else {
+                changes.add(entry);
+                previous.add(current);
+            }
+        }
+
+        for (int i = 0; i < changes.size(); i++) {
+            Entry entry = changes.get(i);
+            if (!write(entry, entry.value)) {
+                Log.e(TAG, "Preset " + preset.getName() + " failed at " + entry
+                        + ", rolling back " + i + " changes");
+                /* The failed write may have gone through partly, undo it too */
+                rollback(changes, previous, i);
+                return new Result(preset.getName(), 0, unchanged, skipped, entry);
+            }
+        }
+
+        mPrefs.edit().putString(LAST_PRESET_PREF, preset.getName()).commit();
+        Log.i(TAG, "Applied preset " + preset.getName() + ": " + changes.size() + " changed, "
+                + unchanged + " unchanged, " + skipped + " skipped");
+        return new Result(preset.getName(), changes.size(), unchanged, skipped, null);
+    }
+
+    private void rollback(List<Entry> changes, List<String> previous, int last) {
+        for (int i = last; i >= 0; i--) {
+            Entry entry = changes.get(i);
+            String value = previous.get(i);
+            if (value == null && isNode(entry)) {
+                Log.w(TAG, "Can't restore unreadable " + entry.key);
+            } else if (!write(entry, value)) {
+                Log.e(TAG, "Could not restore " + entry.key + " to " + value);
+            }
+        }
+    }
+
+    /**
+     * Reads the current values of a preset's entries into a new preset,
+     * leaving out those which aren't set or can't be read, and groups with
+     * a value a preset file may not hold.
+     */
+    public synchronized PerformancePreset capture(String name, PerformancePreset template) {
+        PerformancePreset preset = new PerformancePreset(name);
+        for (Entry entry : template.getEntries()) {
+            String current = read(entry);
+            /* Unset properties read as empty */
+            if (current != null && current.length() > 0) {
+                preset.add(entry.group, entry.target, entry.key, current);
+            }
+        }
+        return preset.getImportable();
+    }
+
+    /**
+     * @return the name of the last preset applied successfully, or null
+     */
+    public String getLastPreset() {
+        return mPrefs.getString(LAST_PRESET_PREF, null);
+    }
+
+    private static boolean isNode(Entry entry) {
+        return entry.target == PerformancePreset.TARGET_SYSFS
+                || entry.target == PerformancePreset.TARGET_GOVERNOR;
+    }
+
+    private boolean isSupported(Entry entry) {
+        switch (entry.target) {
+            case PerformancePreset.TARGET_SYSFS:
+                return new File(entry.key).exists();
+            case PerformancePreset.TARGET_GOVERNOR:
+                return Arrays.asList(mCPU.getAvailableGovernors()).contains(entry.value);
+            default:
+                return true;
+        }
+    }
+
+    private boolean isCurrent(Entry entry, String current) {
+        if (isNode(entry)) {
+            return SysfsWriter.matches(current, entry.value);
+        }
+        return entry.value.equals(current);
+    }
+
+    private String read(Entry entry) {
+        switch (entry.target) {
+            case PerformancePreset.TARGET_PREF:
+                return mPrefs.getString(entry.key, null);
+            case PerformancePreset.TARGET_PREF_BOOLEAN:
+                return mPrefs.contains(entry.key)
+                        ? String.valueOf(mPrefs.getBoolean(entry.key, false)) : null;
+            case PerformancePreset.TARGET_PROP:
+                return SystemProperties.get(entry.key);
+            case PerformancePreset.TARGET_SYSTEM:
+                return Settings.System.getString(mResolver, entry.key);
+            case PerformancePreset.TARGET_SECURE:
+                return Settings.Secure.getString(mResolver, entry.key);
+            case PerformancePreset.TARGET_SYSFS:
+                return SysfsWriter.readLine(new File(entry.key));
+            case PerformancePreset.TARGET_GOVERNOR:
+                return mCPU.getGovernor();
+            default:
+                throw new IllegalArgumentException("Unknown target " + entry.target);
+        }
+    }
+
+    /**
+     * A null value removes preferences and settings and clears properties,
+     * which is how rollback restores values which weren't set before.
+     */
+    private boolean write(Entry entry, String value) {
+        switch (entry.target) {
+            case PerformancePreset.TARGET_PREF:
+                return (value == null ? mPrefs.edit().remove(entry.key)
+                        : mPrefs.edit().putString(entry.key, value)).commit();
+            case PerformancePreset.TARGET_PREF_BOOLEAN:
+                return (value == null ? mPrefs.edit().remove(entry.key)
+                        : mPrefs.edit().putBoolean(entry.key, Boolean.parseBoolean(value))).commit();
+            case PerformancePreset.TARGET_PROP:
+                String prop = value == null ? "" : value;
+                SystemProperties.set(entry.key, prop);
+                return prop.equals(SystemProperties.get(entry.key));
+            case PerformancePreset.TARGET_SYSTEM:
+                if (value == null) {
+                    mResolver.delete(Settings.System.getUriFor(entry.key), null, null);
+                    return true;
+                }
+                return Settings.System.putString(mResolver, entry.key, value);
+            case PerformancePreset.TARGET_SECURE:
+                if (value == null) {
+                    mResolver.delete(Settings.Secure.getUriFor(entry.key), null, null);
+                    return true;
+                }
+                return Settings.Secure.putString(mResolver, entry.key, value);
+            case PerformancePreset.TARGET_SYSFS:
+                return mWriter.writeSync(entry.key, value);
+            case PerformancePreset.TARGET_GOVERNOR:
+                return mCPU.setGovernor(value);
+            default:
+                throw new IllegalArgumentException("Unknown target " + entry.target);
+        }
+    }
+}
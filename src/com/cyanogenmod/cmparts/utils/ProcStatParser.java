@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads selected counters from "name value" style files such as
+ * /proc/meminfo and /proc/vmstat.
+ *
+ * The file is kept open and re-read into the same buffer, and names are
+ * matched byte by byte, so sampling allocates nothing. A key ending in '*'
+ * sums all counters starting with it, e.g. "pgscan*" covers the per zone
+ * pgscan_kswapd_* and pgscan_direct_* lines.
+ */
+public class ProcStatParser {
+
+    private final String mPath;
+    private final byte[][] mKeys;
+    private final boolean[] mPrefix;
+    private byte[] mBuffer;
+    private RandomAccessFile mFile;
+
+    public ProcStatParser(String path, String[] keys) {
+        mPath = path;
+        mKeys = new byte[keys.length][];
+        mPrefix = new boolean[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            String key = keys[i];
+            mPrefix[i] = key.endsWith("*");
+            mKeys[i] = (mPrefix[i] ? key.substring(0, key.length() - 1) : key).getBytes();
+        }
+        mBuffer = new byte[4096];
+    }
+
+    /**
+     * Reads the file and stores the counter of keys[i] in values[i]. Keys
+     * missing from the file are 0.
+     */
+    public synchronized boolean read(long[] values) {
+        try {
+            if (mFile == null) {
+                mFile = new RandomAccessFile(mPath, "r");
+            }
+            mFile.seek(0);
+            int length = 0;
+            int count;
+            while ((count = mFile.read(mBuffer, length, mBuffer.length - length)) > 0) {
+                length += count;
+                if (length == mBuffer.length) {
+                    /* Only happens until the buffer fits the file */
+                    byte[] buffer = new byte[mBuffer.length * 2];
+                    System.arraycopy(mBuffer, 0, buffer, 0, length);
+                    mBuffer = buffer;
+                }
+            }
+            parse(mBuffer, length, values);
+            return true;
+        } catch (IOException e) {
+            close();
+            return false;
+        }
+    }
+
+    public synchronized void close() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+            }
+            mFile = null;
+        }
+    }
+
+    /**
+     * Parses file contents, e.g. a recorded snapshot.
+     */
+    public void parse(byte[] data, int length, long[] values) {
+        for (int i = 0; i < mKeys.length; i++) {
+            values[i] = 0;
+        }
+        int pos = 0;
+        while (pos < length) {
+            int nameStart = pos;
+            while (pos < length && data[pos] != ':' && data[pos] != ' ' && data[pos] != '\n') {
+                pos++;
+            }
+            int nameEnd = pos;
+            while (pos < length && (data[pos] == ':' || data[pos] == ' ' || data[pos] == '\t')) {
+                pos++;
+            }
+            long value = 0;
+            while (pos < length && data[pos] >= '0' && data[pos] <= '9') {
+                value = value * 10 + (data[pos] - '0');
+                pos++;
+            }
+            while (pos < length && data[pos] != '\n') {
+                pos++;
+            }
+            pos++;
+
+            for (int i = 0; i < mKeys.length; i++) {
+                if (matches(data, nameStart, nameEnd, i)) {
+                    values[i] += value;
+                }
+            }
+        }
+    }
+
+    private boolean matches(byte[] data, int start, int end, int index) {
+        byte[] key = mKeys[index];
+        int length = end - start;
+        if (length < key.length || (!mPrefix[index] && length != key.length)) {
+            return false;
+        }
+        for (int i = 0; i < key.length; i++) {
+            if (data[start + i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs restore steps in dependency order and reports how each went.
+ *
+ * A step runs after the steps it names as dependencies, whether those
+ * succeeded or not; a dependency which isn't part of the pipeline is
+ * ignored. Steps keep their insertion order otherwise. Each step is timed
+ * and the report of the last run is kept, so it can be looked at later.
+ */
+public class RestorePipeline {
+
+    private static final String TAG = "RestorePipeline";
+
+    private static final String PREFS_NAME = "boot_report";
+    private static final String KEY_STEPS = "steps";
+    private static final String KEY_TIME = "time";
+
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_FAILED = 1;
+    public static final int STATUS_SKIPPED = 2;
+
+    public static abstract class Step {
+        final String mName;
+        final String[] mAfter;
+
+        /**
+         * @param after names of steps which have to run first
+         */
+        public Step(String name, String... after) {
+            mName = name;
+            mAfter = after;
+        }
+
+        /**
+         * @return one of the STATUS_* constants
+         */
+        public abstract int run();
+    }
+
+    public static class Entry {
+        public final String name;
+        public final int status;
+        public final long millis;
+
+        public Entry(String name, int status, long millis) {
+            this.name = name;
+            this.status = status;
+            this.millis = millis;
+        }
+    }
+
+    private final List<Step> mSteps = new ArrayList<Step>();
+
+    public RestorePipeline add(Step step) {
+        mSteps.add(step);
+        return this;
+    }
+
+    /**
+     * @return the steps in the order they will run
+     * @throws IllegalStateException on circular dependencies
+     */
+    public List<Step> getOrder() {
+        Map<String, Step> byName = new HashMap<String, Step>();
+        for (Step step : mSteps) {
+            byName.put(step.mName, step);
+        }
+        List<Step> order = new ArrayList<Step>(mSteps.size());
+        Set<String> done = new HashSet<String>();
+        Set<String> visiting = new HashSet<String>();
+        for (Step step : mSteps) {
+            visit(step, byName, done, visiting, order);
+        }
+        return order;
+    }
+
+    private static void visit(Step step, Map<String, Step> byName, Set<String> done,
+            Set<String> visiting, List<Step> order) {
+        if (done.contains(step.mName)) {
+            return;
+        }
+        if (!visiting.add(step.mName)) {
+            throw new IllegalStateException("Circular dependency at " + step.mName);
+        }
+        for (String after : step.mAfter) {
+            Step dependency = byName.get(after);
+            if (dependency != null) {
+                visit(dependency, byName, done, visiting, order);
+            }
+        }
+        visiting.remove(step.mName);
+        done.add(step.mName);
+        order.add(step);
+    }
+
+    /**
+     * Runs all steps on the calling thread. A step throwing counts as
+     * failed and doesn't stop the others.
+     */
+    public List<Entry> run() {
+        List<Entry> report = new ArrayList<Entry>();
+        for (Step step : getOrder()) {
+            long start = SystemClock.elapsedRealtime();
+            int status;
+            try {
+                status = step.run();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Step " + step.mName + " failed", e);
+                status = STATUS_FAILED;
+            }
+            long millis = SystemClock.elapsedRealtime() - start;
+            report.add(new Entry(step.mName, status, millis));
+            Log.d(TAG, step.mName + ": " + statusName(status) + " in " + millis + "ms");
+        }
+        return report;
+    }
+
+    public static String statusName(int status) {
+        switch (status) {
+            case STATUS_OK:
+                return "ok";
+            case STATUS_FAILED:
+                return "failed";
+            default:
+                return "skipped";
+        }
+    }
+
+    public static void saveReport(Context ctx, List<Entry> report) {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : report) {
+            sb.append(entry.name).append(',').append(entry.status).append(',')
+                    .append(entry.millis).append('\n');
+        }
+        getPrefs(ctx).edit()
+                .putString(KEY_STEPS, sb.toString())
+                .putLong(KEY_TIME, System.currentTimeMillis())
+                .commit();
+    }
+
+    /**
+     * @return the report of the last run, empty if there was none
+     */
+    public static List<Entry> loadReport(Context ctx) {
+        List<Entry> report = new ArrayList<Entry>();
+        String steps = getPrefs(ctx).getString(KEY_STEPS, "");
+        for (String line : steps.split("\n")) {
+            String[] parts = line.split(",");
+            if (parts.length != 3) {
+                continue;
+            }
+            try {
+                report.add(new Entry(parts[0], Integer.parseInt(parts[1]),
+                        Long.parseLong(parts[2])));
+            } catch (NumberFormatException e) {
+            }
+        }
+        return report;
+    }
+
+    /**
+     * @return wall clock time of the last run, 0 if there was none
+     */
+    public static long getReportTime(Context ctx) {
+        return getPrefs(ctx).getLong(KEY_TIME, 0);
+    }
+
+    private static SharedPreferences getPrefs(Context ctx) {
+        return ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Base of the checks SettingsBenchmarkReceiver runs. A check reports each
+ * outcome through {@link #check(String, boolean)} from {@link #runChecks()},
+ * failures are logged under its tag along with a summary at the end.
+ *
+ * Checks which need files get a directory of their own, which is removed
+ * with everything in it once they ran.
+ */
+public abstract class SelfCheck {
+
+    private final String mTag;
+    private final File mDir;
+
+    private int mFailed;
+
+    protected SelfCheck(String tag) {
+        this(tag, null);
+    }
+
+    /**
+     * @param dir directory for the check's files, null if it needs none
+     */
+    protected SelfCheck(String tag, File dir) {
+        mTag = tag;
+        mDir = dir;
+    }
+
+    /**
+     * @return the number of failed checks
+     */
+    public final int run() {
+        mFailed = 0;
+        try {
+            runChecks();
+        } catch (IOException e) {
+            Log.e(mTag, "Unable to write the check's files", e);
+            mFailed++;
+        } finally {
+            if (mDir != null) {
+                delete(mDir);
+            }
+        }
+        Log.i(mTag, mFailed == 0 ? "All checks passed" : mFailed + " checks failed");
+        return mFailed;
+    }
+
+    protected abstract void runChecks() throws IOException;
+
+    protected final File getDir() {
+        return mDir;
+    }
+
+    protected final void check(String name, boolean passed) {
+        if (!passed) {
+            mFailed++;
+            Log.e(mTag, "Check failed: " + name);
+        }
+    }
+
+    /**
+     * Writes a value and a newline to a file, creating its directory.
+     */
+    protected static void write(File dir, String name, String value) throws IOException {
+        dir.mkdirs();
+        FileWriter writer = new FileWriter(new File(dir, name));
+        try {
+            writer.write(value + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    protected static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
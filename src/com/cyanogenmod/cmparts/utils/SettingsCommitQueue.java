@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.RemoteException;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects a screen's writes to Settings.System or Settings.Secure and
+ * commits them in the background instead of on the UI thread.
+ *
+ * Writes to the same key are coalesced, only the last value is written.
+ * Everything pending is committed COMMIT_DELAY after the last write, or
+ * right away on commit(), in one applyBatch call. LIGHTS_CHANGED is bumped
+ * at most once per batch, after the values it announces. Until a value is
+ * written, only the getters here return it, so a screen reading its
+ * values back, e.g. in onResume, must use them.
+ */
+public class SettingsCommitQueue {
+
+    private static final String TAG = "SettingsCommitQueue";
+
+    public static final long COMMIT_DELAY = 500;
+
+    private static Handler sHandler;
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+
+    private final LinkedHashMap<String, String> mPending = new LinkedHashMap<String, String>();
+    /* Values taken from mPending by a commit still being written */
+    private Map<String, String> mCommitting;
+    private boolean mLightsChanged;
+    private int mWrites;
+
+    private final Runnable mCommitRunnable = new Runnable() {
+        public void run() {
+            commitPending();
+        }
+    };
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    public SettingsCommitQueue(ContentResolver resolver, Uri uri) {
+        mResolver = resolver;
+        mUri = uri;
+    }
+
+    public static SettingsCommitQueue system(ContentResolver resolver) {
+        return new SettingsCommitQueue(resolver, Settings.System.CONTENT_URI);
+    }
+
+    public static SettingsCommitQueue secure(ContentResolver resolver) {
+        return new SettingsCommitQueue(resolver, Settings.Secure.CONTENT_URI);
+    }
+
+    public void putInt(String key, int value) {
+        putString(key, String.valueOf(value));
+    }
+
+    public void putLong(String key, long value) {
+        putString(key, String.valueOf(value));
+    }
+
+    public void putString(String key, String value) {
+        synchronized (this) {
+            mPending.put(key, value);
+            mWrites++;
+        }
+        schedule();
+    }
+
+    /**
+     * @return the value last put for the key, whether or not it has been
+     *         written yet, or the stored value
+     */
+    public String getString(String key) {
+        synchronized (this) {
+            if (mPending.containsKey(key)) {
+                return mPending.get(key);
+            }
+            if (mCommitting != null && mCommitting.containsKey(key)) {
+                return mCommitting.get(key);
+            }
+        }
+        if (Settings.Secure.CONTENT_URI.equals(mUri)) {
+            return Settings.Secure.getString(mResolver, key);
+        }
+        return Settings.System.getString(mResolver, key);
+    }
+
+    /**
+     * Like {@link #getString(String)}, with a default for a value which
+     * isn't set or doesn't parse.
+     */
+    public int getInt(String key, int def) {
+        String value = getString(key);
+        try {
+            return value != null ? Integer.parseInt(value) : def;
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Makes the system reload the light settings once the batch is written.
+     */
+    public void bumpLightsChanged() {
+        synchronized (this) {
+            mLightsChanged = true;
+        }
+        schedule();
+    }
+
+    /**
+     * Commits everything pending without waiting for COMMIT_DELAY, still in
+     * the background. Screens call this when they pause.
+     */
+    public void commit() {
+        Handler handler = getHandler();
+        handler.removeCallbacks(mCommitRunnable);
+        handler.post(mCommitRunnable);
+    }
+
+    private void schedule() {
+        Handler handler = getHandler();
+        handler.removeCallbacks(mCommitRunnable);
+        handler.postDelayed(mCommitRunnable, COMMIT_DELAY);
+    }
+
+    private void commitPending() {
+        Map<String, String> values;
+        boolean lightsChanged;
+        int writes;
+        synchronized (this) {
+            if (mPending.isEmpty() && !mLightsChanged) {
+                return;
+            }
+            values = new LinkedHashMap<String, String>(mPending);
+            lightsChanged = mLightsChanged;
+            writes = mWrites;
+            mCommitting = values;
+            mPending.clear();
+            mLightsChanged = false;
+            mWrites = 0;
+        }
+
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(values.size() + 1);
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            operations.add(newPut(mUri, entry.getKey(), entry.getValue()));
+        }
+        if (lightsChanged) {
+            long tag = Settings.System.getLong(mResolver, Settings.System.LIGHTS_CHANGED, 0) + 1;
+            operations.add(newPut(Settings.System.CONTENT_URI,
+                    Settings.System.LIGHTS_CHANGED, String.valueOf(tag)));
+        }
+
+        try {
+            mResolver.applyBatch(mUri.getAuthority(), operations);
+            Log.d(TAG, "Committed " + operations.size() + " settings for " + writes + " writes");
+        } catch (RemoteException e) {
+            Log.e(TAG, "Failed to commit settings", e);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "Failed to commit settings", e);
+        } finally {
+            synchronized (this) {
+                mCommitting = null;
+            }
+        }
+    }
+
+    /* The settings tables replace rows on a duplicate name */
+    private static ContentProviderOperation newPut(Uri uri, String key, String value) {
+        return ContentProviderOperation.newInsert(uri)
+                .withValue(Settings.NameValueTable.NAME, key)
+                .withValue(Settings.NameValueTable.VALUE, value)
+                .build();
+    }
+}
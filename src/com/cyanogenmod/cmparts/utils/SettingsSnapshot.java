@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.HashMap;
+
+/**
+ * Reads all settings a screen needs with one query instead of one
+ * provider round trip per key, and keeps them in memory.
+ *
+ * The getters behave like the Settings.System ones with a default: a key
+ * which isn't set or doesn't parse returns the default. Values don't
+ * change until load() runs again.
+ */
+public class SettingsSnapshot {
+
+    private static final String TAG = "SettingsSnapshot";
+
+    private static final String[] PROJECTION = new String[] {
+        Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE
+    };
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final String[] mKeys;
+    private final String mSelection;
+
+    private final HashMap<String, String> mValues = new HashMap<String, String>();
+
+    public SettingsSnapshot(ContentResolver resolver, Uri uri, String... keys) {
+        mResolver = resolver;
+        mUri = uri;
+        mKeys = keys;
+
+        StringBuilder selection = new StringBuilder(Settings.NameValueTable.NAME).append(" IN (");
+        for (int i = 0; i < keys.length; i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        mSelection = selection.append(')').toString();
+    }
+
+    public static SettingsSnapshot system(ContentResolver resolver, String... keys) {
+        return new SettingsSnapshot(resolver, Settings.System.CONTENT_URI, keys).load();
+    }
+
+    public static SettingsSnapshot secure(ContentResolver resolver, String... keys) {
+        return new SettingsSnapshot(resolver, Settings.Secure.CONTENT_URI, keys).load();
+    }
+
+    /**
+     * Queries all keys again.
+     */
+    public synchronized SettingsSnapshot load() {
+        mValues.clear();
+        Cursor c = mResolver.query(mUri, PROJECTION, mSelection, mKeys, null);
+        if (c == null) {
+            Log.w(TAG, "Can't read settings from " + mUri);
+            return this;
+        }
+        try {
+            while (c.moveToNext()) {
+                mValues.put(c.getString(0), c.getString(1));
+            }
+        } finally {
+            c.close();
+        }
+        return this;
+    }
+
+    public synchronized boolean has(String key) {
+        return mValues.containsKey(key);
+    }
+
+    public synchronized String getString(String key) {
+        return mValues.get(key);
+    }
+
+    public synchronized int getInt(String key, int def) {
+        String value = mValues.get(key);
+        try {
+            return value != null ? Integer.parseInt(value) : def;
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public synchronized long getLong(String key, long def) {
+        String value = mValues.get(key);
+        try {
+            return value != null ? Long.parseLong(value) : def;
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    public synchronized float getFloat(String key, float def) {
+        String value = mValues.get(key);
+        try {
+            return value != null ? Float.parseFloat(value) : def;
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+}
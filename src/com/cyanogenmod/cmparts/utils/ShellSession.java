@@ -0,0 +1,386 @@
+package com.cyanogenmod.cmparts.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.util.Log;
+
+import com.cyanogenmod.cmparts.utils.CMDProcessor.CommandResult;
+
+/**
+ * A long lived shell process which runs many commands.
+ *
+ * Every command is followed by a marker line on stdout carrying the exit
+ * code and a marker line on stderr, so output of consecutive commands can
+ * be told apart without starting a new shell (and, for su, without a new
+ * permission handshake) per command. The shell is closed after being idle
+ * for a while and restarted on the next command, or when it died.
+ *
+ * A command is sent at most once: if the shell dies after the command was
+ * written, it may have run partly and is not repeated. Commands read
+ * stdin from /dev/null, as the shell's stdin carries the commands. A
+ * command which doesn't finish within its timeout kills the shell. Output
+ * is capped at CMDProcessor.DEFAULT_OUTPUT_LIMIT characters per stream.
+ */
+public class ShellSession {
+
+	private static final String TAG = "ShellSession";
+
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+	public static final long DEFAULT_COMMAND_TIMEOUT = 60000;
+
+	private static final Timer sIdleTimer = new Timer(TAG, true);
+
+	private final String mShell;
+	private final long mIdleTimeout;
+	private final String mMarker;
+
+	private Process mProcess;
+	private OutputStream mStdin;
+	private MarkerReader mStdout;
+	private MarkerReader mStderr;
+	private TimerTask mIdleTask;
+
+	private int mStarts;
+	private long mCommands;
+
+	public ShellSession(final String shell, final long idleTimeout) {
+		mShell = shell;
+		mIdleTimeout = idleTimeout;
+		mMarker = "__CMPARTS_" + Long.toHexString(System.nanoTime()) + "__";
+	}
+
+	public CommandResult run(final String command) {
+		return run(command, DEFAULT_COMMAND_TIMEOUT);
+	}
+
+	/**
+	 * Runs a command in a subshell of the session, so commands which call
+	 * exit or change directory don't affect later ones.
+	 *
+	 * @param timeout milliseconds after which the shell is killed, 0 for none
+	 * @return the result, or null if the command could not be sent to a
+	 *         shell and so didn't run at all
+	 */
+	public synchronized CommandResult run(final String command, final long timeout) {
+		cancelIdleTimer();
+		try {
+			if (!send(command)) {
+				/* A shell which died while idle only shows when writing to it */
+				close();
+				if (!send(command)) {
+					close();
+					return null;
+				}
+			}
+			mCommands++;
+			try {
+				return receive(command, timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+			} catch (final IOException e) {
+				Log.w(TAG, "Shell " + mShell + " died running a command: " + e.getMessage());
+				close();
+				return new CommandResult(null, null, null);
+			}
+		} finally {
+			scheduleIdleTimer();
+		}
+	}
+
+	/**
+	 * @return how often the shell process had to be started
+	 */
+	public synchronized int getStartCount() {
+		return mStarts;
+	}
+
+	public synchronized long getCommandCount() {
+		return mCommands;
+	}
+
+	public synchronized boolean isAlive() {
+		if (mProcess == null) {
+			return false;
+		}
+		try {
+			mProcess.exitValue();
+			return false;
+		} catch (final IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	public synchronized void close() {
+		cancelIdleTimer();
+		if (mProcess == null) {
+			return;
+		}
+		try {
+			mStdin.write("exit\n".getBytes());
+			mStdin.flush();
+			mStdin.close();
+		} catch (final IOException e) {
+		}
+		mProcess.destroy();
+		mProcess = null;
+		mStdin = null;
+		mStdout = null;
+		mStderr = null;
+	}
+
+	private boolean start() {
+		close();
+		try {
+			mProcess = Runtime.getRuntime().exec(mShell);
+		} catch (final IOException e) {
+			Log.e(TAG, "Unable to start " + mShell + ": " + e.getMessage());
+			return false;
+		}
+		mStdin = mProcess.getOutputStream();
+		mStdout = new MarkerReader(mProcess.getInputStream(), mMarker,
+				CMDProcessor.DEFAULT_OUTPUT_LIMIT, "-stdout");
+		mStderr = new MarkerReader(mProcess.getErrorStream(), mMarker,
+				CMDProcessor.DEFAULT_OUTPUT_LIMIT, "-stderr");
+		mStdout.start();
+		mStderr.start();
+		mStarts++;
+		return true;
+	}
+
+	/**
+	 * Writes the command followed by the markers.
+	 *
+	 * @return false if the shell is gone and nothing could have run
+	 */
+	private boolean send(final String command) {
+		if (!isAlive() && !start()) {
+			return false;
+		}
+		final StringBuilder script = new StringBuilder(command.length() + 112);
+		script.append("(").append(command).append("\n) </dev/null\n");
+		script.append("echo \"").append(mMarker).append(" $?\"\n");
+		script.append("echo \"").append(mMarker).append("\" >&2\n");
+		try {
+			mStdin.write(script.toString().getBytes());
+			mStdin.flush();
+			return true;
+		} catch (final IOException e) {
+			Log.w(TAG, "Shell " + mShell + " gone: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private CommandResult receive(final String command, final long deadline) throws IOException {
+		final MarkerReader.Chunk stdout = mStdout.take(deadline);
+		final MarkerReader.Chunk stderr = stdout != null ? mStderr.take(deadline) : null;
+		if (stderr == null) {
+			Log.e(TAG, "Command timed out, killing " + mShell + ": " + command);
+			final String partialOut = stdout != null ? stdout.output : mStdout.takePartial();
+			final String partialErr = mStderr.takePartial();
+			close();
+			return new CommandResult(null, partialOut, partialErr, true, false);
+		}
+		return new CommandResult(parseExitValue(stdout.tag), stdout.output, stderr.output,
+				false, stdout.truncated || stderr.truncated);
+	}
+
+	private static Integer parseExitValue(final String tag) {
+		try {
+			return Integer.valueOf(tag.trim());
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private void scheduleIdleTimer() {
+		if (mIdleTimeout <= 0) {
+			return;
+		}
+		mIdleTask = new TimerTask() {
+			@Override
+			public void run() {
+				synchronized (ShellSession.this) {
+					if (mIdleTask == this) {
+						Log.d(TAG, "Closing idle shell " + mShell);
+						close();
+					}
+				}
+			}
+		};
+		sIdleTimer.schedule(mIdleTask, mIdleTimeout);
+	}
+
+	private void cancelIdleTimer() {
+		if (mIdleTask != null) {
+			mIdleTask.cancel();
+			mIdleTask = null;
+		}
+	}
+
+	/**
+	 * Reads one stream of the shell continuously, so a chatty command can't
+	 * block the shell on a full pipe, and splits it at the marker lines.
+	 * Reading happens on its own thread so a caller can stop waiting for a
+	 * command that hangs. Output beyond the limit is dropped as it arrives;
+	 * a long line is moved to the output in parts, keeping just enough of
+	 * its end to still find a marker in it.
+	 */
+	private static class MarkerReader extends Thread {
+		static class Chunk {
+			final String output;
+			/* Text after the marker, the exit code on stdout */
+			final String tag;
+			final boolean truncated;
+
+			Chunk(final String output, final String tag, final boolean truncated) {
+				this.output = output;
+				this.tag = tag;
+				this.truncated = truncated;
+			}
+		}
+
+		private static final int MAX_LINE = 8192;
+
+		private final Reader mReader;
+		private final String mMarker;
+		private final int mLimit;
+		private final char[] mRead = new char[8192];
+		private final LinkedList<Chunk> mChunks = new LinkedList<Chunk>();
+		private final StringBuilder mLine = new StringBuilder();
+		private StringBuilder mBuffer;
+		private boolean mTruncated;
+		private boolean mEof;
+
+		MarkerReader(final InputStream is, final String marker, final int limit,
+				final String name) {
+			super(TAG + name);
+			setDaemon(true);
+			mReader = new InputStreamReader(is);
+			mMarker = marker;
+			mLimit = limit;
+		}
+
+		@Override
+		public void run() {
+			try {
+				int count;
+				while ((count = mReader.read(mRead)) != -1) {
+					synchronized (this) {
+						for (int i = 0; i < count; i++) {
+							if (mRead[i] == '\n') {
+								endLine();
+							} else {
+								mLine.append(mRead[i]);
+								if (mLine.length() >= MAX_LINE && mLine.indexOf(mMarker) < 0) {
+									/* A marker not complete yet can only be in the last part */
+									final int spill = mLine.length() - mMarker.length() + 1;
+									appendOutput(mLine, spill);
+									mLine.delete(0, spill);
+								}
+							}
+						}
+					}
+				}
+			} catch (final IOException e) {
+			}
+			synchronized (this) {
+				mEof = true;
+				notifyAll();
+			}
+		}
+
+		private void endLine() {
+			final int mark = mLine.indexOf(mMarker);
+			if (mark < 0) {
+				mLine.append('\n');
+				appendOutput(mLine, mLine.length());
+				mLine.setLength(0);
+				return;
+			}
+			appendOutput(mLine, mark);
+			String output = null;
+			if (mBuffer != null) {
+				int length = mBuffer.length();
+				if (length > 0 && mBuffer.charAt(length - 1) == '\n') {
+					length--;
+				}
+				output = mBuffer.substring(0, length);
+			}
+			mChunks.add(new Chunk(output, mLine.substring(mark + mMarker.length()), mTruncated));
+			mLine.setLength(0);
+			mBuffer = null;
+			mTruncated = false;
+			notifyAll();
+		}
+
+		private void appendOutput(final CharSequence text, int count) {
+			if (mBuffer == null) {
+				if (count == 0) {
+					return;
+				}
+				mBuffer = new StringBuilder();
+			}
+			if (mTruncated) {
+				return;
+			}
+			if (mLimit > 0 && mBuffer.length() + count > mLimit) {
+				count = mLimit - mBuffer.length();
+				mTruncated = true;
+			}
+			mBuffer.append(text, 0, count);
+		}
+
+		/**
+		 * Waits for the output of the next command.
+		 *
+		 * @param deadline wall clock time to give up at, 0 to wait forever
+		 * @return the output, null if the deadline passed
+		 * @throws IOException if the stream ended first
+		 */
+		synchronized Chunk take(final long deadline) throws IOException {
+			while (mChunks.isEmpty() && !mEof) {
+				long wait = 0;
+				if (deadline > 0) {
+					wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						return null;
+					}
+				}
+				try {
+					wait(wait);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+			}
+			if (mChunks.isEmpty()) {
+				throw new IOException("end of stream");
+			}
+			return mChunks.removeFirst();
+		}
+
+		/**
+		 * @return output received so far for a command which didn't finish
+		 */
+		synchronized String takePartial() {
+			if (mBuffer == null && mLine.length() == 0) {
+				return null;
+			}
+			final StringBuilder out = mBuffer != null ? mBuffer : new StringBuilder();
+			out.append(mLine);
+			mBuffer = null;
+			mLine.setLength(0);
+			int length = out.length();
+			if (length > 0 && out.charAt(length - 1) == '\n') {
+				length--;
+			}
+			return out.substring(0, length);
+		}
+	}
+}
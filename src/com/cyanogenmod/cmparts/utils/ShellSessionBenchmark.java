@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Measures command latency with a new process per command, the way
+ * CMDProcessor used to run everything, against a {@link ShellSession}.
+ * Both use a plain sh as stand-in for su, so no root prompt is involved
+ * and the difference is the process start alone.
+ */
+public class ShellSessionBenchmark {
+
+    private static final String TAG = "ShellSessionBenchmark";
+
+    public static final String SHELL = "sh";
+
+    public static final int COMMANDS = 100;
+
+    private static final String COMMAND = "echo benchmark";
+
+    public static final int MODE_PROCESS = 0;
+    public static final int MODE_SESSION = 1;
+
+    private static final String[] MODE_NAMES = new String[] {
+        "process per command", "session"
+    };
+
+    /**
+     * Runs both modes and logs the results.
+     *
+     * @return median and 90th percentile latency in microseconds, per mode
+     */
+    public long[][] run() {
+        long[][] results = new long[MODE_NAMES.length][];
+        for (int mode = 0; mode < MODE_NAMES.length; mode++) {
+            long[] latencies = measure(mode, COMMANDS);
+            if (latencies == null) {
+                Log.e(TAG, MODE_NAMES[mode] + ": command failed");
+                continue;
+            }
+            Arrays.sort(latencies);
+            results[mode] = new long[] {
+                latencies[latencies.length / 2] / 1000,
+                latencies[latencies.length * 9 / 10] / 1000
+            };
+            Log.i(TAG, MODE_NAMES[mode] + ", " + COMMANDS + " commands: median "
+                    + results[mode][0] + " us, p90 " + results[mode][1] + " us");
+        }
+        return results;
+    }
+
+    /**
+     * @return nanoseconds per command, null if a command failed
+     */
+    public long[] measure(int mode, int count) {
+        CMDProcessor.SH sh = new CMDProcessor().new SH(SHELL);
+        ShellSession session = new ShellSession(SHELL, 0);
+        long[] latencies = new long[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                CMDProcessor.CommandResult result = mode == MODE_SESSION
+                        ? session.run(COMMAND) : sh.runProcessWaitFor(COMMAND);
+                latencies[i] = System.nanoTime() - start;
+                if (result == null || !result.success()) {
+                    return null;
+                }
+            }
+        } finally {
+            session.close();
+        }
+        return latencies;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures storage throughput and latency with a temporary file.
+ *
+ * Runs sequential write and read, random 4K reads and writes, and small
+ * writes each followed by fsync. All I/O goes through a FileChannel with
+ * direct buffers. The page cache is dropped before reading, through root
+ * since the system uid can't write drop_caches. Without root reads are
+ * still measured, but mostly measure memory, which the result notes.
+ * Random writes are timed up to the fsync which lands them.
+ */
+public class StorageBenchmark {
+
+    private static final String TAG = "StorageBenchmark";
+
+    public static final String DROP_CACHES_FILE = "/proc/sys/vm/drop_caches";
+
+    public static final String PREFS_NAME = "storage_benchmark";
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 4096;
+
+    private final int mSizeKb;
+    private final int mRandomOps;
+    private final int mSyncOps;
+
+    /**
+     * Throughput in KB/s and latency percentiles in microseconds.
+     */
+    public static class Result {
+        public long seqWriteKbps;
+        public long seqReadKbps;
+        public long randReadIops;
+        public long randWriteIops;
+        public long[] randReadLatency;
+        public long[] randWriteLatency;
+        public long[] syncLatency;
+        public boolean cacheDropped;
+
+        /* Percentiles reported for each latency */
+        public static final int[] PERCENTILES = new int[] { 50, 90, 99 };
+
+        /**
+         * @return the result as one line, readable by {@link #parse(String)}
+         */
+        public String flatten() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(seqWriteKbps).append(',').append(seqReadKbps).append(',')
+                    .append(randReadIops).append(',').append(randWriteIops).append(',')
+                    .append(cacheDropped ? 1 : 0);
+            for (long[] latency : new long[][] { randReadLatency, randWriteLatency, syncLatency }) {
+                for (long value : latency) {
+                    sb.append(',').append(value);
+                }
+            }
+            return sb.toString();
+        }
+
+        /**
+         * @return the result, or null if the line is malformed
+         */
+        public static Result parse(String line) {
+            if (line == null) {
+                return null;
+            }
+            String[] parts = line.split(",");
+            int n = PERCENTILES.length;
+            if (parts.length != 5 + 3 * n) {
+                return null;
+            }
+            try {
+                Result result = new Result();
+                result.seqWriteKbps = Long.parseLong(parts[0]);
+                result.seqReadKbps = Long.parseLong(parts[1]);
+                result.randReadIops = Long.parseLong(parts[2]);
+                result.randWriteIops = Long.parseLong(parts[3]);
+                result.cacheDropped = "1".equals(parts[4]);
+                result.randReadLatency = new long[n];
+                result.randWriteLatency = new long[n];
+                result.syncLatency = new long[n];
+                for (int i = 0; i < n; i++) {
+                    result.randReadLatency[i] = Long.parseLong(parts[5 + i]);
+                    result.randWriteLatency[i] = Long.parseLong(parts[5 + n + i]);
+                    result.syncLatency[i] = Long.parseLong(parts[5 + 2 * n + i]);
+                }
+                return result;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @param sizeKb size of the test file
+     * @param randomOps number of random reads and of random writes
+     * @param syncOps number of writes followed by fsync
+     */
+    public StorageBenchmark(int sizeKb, int randomOps, int syncOps) {
+        mSizeKb = sizeKb;
+        mRandomOps = randomOps;
+        mSyncOps = syncOps;
+    }
+
+    public StorageBenchmark() {
+        this(16 * 1024, 256, 32);
+    }
+
+    /**
+     * Runs all measurements in dir.
+     *
+     * @return the result, or null on error
+     */
+    public Result run(File dir) {
+        File file = null;
+        RandomAccessFile raf = null;
+        try {
+            file = File.createTempFile("benchmark", null, dir);
+            raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+            for (int i = 0; i < CHUNK_SIZE; i++) {
+                chunk.put(i, (byte) i);
+            }
+            long size = (long) mSizeKb * 1024;
+            Random random = new Random();
+            Result result = new Result();
+
+            result.seqWriteKbps = sequentialWrite(channel, chunk, size);
+            boolean dropped = dropCaches();
+            result.seqReadKbps = sequentialRead(channel, chunk);
+
+            long[] latency = new long[mRandomOps];
+            dropped = dropped && dropCaches();
+            result.randReadIops = random(channel, block, size, random, false, latency);
+            result.randReadLatency = percentiles(latency);
+            if (!dropped) {
+                Log.w(TAG, "Page cache could not be dropped, reads are cached");
+            }
+            result.cacheDropped = dropped;
+            result.randWriteIops = random(channel, block, size, random, true, latency);
+            result.randWriteLatency = percentiles(latency);
+
+            latency = new long[mSyncOps];
+            for (int i = 0; i < mSyncOps; i++) {
+                block.clear();
+                long start = System.nanoTime();
+                channel.write(block, randomBlock(random, size));
+                channel.force(false);
+                latency[i] = (System.nanoTime() - start) / 1000;
+            }
+            result.syncLatency = percentiles(latency);
+            return result;
+        } catch (IOException e) {
+            Log.e(TAG, "Benchmark failed in " + dir, e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException e) {
+                }
+            }
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private static long sequentialWrite(FileChannel channel, ByteBuffer chunk, long size)
+            throws IOException {
+        long written = 0;
+        long start = System.nanoTime();
+        while (written < size) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), size - written));
+            written += channel.write(chunk, written);
+        }
+        channel.force(true);
+        return kbPerSecond(written, System.nanoTime() - start);
+    }
+
+    private static long sequentialRead(FileChannel channel, ByteBuffer chunk) throws IOException {
+        long read = 0;
+        int count;
+        long start = System.nanoTime();
+        chunk.clear();
+        while ((count = channel.read(chunk, read)) > 0) {
+            read += count;
+            chunk.clear();
+        }
+        return kbPerSecond(read, System.nanoTime() - start);
+    }
+
+    /**
+     * Random writes are followed by an fsync, which counts toward the
+     * operations per second but not toward any single latency.
+     *
+     * @return operations per second, latency receives microseconds per op
+     */
+    private static long random(FileChannel channel, ByteBuffer block, long size, Random random,
+            boolean write, long[] latency) throws IOException {
+        long total = 0;
+        for (int i = 0; i < latency.length; i++) {
+            long position = randomBlock(random, size);
+            block.clear();
+            long start = System.nanoTime();
+            if (write) {
+                channel.write(block, position);
+            } else {
+                channel.read(block, position);
+            }
+            long elapsed = System.nanoTime() - start;
+            latency[i] = elapsed / 1000;
+            total += elapsed;
+        }
+        if (write) {
+            long start = System.nanoTime();
+            channel.force(false);
+            total += System.nanoTime() - start;
+        }
+        return latency.length * 1000000000L / Math.max(1, total);
+    }
+
+    private static long randomBlock(Random random, long size) {
+        long blocks = Math.max(1, size / BLOCK_SIZE);
+        return (long) (random.nextDouble() * blocks) * BLOCK_SIZE;
+    }
+
+    private static long kbPerSecond(long bytes, long nanos) {
+        return bytes * 1000000000L / 1024 / Math.max(1, nanos);
+    }
+
+    /**
+     * Sorts the samples and picks the nearest rank for each of
+     * {@link Result#PERCENTILES}.
+     */
+    public static long[] percentiles(long[] samples) {
+        long[] result = new long[Result.PERCENTILES.length];
+        if (samples.length == 0) {
+            return result;
+        }
+        Arrays.sort(samples);
+        for (int i = 0; i < result.length; i++) {
+            int rank = (int) Math.ceil(Result.PERCENTILES[i] / 100.0 * samples.length);
+            result[i] = samples[Math.max(0, rank - 1)];
+        }
+        return result;
+    }
+
+    /**
+     * Keeps a result for a storage target under the storage configuration
+     * it was measured with, replacing an older one.
+     */
+    public static void save(Context ctx, String target, String configuration, Result result) {
+        getPrefs(ctx).edit().putString(target + "|" + configuration, result.flatten()).commit();
+    }
+
+    /**
+     * @return results of a storage target keyed by configuration
+     */
+    public static Map<String, Result> load(Context ctx, String target) {
+        Map<String, Result> results = new HashMap<String, Result>();
+        String prefix = target + "|";
+        for (Map.Entry<String, ?> entry : getPrefs(ctx).getAll().entrySet()) {
+            if (entry.getKey().startsWith(prefix) && entry.getValue() instanceof String) {
+                Result result = Result.parse((String) entry.getValue());
+                if (result != null) {
+                    results.put(entry.getKey().substring(prefix.length()), result);
+                }
+            }
+        }
+        return results;
+    }
+
+    private static SharedPreferences getPrefs(Context ctx) {
+        return ctx.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /*
+     * drop_caches is writable by root only. Not through SysfsWriter: it
+     * would skip writing a value the node already shows.
+     */
+    private static boolean dropCaches() {
+        CMDProcessor.CommandResult result = new CMDProcessor().su.runWaitFor(
+                "sync; echo 3 > " + DROP_CACHES_FILE);
+        if (!result.success()) {
+            Log.e(TAG, "Unable to drop caches: " + result.stderr);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import java.util.Arrays;
+
+/**
+ * Checks the percentiles {@link StorageBenchmark} reports and that its
+ * results read back as they were saved, cache dropped or not.
+ */
+public class StorageBenchmarkCheck extends SelfCheck {
+
+    public StorageBenchmarkCheck() {
+        super("StorageBenchmarkCheck");
+    }
+
+    @Override
+    protected void runChecks() {
+        /* Nearest rank of 1..100 in any order */
+        long[] samples = new long[100];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (i * 37) % 100 + 1;
+        }
+        check("percentiles", Arrays.equals(StorageBenchmark.percentiles(samples),
+                new long[] { 50, 90, 99 }));
+        check("single sample", Arrays.equals(StorageBenchmark.percentiles(new long[] { 7 }),
+                new long[] { 7, 7, 7 }));
+        check("no samples", Arrays.equals(StorageBenchmark.percentiles(new long[0]),
+                new long[] { 0, 0, 0 }));
+
+        for (boolean dropped : new boolean[] { true, false }) {
+            StorageBenchmark.Result result = new StorageBenchmark.Result();
+            result.seqWriteKbps = 10240;
+            result.seqReadKbps = 20480;
+            result.randReadIops = 1500;
+            result.randWriteIops = 120;
+            result.randReadLatency = new long[] { 400, 900, 2000 };
+            result.randWriteLatency = new long[] { 1000, 5000, 30000 };
+            result.syncLatency = new long[] { 8000, 20000, 90000 };
+            result.cacheDropped = dropped;
+
+            String line = result.flatten();
+            StorageBenchmark.Result parsed = StorageBenchmark.Result.parse(line);
+            check("round trip, cache dropped " + dropped, parsed != null
+                    && parsed.cacheDropped == dropped && line.equals(parsed.flatten()));
+        }
+
+        check("malformed", StorageBenchmark.Result.parse("1,2,3") == null
+                && StorageBenchmark.Result.parse("a,2,3,4,1,1,1,1,1,1,1,1,1,1") == null
+                && StorageBenchmark.Result.parse(null) == null);
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes single line values to sysfs and procfs nodes.
+ *
+ * Asynchronous writes are queued to a worker thread; a newer value for a
+ * node that is still queued replaces the older one. Before writing, the
+ * current value is read and the write is skipped if it already matches.
+ * After writing, the node is read back to make sure the kernel accepted
+ * the value. Failed nodes are remembered until they are written
+ * successfully.
+ */
+public class SysfsWriter {
+
+    private static final String TAG = "SysfsWriter";
+
+    public interface Callback {
+        /**
+         * Called on the writer thread for asynchronous writes which failed
+         * or were not accepted by the kernel.
+         */
+        void onWriteFailed(String path, String value);
+    }
+
+    private static SysfsWriter sInstance;
+
+    private final LinkedHashMap<String, String> mPending = new LinkedHashMap<String, String>();
+    private final HashMap<String, String> mFailures = new HashMap<String, String>();
+    private final Object mWriteLock = new Object();
+
+    private Thread mWorker;
+    private boolean mBusy;
+    private Callback mCallback;
+
+    public static synchronized SysfsWriter getInstance() {
+        if (sInstance == null) {
+            sInstance = new SysfsWriter();
+        }
+        return sInstance;
+    }
+
+    public synchronized void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Queues a write. Returns immediately.
+     */
+    public synchronized void write(String path, String value) {
+        /* Re-insert so the node moves to the end of the queue */
+        mPending.remove(path);
+        mPending.put(path, value);
+        if (mWorker == null) {
+            mWorker = new Thread(mWorkerTask, TAG);
+            mWorker.start();
+        } else {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes immediately on the calling thread, after any queued write to
+     * the same node is dropped.
+     *
+     * @return true if the node holds the value afterwards
+     */
+    public boolean writeSync(String path, String value) {
+        synchronized (this) {
+            mPending.remove(path);
+        }
+        return writeNode(path, value);
+    }
+
+    /**
+     * Blocks until all queued writes are done.
+     */
+    public synchronized void flush() {
+        while (!mPending.isEmpty() || mBusy) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return node path to value of all nodes whose last write failed
+     */
+    public Map<String, String> getFailures() {
+        synchronized (mFailures) {
+            return new HashMap<String, String>(mFailures);
+        }
+    }
+
+    public boolean hasFailed(String path) {
+        synchronized (mFailures) {
+            return mFailures.containsKey(path);
+        }
+    }
+
+    private final Runnable mWorkerTask = new Runnable() {
+        public void run() {
+            while (true) {
+                String path;
+                String value;
+                Callback callback;
+                synchronized (SysfsWriter.this) {
+                    mBusy = false;
+                    SysfsWriter.this.notifyAll();
+                    while (mPending.isEmpty()) {
+                        try {
+                            SysfsWriter.this.wait();
+                        } catch (InterruptedException e) {
+                            mWorker = null;
+                            return;
+                        }
+                    }
+                    Iterator<Map.Entry<String, String>> it = mPending.entrySet().iterator();
+                    Map.Entry<String, String> entry = it.next();
+                    path = entry.getKey();
+                    value = entry.getValue();
+                    it.remove();
+                    mBusy = true;
+                    callback = mCallback;
+                }
+                if (!writeNode(path, value) && callback != null) {
+                    callback.onWriteFailed(path, value);
+                }
+            }
+        }
+    };
+
+    private boolean writeNode(String path, String value) {
+        boolean success;
+        synchronized (mWriteLock) {
+            File file = new File(path);
+            if (matches(readLine(file), value)) {
+                success = true;
+            } else {
+                /* Write-only nodes can't be verified, trust the write then */
+                success = writeLine(file, value);
+                if (success && file.canRead()) {
+                    success = matches(readLine(file), value);
+                }
+                if (!success) {
+                    Log.e(TAG, "Kernel did not accept " + value + " for " + path);
+                }
+            }
+        }
+        synchronized (mFailures) {
+            if (success) {
+                mFailures.remove(path);
+            } else {
+                mFailures.put(path, value);
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Compares ignoring whitespace, as several nodes reformat lists.
+     * Selection nodes such as queue/scheduler list every choice and
+     * bracket the active one.
+     */
+    static boolean matches(String current, String value) {
+        if (current == null || value == null) {
+            return false;
+        }
+        if (current.indexOf('[') >= 0 && current.indexOf("[" + value.trim() + "]") >= 0) {
+            return true;
+        }
+        int i = 0, j = 0;
+        while (true) {
+            while (i < current.length() && Character.isWhitespace(current.charAt(i))) i++;
+            while (j < value.length() && Character.isWhitespace(value.charAt(j))) j++;
+            if (i == current.length() || j == value.length()) {
+                return i == current.length() && j == value.length();
+            }
+            if (current.charAt(i++) != value.charAt(j++)) {
+                return false;
+            }
+        }
+    }
+
+    static String readLine(File file) {
+        if (!file.canRead()) {
+            return null;
+        }
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file), 512);
+            try {
+                return br.readLine();
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean writeLine(File file, String value) {
+        try {
+            FileWriter fw = new FileWriter(file);
+            try {
+                fw.write(value);
+            } finally {
+                fw.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error writing to " + file + ". Exception: ", e);
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Reads temperatures from the thermal zones in /sys/class/thermal.
+ *
+ * Kernels report either degrees or millidegrees Celsius, both are
+ * converted to tenths of a degree, the unit the battery broadcast uses.
+ * Zones switched off are ignored. The thermal directory is a constructor
+ * argument so a fake sysfs tree can be used instead.
+ */
+public class ThermalMonitor {
+
+    public static final String THERMAL_ROOT = "/sys/class/thermal";
+
+    public static final String TEMP = "temp";
+    public static final String MODE = "mode";
+
+    /* Returned when no zone could be read */
+    public static final int NO_TEMPERATURE = Integer.MIN_VALUE;
+
+    private static ThermalMonitor sInstance;
+
+    private final File mRoot;
+
+    public static synchronized ThermalMonitor getInstance() {
+        if (sInstance == null) {
+            sInstance = new ThermalMonitor(new File(THERMAL_ROOT));
+        }
+        return sInstance;
+    }
+
+    public ThermalMonitor(File root) {
+        mRoot = root;
+    }
+
+    public File[] getZones() {
+        File[] zones = mRoot.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().startsWith("thermal_zone")
+                        && new File(file, TEMP).exists();
+            }
+        });
+        return zones != null ? zones : new File[0];
+    }
+
+    public boolean isAvailable() {
+        return getZones().length > 0;
+    }
+
+    /**
+     * @return the highest temperature of all enabled zones in tenths of a
+     *         degree Celsius, or NO_TEMPERATURE
+     */
+    public int readMaxTemperature() {
+        int max = NO_TEMPERATURE;
+        for (File zone : getZones()) {
+            if ("disabled".equals(readLine(new File(zone, MODE)))) {
+                continue;
+            }
+            String value = readLine(new File(zone, TEMP));
+            if (value == null) {
+                continue;
+            }
+            try {
+                max = Math.max(max, toTenths(Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Anything above 1000 can't be degrees, so it is taken as millidegrees.
+     */
+    public static int toTenths(long raw) {
+        return (int) (Math.abs(raw) > 1000 ? raw / 100 : raw * 10);
+    }
+
+    private static String readLine(File file) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(file), 64);
+            try {
+                String line = br.readLine();
+                return line != null ? line.trim() : null;
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Reads zram (compcache) statistics and resizes zram swap devices.
+ *
+ * Statistics come from /sys/block/zramN. Compression ratio is the stored
+ * data against its compressed size, the effective ratio also counts
+ * allocator overhead. The block directory is a constructor argument so a
+ * fake sysfs tree can be used instead.
+ */
+public class ZramManager {
+
+    private static final String TAG = "ZramManager";
+
+    public static final String BLOCK_ROOT = "/sys/block";
+    public static final String DEV_ROOT = "/dev/block";
+
+    public static final String DISKSIZE = "disksize";
+    public static final String ORIG_DATA_SIZE = "orig_data_size";
+    public static final String COMPR_DATA_SIZE = "compr_data_size";
+    public static final String MEM_USED_TOTAL = "mem_used_total";
+    public static final String NUM_READS = "num_reads";
+    public static final String NUM_WRITES = "num_writes";
+
+    private static ZramManager sInstance;
+
+    private final File mRoot;
+    private final String mDevRoot;
+    private final ProcStatParser mMeminfo;
+
+    private long mLastIoTime;
+    private long mLastIo = -1;
+    private long mIoRate;
+
+    /**
+     * Summed over all zram devices, sizes in bytes.
+     */
+    public static class Stats {
+        public int devices;
+        public long diskSize;
+        public long origDataSize;
+        public long comprDataSize;
+        public long memUsedTotal;
+        public long reads;
+        public long writes;
+
+        /**
+         * @return stored data per compressed byte times 100, 0 if empty
+         */
+        public long getCompressionRatio() {
+            return comprDataSize > 0 ? origDataSize * 100 / comprDataSize : 0;
+        }
+
+        /**
+         * @return stored data per byte of RAM used times 100, 0 if empty
+         */
+        public long getEffectiveRatio() {
+            return memUsedTotal > 0 ? origDataSize * 100 / memUsedTotal : 0;
+        }
+    }
+
+    public static synchronized ZramManager getInstance() {
+        if (sInstance == null) {
+            sInstance = new ZramManager(new File(BLOCK_ROOT), DEV_ROOT, LowMemoryTuner.MEMINFO_FILE);
+        }
+        return sInstance;
+    }
+
+    public ZramManager(File root, String devRoot, String meminfo) {
+        mRoot = root;
+        mDevRoot = devRoot;
+        mMeminfo = new ProcStatParser(meminfo, new String[] { "MemTotal" });
+    }
+
+    public File[] getDevices() {
+        File[] devices = mRoot.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.getName().startsWith("zram") && new File(file, DISKSIZE).exists();
+            }
+        });
+        if (devices == null) {
+            return new File[0];
+        }
+        Arrays.sort(devices);
+        return devices;
+    }
+
+    public boolean isAvailable() {
+        return getDevices().length > 0;
+    }
+
+    public Stats getStats() {
+        return getStats(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Reads the statistics and updates the I/O rate from the change since
+     * the previous call.
+     */
+    public synchronized Stats getStats(long now) {
+        Stats stats = new Stats();
+        for (File device : getDevices()) {
+            stats.devices++;
+            stats.diskSize += readLong(device, DISKSIZE);
+            stats.origDataSize += readLong(device, ORIG_DATA_SIZE);
+            stats.comprDataSize += readLong(device, COMPR_DATA_SIZE);
+            stats.memUsedTotal += readLong(device, MEM_USED_TOTAL);
+            stats.reads += readLong(device, NUM_READS);
+            stats.writes += readLong(device, NUM_WRITES);
+        }
+        long io = stats.reads + stats.writes;
+        if (mLastIo >= 0 && io >= mLastIo && now > mLastIoTime) {
+            mIoRate = (io - mLastIo) * 1000 / (now - mLastIoTime);
+        }
+        mLastIo = io;
+        mLastIoTime = now;
+        return stats;
+    }
+
+    /**
+     * @return swap reads and writes per second between the last two
+     *         calls of getStats()
+     */
+    public synchronized long getIoRate() {
+        return mIoRate;
+    }
+
+    /**
+     * @return total RAM in bytes, 0 if unknown
+     */
+    public long getTotalMemory() {
+        long[] values = new long[1];
+        return mMeminfo.read(values) ? values[0] * 1024 : 0;
+    }
+
+    /**
+     * @return the zram size matching a compcache percentage of total RAM
+     */
+    public long getSizeForPercent(int percent) {
+        /* Whole pages, the kernel rounds down anyway */
+        return getTotalMemory() * percent / 100 / 4096 * 4096;
+    }
+
+    /**
+     * Resizes the first zram device and swaps on it, or turns it off for
+     * a size of 0. zram only takes a new size after a reset, so the swap
+     * is turned off first.
+     */
+    public boolean resize(long bytes) {
+        File[] devices = getDevices();
+        if (devices.length == 0) {
+            return false;
+        }
+        String name = devices[0].getName();
+        CMDProcessor.CommandResult result = new CMDProcessor().su.runWaitFor(
+                getResizeScript(devices[0], bytes));
+        if (!result.success()) {
+            Log.e(TAG, "Resizing " + name + " to " + bytes + " failed: " + result.stderr);
+            return false;
+        }
+        Log.d(TAG, "Resized " + name + " to " + bytes);
+        return true;
+    }
+
+    /**
+     * @return the root shell commands resizing the given device
+     */
+    String getResizeScript(File device, long bytes) {
+        String dev = mDevRoot + "/" + device.getName();
+        String sys = device.getPath();
+
+        StringBuilder script = new StringBuilder();
+        script.append("swapoff ").append(dev).append(" 2>/dev/null; ");
+        script.append("echo 1 > ").append(sys).append("/reset");
+        if (bytes > 0) {
+            script.append(" && echo ").append(bytes).append(" > ").append(sys).append('/').append(DISKSIZE);
+            script.append(" && mkswap ").append(dev);
+            script.append(" && swapon ").append(dev);
+        }
+        return script.toString();
+    }
+
+    private static long readLong(File device, String node) {
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(new File(device, node)), 64);
+            try {
+                String line = br.readLine();
+                return line != null ? Long.parseLong(line.trim()) : 0;
+            } finally {
+                br.close();
+            }
+        } catch (IOException e) {
+            return 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
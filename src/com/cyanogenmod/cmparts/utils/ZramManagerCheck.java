@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.cmparts.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs {@link ZramManager} against a fake sysfs tree with two zram
+ * devices, a block device which isn't zram and a fake meminfo, and checks
+ * the statistics, ratios, I/O rate, sizing and resize commands.
+ */
+public class ZramManagerCheck extends SelfCheck {
+
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * @param cacheDir where the fake tree goes
+     */
+    public ZramManagerCheck(File cacheDir) {
+        super("ZramManagerCheck", new File(cacheDir, "zram_check"));
+    }
+
+    @Override
+    protected void runChecks() throws IOException {
+        File dir = getDir();
+        File block = new File(dir, "block");
+        File zram0 = new File(block, "zram0");
+        File zram1 = new File(block, "zram1");
+        writeDevice(zram0, 64 * MB, 30 * MB, 10 * MB, 12 * MB, 1000, 3000);
+        writeDevice(zram1, 32 * MB, 10 * MB, 5 * MB, 6 * MB, 500, 500);
+        /* Not zram, and a zram directory without disksize */
+        write(new File(block, "mmcblk0"), ZramManager.DISKSIZE, "1073741824");
+        new File(block, "zram2").mkdirs();
+        write(dir, "meminfo", "MemTotal:         409600 kB\nMemFree:           65536 kB\n");
+
+        ZramManager zram = new ZramManager(block, "/dev/block", new File(dir, "meminfo").getPath());
+        File[] devices = zram.getDevices();
+        check("devices", devices.length == 2 && devices[0].getName().equals("zram0")
+                && devices[1].getName().equals("zram1"));
+
+        ZramManager.Stats stats = zram.getStats(10000);
+        check("device count", stats.devices == 2);
+        check("disk size", stats.diskSize == 96 * MB);
+        check("stored", stats.origDataSize == 40 * MB);
+        check("compression ratio", stats.getCompressionRatio() == 266);
+        check("effective ratio", stats.getEffectiveRatio() == 222);
+        check("no rate from one sample", zram.getIoRate() == 0);
+
+        /* 2500 more reads and writes over 5 seconds */
+        write(zram0, ZramManager.NUM_READS, "2500");
+        write(zram1, ZramManager.NUM_WRITES, "1500");
+        zram.getStats(15000);
+        check("I/O rate", zram.getIoRate() == 500);
+
+        /* Counters reset along with the device, the rate is kept */
+        write(zram0, ZramManager.NUM_READS, "0");
+        zram.getStats(20000);
+        check("I/O rate after reset", zram.getIoRate() == 500);
+
+        check("total memory", zram.getTotalMemory() == 400 * MB);
+        check("size for percent", zram.getSizeForPercent(18) == 75497472);
+
+        check("resize script", ("swapoff /dev/block/zram0 2>/dev/null; echo 1 > "
+                + zram0 + "/reset && echo 75497472 > " + zram0 + "/disksize"
+                + " && mkswap /dev/block/zram0 && swapon /dev/block/zram0")
+                .equals(zram.getResizeScript(zram0, 75497472)));
+        check("disable script", ("swapoff /dev/block/zram0 2>/dev/null; echo 1 > "
+                + zram0 + "/reset").equals(zram.getResizeScript(zram0, 0)));
+    }
+
+    private static void writeDevice(File device, long diskSize, long orig, long compr,
+            long used, long reads, long writes) throws IOException {
+        write(device, ZramManager.DISKSIZE, Long.toString(diskSize));
+        write(device, ZramManager.ORIG_DATA_SIZE, Long.toString(orig));
+        write(device, ZramManager.COMPR_DATA_SIZE, Long.toString(compr));
+        write(device, ZramManager.MEM_USED_TOTAL, Long.toString(used));
+        write(device, ZramManager.NUM_READS, Long.toString(reads));
+        write(device, ZramManager.NUM_WRITES, Long.toString(writes));
+    }
+}